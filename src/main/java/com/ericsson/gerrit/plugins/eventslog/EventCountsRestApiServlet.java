@@ -0,0 +1,54 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.gerrit.server.CurrentUser;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.util.List;
+import java.util.Map;
+
+/** Returns hourly counts of events per project and type instead of the events themselves. */
+@Singleton
+class EventCountsRestApiServlet extends EventsRestApiServlet {
+  private static final long serialVersionUID = 1L;
+
+  private final EventStore store;
+  private final QueryMaker queryMaker;
+
+  @Inject
+  EventCountsRestApiServlet(
+      EventStore store,
+      QueryMaker queryMaker,
+      QueryLimiter queryLimiter,
+      Provider<CurrentUser> userProvider) {
+    super(store, queryMaker, queryLimiter, userProvider);
+    this.store = store;
+    this.queryMaker = queryMaker;
+  }
+
+  @Override
+  protected List<String> formQueries(Map<String, String> params) throws MalformedQueryException {
+    return ImmutableList.of(queryMaker.formCountsQueryFromRequestParameters(params));
+  }
+
+  @Override
+  protected List<String> query(List<String> queries) throws EventsLogException {
+    return store.queryEventCounts(Iterables.getOnlyElement(queries));
+  }
+}
@@ -14,7 +14,10 @@
 
 package com.ericsson.gerrit.plugins.eventslog;
 
+import com.google.common.io.CharStreams;
 import com.google.gerrit.server.events.ProjectEvent;
+import java.io.IOException;
+import java.io.Reader;
 import java.util.List;
 
 /** A store for change events to query. */
@@ -35,4 +38,61 @@ public interface EventStore {
    * @throws EventsLogException if the given query can't be processed
    */
   List<String> queryChangeEvents(String query) throws EventsLogException;
+
+  /**
+   * Returns events from the store based on the given queries, which cover contiguous parts of a
+   * time window in order. The events returned are the first ones of the whole window, up to the
+   * limit of a single query.
+   *
+   * @param queries the queries used to get events
+   * @return a list of events in String format.
+   * @throws EventsLogException if the given queries can't be processed
+   */
+  List<String> queryChangeEvents(List<String> queries) throws EventsLogException;
+
+  /**
+   * Returns hourly counts of events per project and type from the store based on the given query.
+   *
+   * @param query the query used to get event counts
+   * @return a list of event counts in JSON format.
+   * @throws EventsLogException if the given query can't be processed
+   */
+  List<String> queryEventCounts(String query) throws EventsLogException;
+
+  /**
+   * Streams the events from the store based on the given query, without holding them in memory.
+   *
+   * @param query the query used to get events
+   * @param sink receives each event, in the order returned by the query
+   * @throws EventsLogException if the given query can't be processed
+   * @throws IOException if the sink fails to write an event
+   */
+  void exportChangeEvents(String query, EventSink sink) throws EventsLogException, IOException;
+
+  /** Receives the events exported from the store. */
+  @FunctionalInterface
+  interface EventSink {
+    /**
+     * Writes an exported event.
+     *
+     * @param id the identifier of the event in the store
+     * @param project the name of the project of the event
+     * @param event the event in JSON format
+     * @throws IOException if the event cannot be written
+     */
+    void write(Object id, String project, String event) throws IOException;
+
+    /**
+     * Writes an exported event read from the store as it is written. By default the event is read
+     * entirely first.
+     *
+     * @param id the identifier of the event in the store
+     * @param project the name of the project of the event
+     * @param event the reader of the event in JSON format
+     * @throws IOException if the event cannot be read or written
+     */
+    default void write(Object id, String project, Reader event) throws IOException {
+      write(id, project, CharStreams.toString(event));
+    }
+  }
 }
@@ -0,0 +1,223 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.permissions.GlobalPermission;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Exports all the events matching the request, as gzip compressed lines. Each line holds the
+ * identifier, the project and the event, so that an interrupted export can be resumed after the
+ * last identifier received.
+ */
+@Singleton
+class EventsExportServlet extends HttpServlet {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+  private static final long serialVersionUID = 1L;
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final Gson gson = new Gson();
+
+  private final EventStore store;
+  private final QueryMaker queryMaker;
+  private final PermissionBackend permissionBackend;
+  private final Provider<CurrentUser> userProvider;
+  private final Semaphore running = new Semaphore(1);
+
+  @Inject
+  EventsExportServlet(
+      EventStore store,
+      QueryMaker queryMaker,
+      PermissionBackend permissionBackend,
+      Provider<CurrentUser> userProvider) {
+    this.store = store;
+    this.queryMaker = queryMaker;
+    this.permissionBackend = permissionBackend;
+    this.userProvider = userProvider;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse rsp) throws IOException {
+    if (!userProvider.get().isIdentifiedUser()) {
+      rsp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+      return;
+    }
+    try {
+      permissionBackend.currentUser().check(GlobalPermission.ADMINISTRATE_SERVER);
+    } catch (AuthException e) {
+      rsp.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    } catch (PermissionBackendException e) {
+      log.atSevere().withCause(e).log("Cannot check administrate server permission");
+      rsp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      return;
+    }
+
+    String query;
+    try {
+      Map<String, String> params =
+          req.getQueryString() != null ? EventsRestApiServlet.getParameters(req) : null;
+      query = queryMaker.formExportQueryFromRequestParameters(params);
+    } catch (MalformedQueryException e) {
+      log.atSevere().withCause(e).log("Bad Request");
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+
+    // Exports are long, running them one at a time keeps the database available for queries.
+    if (!running.tryAcquire()) {
+      rsp.sendError(SC_TOO_MANY_REQUESTS);
+      return;
+    }
+    try {
+      export(query, rsp);
+    } finally {
+      running.release();
+    }
+  }
+
+  private void export(String query, HttpServletResponse rsp) throws IOException {
+    ExportWriter out = new ExportWriter(rsp);
+    try {
+      store.exportChangeEvents(query, out);
+    } catch (EventsLogException e) {
+      log.atSevere().withCause(e).log("Could not export events");
+      if (out.isOpen()) {
+        // Clients see that the export is truncated and resume it from the last identifier they
+        // received.
+        out.abort();
+      } else if (e instanceof ServiceUnavailableException) {
+        rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      } else {
+        rsp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      }
+      return;
+    } catch (IOException e) {
+      out.abort();
+      throw e;
+    }
+    out.close();
+  }
+
+  /**
+   * Writes the exported events to the response, only starting the response with the first event so
+   * that an error can still be sent until then. The gzip trailer is only written once all the
+   * events are, so that an export which fails midway cannot be mistaken for a complete one.
+   */
+  private static class ExportWriter implements EventStore.EventSink, Closeable {
+    private final HttpServletResponse rsp;
+    private ExportStream gzip;
+    private Writer out;
+
+    ExportWriter(HttpServletResponse rsp) {
+      this.rsp = rsp;
+    }
+
+    boolean isOpen() {
+      return out != null;
+    }
+
+    @Override
+    public void write(Object id, String project, String event) throws IOException {
+      open();
+      out.write("{\"id\":");
+      out.write(gson.toJson(id));
+      out.write(",\"project\":");
+      out.write(gson.toJson(project));
+      out.write(",\"event\":");
+      out.write(event);
+      out.write("}\n");
+    }
+
+    @Override
+    public void write(Object id, String project, Reader event) throws IOException {
+      open();
+      out.write("{\"id\":");
+      out.write(gson.toJson(id));
+      out.write(",\"project\":");
+      out.write(gson.toJson(project));
+      out.write(",\"event\":");
+      event.transferTo(out);
+      out.write("}\n");
+    }
+
+    private void open() throws IOException {
+      if (out == null) {
+        rsp.setContentType("application/gzip");
+        rsp.setHeader("Content-Disposition", "attachment; filename=events.json.gz");
+        gzip = new ExportStream(rsp.getOutputStream());
+        out = new OutputStreamWriter(gzip, UTF_8);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      open();
+      out.close();
+    }
+
+    /** End the response with the events written so far, without the gzip trailer. */
+    void abort() {
+      if (out == null) {
+        return;
+      }
+      try {
+        out.flush();
+      } catch (IOException e) {
+        log.atFine().withCause(e).log("Cannot flush the events exported");
+      }
+      gzip.abort();
+    }
+  }
+
+  /** A gzip stream which can be ended without its trailer. */
+  private static class ExportStream extends GZIPOutputStream {
+    ExportStream(OutputStream out) throws IOException {
+      // Flushing outputs all the events written so far, so that they can be read when aborting.
+      super(out, BUFFER_SIZE, true);
+    }
+
+    void abort() {
+      def.end();
+      try {
+        out.close();
+      } catch (IOException e) {
+        log.atFine().withCause(e).log("Cannot close the export stream");
+      }
+    }
+  }
+}
@@ -29,11 +29,31 @@ import org.eclipse.jgit.lib.Config;
 public class EventsLogConfig {
   public static final String H2_DB_PREFIX = "jdbc:h2:";
 
+  /** The kinds of store events can be kept in. */
+  public enum StoreType {
+    /** A database, embedded or not. */
+    SQL,
+    /** Append-only segment files on local disk. */
+    SEGMENT
+  }
+
+  /** The kinds of store events can be kept in while the database is offline. */
+  public enum LocalStoreType {
+    /** An embedded H2 database. */
+    H2,
+    /** An append-only journal file. */
+    JOURNAL
+  }
+
   static final String CONFIG_COPY_LOCAL = "copyLocal";
+  static final String CONFIG_LOCAL_STORE_TYPE = "localStoreType";
   static final String CONFIG_MAX_AGE = "maxAge";
+  static final String CONFIG_COUNTS_MAX_AGE = "countsMaxAge";
   static final String CONFIG_MAX_TRIES = "maxTries";
   static final String CONFIG_RETURN_LIMIT = "returnLimit";
   static final String CONFIG_URL = "storeUrl";
+  static final String CONFIG_READ_URL = "readStoreUrl";
+  static final String CONFIG_CHECK_REPLICA_LAG = "checkReplicaLag";
   static final String CONFIG_LOCAL_PATH = "localStorePath";
   static final String CONFIG_URL_OPTIONS = "urlOptions";
   static final String CONFIG_USERNAME = "storeUsername";
@@ -41,33 +61,105 @@ public class EventsLogConfig {
   static final String CONFIG_WAIT_TIME = "retryTimeout";
   static final String CONFIG_CONN_TIME = "connectTimeout";
   static final String CONFIG_MAX_CONNECTIONS = "maxConnections";
+  static final String CONFIG_MAX_QUERY_CONNECTIONS = "maxQueryConnections";
+  static final String CONFIG_MAX_MAINTENANCE_CONNECTIONS = "maxMaintenanceConnections";
+  static final String CONFIG_WRITE_CONN_TIMEOUT = "writeConnectionTimeout";
+  static final String CONFIG_QUERY_CONN_TIMEOUT = "queryConnectionTimeout";
+  static final String CONFIG_MAINTENANCE_CONN_TIMEOUT = "maintenanceConnectionTimeout";
+  static final String CONFIG_MAX_CONCURRENT_QUERIES = "maxConcurrentQueries";
+  static final String CONFIG_QUERY_QUEUE_TIMEOUT = "queryQueueTimeout";
+  static final String CONFIG_USER_QUERY_RATE = "userQueryRate";
+  static final String CONFIG_USER_QUERY_BURST = "userQueryBurst";
+  static final String CONFIG_QUERY_PARALLELISM = "queryParallelism";
+  static final String CONFIG_PERMISSION_CHECK_THREADS = "permissionCheckThreads";
+  static final String CONFIG_STORE_TYPE = "storeType";
+  static final String CONFIG_SEGMENT_PATH = "segmentPath";
+  static final String CONFIG_SEGMENT_SIZE = "segmentSize";
+  static final String CONFIG_INDEX_EVENTS = "indexEvents";
+  static final String CONFIG_INDEX_PATH = "indexPath";
+  static final String CONFIG_JSONB_EVENTS = "jsonbEvents";
+  static final String CONFIG_MIGRATION_BATCH_SIZE = "migrationBatchSize";
+  static final String CONFIG_MIGRATION_BATCH_DELAY = "migrationBatchDelay";
+  static final String CONFIG_RESTORE_DELAY = "restoreDelay";
+  static final String CONFIG_SHUTDOWN_TIMEOUT = "shutdownTimeout";
+
+  private static final int MIN_CONN_TIMEOUT = 250;
 
   static final boolean DEFAULT_COPY_LOCAL = false;
+  static final LocalStoreType DEFAULT_LOCAL_STORE_TYPE = LocalStoreType.H2;
+  static final boolean DEFAULT_CHECK_REPLICA_LAG = true;
   static final int DEFAULT_MAX_AGE = 30;
+  static final int DEFAULT_COUNTS_MAX_AGE = 365;
   static final int DEFAULT_MAX_TRIES = 3;
   static final int DEFAULT_RETURN_LIMIT = 5000;
   static final int DEFAULT_WAIT_TIME = 1000;
   static final int DEFAULT_CONN_TIME = 1000;
   static final int DEFAULT_MAX_CONNECTIONS = 8;
+  static final int DEFAULT_MAX_QUERY_CONNECTIONS = 4;
+  static final int DEFAULT_MAX_MAINTENANCE_CONNECTIONS = 1;
+  static final int DEFAULT_WRITE_CONN_TIMEOUT = 30000;
+  static final int DEFAULT_QUERY_CONN_TIMEOUT = 10000;
+  static final int DEFAULT_MAINTENANCE_CONN_TIMEOUT = 30000;
+  static final int DEFAULT_QUERY_QUEUE_TIMEOUT = 5000;
+  static final int DEFAULT_USER_QUERY_RATE = 0;
+  static final int DEFAULT_QUERY_PARALLELISM = 1;
+  static final int DEFAULT_PERMISSION_CHECK_THREADS = 4;
+  static final StoreType DEFAULT_STORE_TYPE = StoreType.SQL;
+  static final int DEFAULT_SEGMENT_SIZE = 64;
+  static final int MAX_SEGMENT_SIZE = 1024;
+  static final boolean DEFAULT_INDEX_EVENTS = false;
+  static final boolean DEFAULT_JSONB_EVENTS = false;
+  static final int DEFAULT_MIGRATION_BATCH_SIZE = 10000;
+  static final int DEFAULT_MIGRATION_BATCH_DELAY = 100;
+  static final int DEFAULT_RESTORE_DELAY = 100;
+  static final int DEFAULT_SHUTDOWN_TIMEOUT = 10000;
 
   private boolean copyLocal;
+  private LocalStoreType localStoreType;
   private int maxAge;
+  private int countsMaxAge;
   private int maxTries;
   private int returnLimit;
   private int waitTime;
   private int connectTime;
   private String storeUrl;
+  private String[] readStoreUrls;
+  private boolean checkReplicaLag;
   private Path localStorePath;
   private String[] urlOptions;
   private String storeUsername;
   private String storePassword;
   private int maxConnections;
+  private int maxQueryConnections;
+  private int maxMaintenanceConnections;
+  private int writeConnectionTimeout;
+  private int queryConnectionTimeout;
+  private int maintenanceConnectionTimeout;
+  private int maxConcurrentQueries;
+  private int queryQueueTimeout;
+  private int userQueryRate;
+  private int userQueryBurst;
+  private int queryParallelism;
+  private int permissionCheckThreads;
+  private StoreType storeType;
+  private Path segmentPath;
+  private int segmentSize;
+  private boolean indexEvents;
+  private Path indexPath;
+  private boolean jsonbEvents;
+  private int migrationBatchSize;
+  private int migrationBatchDelay;
+  private int restoreDelay;
+  private int shutdownTimeout;
 
   @Inject
   EventsLogConfig(PluginConfigFactory cfgFactory, SitePaths site, @PluginName String pluginName) {
     Config cfg = cfgFactory.getGlobalPluginConfig(pluginName);
     copyLocal = cfg.getBoolean(pluginName, CONFIG_COPY_LOCAL, DEFAULT_COPY_LOCAL);
+    localStoreType =
+        cfg.getEnum(pluginName, null, CONFIG_LOCAL_STORE_TYPE, DEFAULT_LOCAL_STORE_TYPE);
     maxAge = cfg.getInt(pluginName, CONFIG_MAX_AGE, DEFAULT_MAX_AGE);
+    countsMaxAge = cfg.getInt(pluginName, CONFIG_COUNTS_MAX_AGE, DEFAULT_COUNTS_MAX_AGE);
     maxTries = cfg.getInt(pluginName, CONFIG_MAX_TRIES, DEFAULT_MAX_TRIES);
     returnLimit = cfg.getInt(pluginName, CONFIG_RETURN_LIMIT, DEFAULT_RETURN_LIMIT);
     waitTime = cfg.getInt(pluginName, CONFIG_WAIT_TIME, DEFAULT_WAIT_TIME);
@@ -76,6 +168,9 @@ public class EventsLogConfig {
         MoreObjects.firstNonNull(
             cfg.getString(pluginName, null, CONFIG_URL),
             H2_DB_PREFIX + site.data_dir.resolve("db").normalize());
+    readStoreUrls = cfg.getStringList(pluginName, null, CONFIG_READ_URL);
+    checkReplicaLag =
+        cfg.getBoolean(pluginName, CONFIG_CHECK_REPLICA_LAG, DEFAULT_CHECK_REPLICA_LAG);
     localStorePath =
         Paths.get(
             MoreObjects.firstNonNull(
@@ -86,12 +181,87 @@ public class EventsLogConfig {
     storePassword = cfg.getString(pluginName, null, CONFIG_PASSWORD);
     maxConnections =
         Math.max(cfg.getInt(pluginName, CONFIG_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS), 1);
+    maxQueryConnections =
+        Math.max(
+            cfg.getInt(pluginName, CONFIG_MAX_QUERY_CONNECTIONS, DEFAULT_MAX_QUERY_CONNECTIONS), 1);
+    maxMaintenanceConnections =
+        Math.max(
+            cfg.getInt(
+                pluginName,
+                CONFIG_MAX_MAINTENANCE_CONNECTIONS,
+                DEFAULT_MAX_MAINTENANCE_CONNECTIONS),
+            1);
+    writeConnectionTimeout =
+        getConnectionTimeout(
+            cfg, pluginName, CONFIG_WRITE_CONN_TIMEOUT, DEFAULT_WRITE_CONN_TIMEOUT);
+    queryConnectionTimeout =
+        getConnectionTimeout(
+            cfg, pluginName, CONFIG_QUERY_CONN_TIMEOUT, DEFAULT_QUERY_CONN_TIMEOUT);
+    maintenanceConnectionTimeout =
+        getConnectionTimeout(
+            cfg, pluginName, CONFIG_MAINTENANCE_CONN_TIMEOUT, DEFAULT_MAINTENANCE_CONN_TIMEOUT);
+    maxConcurrentQueries =
+        Math.min(
+            Math.max(cfg.getInt(pluginName, CONFIG_MAX_CONCURRENT_QUERIES, maxQueryConnections), 1),
+            maxQueryConnections);
+    queryQueueTimeout =
+        Math.max(
+            cfg.getInt(pluginName, CONFIG_QUERY_QUEUE_TIMEOUT, DEFAULT_QUERY_QUEUE_TIMEOUT), 0);
+    userQueryRate =
+        Math.max(cfg.getInt(pluginName, CONFIG_USER_QUERY_RATE, DEFAULT_USER_QUERY_RATE), 0);
+    userQueryBurst = Math.max(cfg.getInt(pluginName, CONFIG_USER_QUERY_BURST, userQueryRate), 1);
+    queryParallelism =
+        Math.min(
+            Math.max(
+                cfg.getInt(pluginName, CONFIG_QUERY_PARALLELISM, DEFAULT_QUERY_PARALLELISM), 1),
+            maxQueryConnections);
+    permissionCheckThreads =
+        Math.max(
+            cfg.getInt(
+                pluginName, CONFIG_PERMISSION_CHECK_THREADS, DEFAULT_PERMISSION_CHECK_THREADS),
+            1);
+    storeType = cfg.getEnum(pluginName, null, CONFIG_STORE_TYPE, DEFAULT_STORE_TYPE);
+    segmentPath =
+        Paths.get(
+            MoreObjects.firstNonNull(
+                cfg.getString(pluginName, null, CONFIG_SEGMENT_PATH),
+                site.data_dir.resolve("events-log").normalize().toString()));
+    segmentSize =
+        Math.min(
+            Math.max(cfg.getInt(pluginName, CONFIG_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE), 1),
+            MAX_SEGMENT_SIZE);
+    indexEvents = cfg.getBoolean(pluginName, CONFIG_INDEX_EVENTS, DEFAULT_INDEX_EVENTS);
+    indexPath =
+        Paths.get(
+            MoreObjects.firstNonNull(
+                cfg.getString(pluginName, null, CONFIG_INDEX_PATH),
+                site.data_dir.resolve("events-index").normalize().toString()));
+    jsonbEvents = cfg.getBoolean(pluginName, CONFIG_JSONB_EVENTS, DEFAULT_JSONB_EVENTS);
+    migrationBatchSize =
+        Math.max(
+            cfg.getInt(pluginName, CONFIG_MIGRATION_BATCH_SIZE, DEFAULT_MIGRATION_BATCH_SIZE), 1);
+    migrationBatchDelay =
+        Math.max(
+            cfg.getInt(pluginName, CONFIG_MIGRATION_BATCH_DELAY, DEFAULT_MIGRATION_BATCH_DELAY), 0);
+    restoreDelay = Math.max(cfg.getInt(pluginName, CONFIG_RESTORE_DELAY, DEFAULT_RESTORE_DELAY), 0);
+    shutdownTimeout =
+        Math.max(cfg.getInt(pluginName, CONFIG_SHUTDOWN_TIMEOUT, DEFAULT_SHUTDOWN_TIMEOUT), 0);
+  }
+
+  private static int getConnectionTimeout(
+      Config cfg, String pluginName, String name, int defaultValue) {
+    // The connection pool does not accept timeouts below this value.
+    return Math.max(cfg.getInt(pluginName, name, defaultValue), MIN_CONN_TIMEOUT);
   }
 
   public int getMaxAge() {
     return maxAge;
   }
 
+  public int getCountsMaxAge() {
+    return countsMaxAge;
+  }
+
   public int getReturnLimit() {
     return returnLimit;
   }
@@ -108,6 +278,14 @@ public class EventsLogConfig {
     return storeUrl;
   }
 
+  public String[] getReadStoreUrls() {
+    return readStoreUrls;
+  }
+
+  public boolean getCheckReplicaLag() {
+    return checkReplicaLag;
+  }
+
   public String[] getUrlOptions() {
     return urlOptions;
   }
@@ -132,7 +310,95 @@ public class EventsLogConfig {
     return copyLocal;
   }
 
+  public LocalStoreType getLocalStoreType() {
+    return localStoreType;
+  }
+
   public int getMaxConnections() {
     return maxConnections;
   }
+
+  public int getMaxQueryConnections() {
+    return maxQueryConnections;
+  }
+
+  public int getMaxMaintenanceConnections() {
+    return maxMaintenanceConnections;
+  }
+
+  public int getWriteConnectionTimeout() {
+    return writeConnectionTimeout;
+  }
+
+  public int getQueryConnectionTimeout() {
+    return queryConnectionTimeout;
+  }
+
+  public int getMaintenanceConnectionTimeout() {
+    return maintenanceConnectionTimeout;
+  }
+
+  public int getMaxConcurrentQueries() {
+    return maxConcurrentQueries;
+  }
+
+  public int getQueryQueueTimeout() {
+    return queryQueueTimeout;
+  }
+
+  public int getUserQueryRate() {
+    return userQueryRate;
+  }
+
+  public int getUserQueryBurst() {
+    return userQueryBurst;
+  }
+
+  public int getQueryParallelism() {
+    return queryParallelism;
+  }
+
+  public int getPermissionCheckThreads() {
+    return permissionCheckThreads;
+  }
+
+  public StoreType getStoreType() {
+    return storeType;
+  }
+
+  public Path getSegmentPath() {
+    return segmentPath;
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  public boolean getIndexEvents() {
+    return indexEvents;
+  }
+
+  public Path getIndexPath() {
+    return indexPath;
+  }
+
+  public boolean getJsonbEvents() {
+    return jsonbEvents;
+  }
+
+  public int getMigrationBatchSize() {
+    return migrationBatchSize;
+  }
+
+  public int getMigrationBatchDelay() {
+    return migrationBatchDelay;
+  }
+
+  public int getRestoreDelay() {
+    return restoreDelay;
+  }
+
+  public int getShutdownTimeout() {
+    return shutdownTimeout;
+  }
 }
@@ -0,0 +1,42 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.ericsson.gerrit.plugins.eventslog.segment.SegmentModule;
+import com.ericsson.gerrit.plugins.eventslog.sql.SQLModule;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+
+/** Installs the module of the store configured to keep the events. */
+public class EventsLogModule extends AbstractModule {
+  private final EventsLogConfig cfg;
+
+  @Inject
+  EventsLogModule(EventsLogConfig cfg) {
+    this.cfg = cfg;
+  }
+
+  @Override
+  protected void configure() {
+    switch (cfg.getStoreType()) {
+      case SEGMENT:
+        install(new SegmentModule());
+        break;
+      case SQL:
+      default:
+        install(new SQLModule());
+    }
+  }
+}
@@ -14,15 +14,20 @@
 
 package com.ericsson.gerrit.plugins.eventslog;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.extensions.restapi.Url;
 import com.google.gerrit.server.CurrentUser;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -33,46 +38,134 @@ import javax.servlet.http.HttpServletResponse;
 class EventsRestApiServlet extends HttpServlet {
   private static final FluentLogger log = FluentLogger.forEnclosingClass();
   private static final long serialVersionUID = 1L;
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+  private static final int FRAMES_BUFFER = 64 * 1024;
+
+  static final String FRAMES_CONTENT_TYPE = "application/x-events-log-frames";
 
   private final EventStore store;
   private final QueryMaker queryMaker;
+  private final QueryLimiter queryLimiter;
   private final Provider<CurrentUser> userProvider;
 
   @Inject
   EventsRestApiServlet(
-      EventStore store, QueryMaker queryMaker, Provider<CurrentUser> userProvider) {
+      EventStore store,
+      QueryMaker queryMaker,
+      QueryLimiter queryLimiter,
+      Provider<CurrentUser> userProvider) {
     this.store = store;
     this.queryMaker = queryMaker;
+    this.queryLimiter = queryLimiter;
     this.userProvider = userProvider;
   }
 
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse rsp)
       throws IOException, ServletException {
-    if (!userProvider.get().isIdentifiedUser()) {
+    CurrentUser user = userProvider.get();
+    if (!user.isIdentifiedUser()) {
       rsp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
       return;
     }
     rsp.setContentType("text/html");
     Map<String, String> params = req.getQueryString() != null ? getParameters(req) : null;
 
-    try (Writer out = rsp.getWriter()) {
-      String query = queryMaker.formQueryFromRequestParameters(params);
-      for (String event : store.queryChangeEvents(query)) {
-        out.write(event + "\n");
+    List<String> events;
+    FieldProjection fields;
+    try {
+      fields = FieldProjection.parse(params != null ? params.get(FieldProjection.FIELDS) : null);
+      List<String> queries = formQueries(params);
+      QueryLimiter.Permit permit = queryLimiter.acquire(user, queries.size());
+      try {
+        events = query(queries);
+      } finally {
+        permit.close();
       }
     } catch (MalformedQueryException e) {
       log.atSevere().withCause(e).log("Bad Request");
       rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    } catch (TooManyRequestsException e) {
+      log.atWarning().log("Rejected events query from %s", user.getLoggableName());
+      rsp.setHeader("Retry-After", Long.toString(e.getRetryAfter()));
+      rsp.sendError(SC_TOO_MANY_REQUESTS);
+      return;
     } catch (ServiceUnavailableException e) {
       log.atSevere().withCause(e).log("Service Unavailable");
       rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
     } catch (EventsLogException e) {
       log.atSevere().withCause(e).log("Could not query from request parameters");
+      return;
+    }
+
+    if (acceptsFrames(req)) {
+      writeFrames(rsp, events, fields);
+      return;
+    }
+    try (Writer out = rsp.getWriter()) {
+      for (String event : events) {
+        out.write(fields != null ? fields.project(event) : event);
+        out.write('\n');
+      }
     }
   }
 
-  private static Map<String, String> getParameters(HttpServletRequest req) {
+  private static boolean acceptsFrames(HttpServletRequest req) {
+    String accept = req.getHeader("Accept");
+    if (accept == null) {
+      return false;
+    }
+    for (String type : accept.split(",")) {
+      int params = type.indexOf(';');
+      if ((params < 0 ? type : type.substring(0, params)).trim().equals(FRAMES_CONTENT_TYPE)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes each line as a frame made of its length in bytes, as a 4-byte big-endian integer,
+   * followed by its UTF-8 bytes. Clients can then read the lines without scanning for line ends.
+   */
+  private static void writeFrames(
+      HttpServletResponse rsp, List<String> lines, FieldProjection fields) throws IOException {
+    rsp.setContentType(FRAMES_CONTENT_TYPE);
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(rsp.getOutputStream(), FRAMES_BUFFER))) {
+      for (String line : lines) {
+        byte[] bytes = (fields != null ? fields.project(line) : line).getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    }
+  }
+
+  /**
+   * Forms the queries to run from the request parameters.
+   *
+   * @param params the request parameters, or null if there are none
+   * @return the queries
+   * @throws MalformedQueryException if the parameters are not valid
+   */
+  protected List<String> formQueries(Map<String, String> params) throws MalformedQueryException {
+    return queryMaker.formQueriesFromRequestParameters(params);
+  }
+
+  /**
+   * Runs the queries against the store.
+   *
+   * @param queries the queries formed from the request parameters
+   * @return the lines to return to the client
+   * @throws EventsLogException if the queries cannot be run
+   */
+  protected List<String> query(List<String> queries) throws EventsLogException {
+    return store.queryChangeEvents(queries);
+  }
+
+  static Map<String, String> getParameters(HttpServletRequest req) {
     Map<String, String> params = new HashMap<>();
     for (final String pair : req.getQueryString().split("[&;]")) {
       int eq = pair.indexOf('=');
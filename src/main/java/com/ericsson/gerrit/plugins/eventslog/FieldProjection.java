@@ -0,0 +1,161 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import com.google.common.base.Splitter;
+import com.google.common.flogger.FluentLogger;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The fields of the events to return, as given by the {@code fields} request parameter: a comma
+ * separated list of dotted paths such as {@code change.number}. Selecting a field selects all the
+ * fields it contains.
+ */
+public class FieldProjection {
+  public static final String FIELDS = "fields";
+
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+  private static final Pattern SEGMENT = Pattern.compile("[A-Za-z0-9_]+");
+  private static final Splitter PATHS = Splitter.on(',').trimResults().omitEmptyStrings();
+  private static final Splitter SEGMENTS = Splitter.on('.');
+  private static final TypeAdapter<JsonElement> VALUE = new Gson().getAdapter(JsonElement.class);
+
+  private final Map<String, FieldProjection> children = new LinkedHashMap<>();
+  private boolean whole;
+
+  private FieldProjection() {}
+
+  /**
+   * Parses the value of the {@code fields} request parameter.
+   *
+   * @param fields the comma separated list of paths to keep, or null
+   * @return the projection, or null if no fields are given
+   * @throws MalformedQueryException if a path is not made of alphanumeric names separated by dots
+   */
+  public static FieldProjection parse(String fields) throws MalformedQueryException {
+    if (fields == null) {
+      return null;
+    }
+    FieldProjection root = new FieldProjection();
+    for (String path : PATHS.split(fields)) {
+      List<String> segments = SEGMENTS.splitToList(path);
+      FieldProjection node = root;
+      for (String segment : segments) {
+        if (!SEGMENT.matcher(segment).matches()) {
+          throw new MalformedQueryException();
+        }
+        if (!node.whole) {
+          node = node.children.computeIfAbsent(segment, s -> new FieldProjection());
+        }
+      }
+      // A shorter path selects everything below it.
+      node.whole = true;
+      node.children.clear();
+    }
+    return root.isLeaf() ? null : root;
+  }
+
+  /**
+   * Gets the selected fields of this object.
+   *
+   * @return the selected fields by name; a field without children is selected as a whole
+   */
+  public Map<String, FieldProjection> getChildren() {
+    return Collections.unmodifiableMap(children);
+  }
+
+  public boolean isLeaf() {
+    return children.isEmpty();
+  }
+
+  /**
+   * Keeps only the selected fields of the given event. Null fields and objects left without fields
+   * are dropped.
+   *
+   * @param json the event in JSON format
+   * @return the projected event, or the given event if it is not a JSON object
+   */
+  public String project(String json) {
+    try (JsonReader in = new JsonReader(new StringReader(json))) {
+      if (in.peek() != JsonToken.BEGIN_OBJECT) {
+        return json;
+      }
+      StringWriter projected = new StringWriter(Math.min(json.length(), 1024));
+      JsonWriter out = new JsonWriter(projected);
+      out.beginObject();
+      projectObject(in, out, new ArrayList<>());
+      out.endObject();
+      out.flush();
+      return projected.toString();
+    } catch (IOException | IllegalStateException e) {
+      log.atFine().withCause(e).log("Cannot project event %s", json);
+      return json;
+    }
+  }
+
+  /**
+   * Copies the selected fields of the object read. The enclosing objects whose names are pending
+   * are only written once a field is found, so that no empty object is written.
+   *
+   * @return whether a field was written
+   */
+  private boolean projectObject(JsonReader in, JsonWriter out, List<String> pending)
+      throws IOException {
+    boolean written = false;
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      FieldProjection child = children.get(name);
+      if (child == null || in.peek() == JsonToken.NULL) {
+        in.skipValue();
+      } else if (child.isLeaf()) {
+        for (String parent : pending) {
+          out.name(parent).beginObject();
+        }
+        pending.clear();
+        out.name(name);
+        VALUE.write(out, VALUE.read(in));
+        written = true;
+      } else if (in.peek() == JsonToken.BEGIN_OBJECT) {
+        int depth = pending.size();
+        pending.add(name);
+        if (child.projectObject(in, out, pending)) {
+          out.endObject();
+          written = true;
+        } else {
+          pending.remove(depth);
+        }
+      } else {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+    return written;
+  }
+}
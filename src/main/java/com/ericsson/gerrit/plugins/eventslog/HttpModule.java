@@ -20,5 +20,7 @@ class HttpModule extends ServletModule {
   @Override
   protected void configureServlets() {
     serve("/events/").with(EventsRestApiServlet.class);
+    serve("/counts/").with(EventCountsRestApiServlet.class);
+    serve("/export/").with(EventsExportServlet.class);
   }
 }
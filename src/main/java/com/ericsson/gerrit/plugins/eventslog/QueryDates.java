@@ -0,0 +1,76 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * The time window given by the {@code t1} and {@code t2} request parameters, as either {@code
+ * yyyy-MM-dd HH:mm:ss} or {@code yyyy-MM-dd} dates in the local time zone.
+ */
+public class QueryDates {
+  public static final DateTimeFormatter DATE_TIME_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private static final DateTimeFormatter DATE_ONLY_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+  private QueryDates() {}
+
+  /**
+   * Parse the bounds of a time window, in any order. A missing bound is now.
+   *
+   * @param dateOne one bound of the time window, or null
+   * @param dateTwo the other bound of the time window, or null
+   * @return the start and the end of the time window
+   * @throws MalformedQueryException if both bounds are missing or one cannot be parsed
+   */
+  public static LocalDateTime[] parseRange(String dateOne, String dateTwo)
+      throws MalformedQueryException {
+    if (dateOne == null && dateTwo == null) {
+      throw new MalformedQueryException();
+    }
+    LocalDateTime dOne;
+    LocalDateTime dTwo;
+    try {
+      dOne = dateOne == null ? LocalDateTime.now() : parse(dateOne);
+      dTwo = dateTwo == null ? LocalDateTime.now() : parse(dateTwo);
+    } catch (DateTimeParseException e) {
+      throw new MalformedQueryException(e);
+    }
+    return dOne.isBefore(dTwo)
+        ? new LocalDateTime[] {dOne, dTwo}
+        : new LocalDateTime[] {dTwo, dOne};
+  }
+
+  /**
+   * @param date a date in the local time zone
+   * @return the number of seconds from the epoch to the date
+   */
+  public static long toEpochSecond(LocalDateTime date) {
+    return date.atZone(ZoneId.systemDefault()).toEpochSecond();
+  }
+
+  private static LocalDateTime parse(String date) {
+    try {
+      return LocalDateTime.parse(date, DATE_TIME_FORMAT);
+    } catch (DateTimeParseException e) {
+      return LocalDate.parse(date, DATE_ONLY_FORMAT).atStartOfDay();
+    }
+  }
+}
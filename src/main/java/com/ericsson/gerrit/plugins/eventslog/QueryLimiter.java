@@ -0,0 +1,157 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.server.CurrentUser;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Admission control for event queries. A bulkhead bounds the number of queries running at the same
+ * time so that the database connections needed to store events are never all taken by readers, and
+ * a token bucket per user bounds how often a single user can query.
+ */
+@Singleton
+class QueryLimiter {
+  private final Semaphore slots;
+  private final int maxSlots;
+  private final long queueTimeout;
+  private final long nanosPerToken;
+  private final int burst;
+  private final Ticker ticker;
+  private final Cache<Account.Id, TokenBucket> buckets;
+
+  @Inject
+  QueryLimiter(EventsLogConfig cfg) {
+    this(cfg, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  QueryLimiter(EventsLogConfig cfg, Ticker ticker) {
+    this.maxSlots = cfg.getMaxConcurrentQueries();
+    this.slots = new Semaphore(maxSlots, true);
+    this.queueTimeout = cfg.getQueryQueueTimeout();
+    int rate = cfg.getUserQueryRate();
+    this.nanosPerToken = rate > 0 ? MINUTES.toNanos(1) / rate : 0;
+    this.burst = cfg.getUserQueryBurst();
+    this.ticker = ticker;
+    // An idle bucket is full again after burst * nanosPerToken, so it can be dropped by then.
+    this.buckets =
+        CacheBuilder.newBuilder()
+            .ticker(ticker)
+            .expireAfterAccess(burst * nanosPerToken, NANOSECONDS)
+            .build();
+  }
+
+  /**
+   * Admits a query for the given user, waiting for a free query slot if needed.
+   *
+   * @param user the user running the query
+   * @return a permit that must be closed once the query has completed
+   * @throws TooManyRequestsException if the user exceeded its query rate or no query slot became
+   *     available in time
+   */
+  Permit acquire(CurrentUser user) throws TooManyRequestsException {
+    return acquire(user, 1);
+  }
+
+  /**
+   * Admits a query split in parts running at the same time, each of which takes a query slot, up to
+   * all of them.
+   *
+   * @param user the user running the query
+   * @param parts the number of parts of the query
+   * @return a permit that must be closed once the query has completed
+   * @throws TooManyRequestsException if the user exceeded its query rate or not enough query slots
+   *     became available in time
+   */
+  Permit acquire(CurrentUser user, int parts) throws TooManyRequestsException {
+    if (nanosPerToken > 0) {
+      takeToken(user.getAccountId());
+    }
+    int taken = Math.max(Math.min(parts, maxSlots), 1);
+    try {
+      if (!slots.tryAcquire(taken, queueTimeout, MILLISECONDS)) {
+        throw new TooManyRequestsException(MILLISECONDS.toSeconds(queueTimeout));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TooManyRequestsException(MILLISECONDS.toSeconds(queueTimeout));
+    }
+    return () -> slots.release(taken);
+  }
+
+  private void takeToken(Account.Id accountId) throws TooManyRequestsException {
+    TokenBucket bucket;
+    try {
+      bucket = buckets.get(accountId, TokenBucket::new);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+    long wait = bucket.take();
+    if (wait > 0) {
+      throw new TooManyRequestsException(divideRoundingUp(wait, SECONDS.toNanos(1)));
+    }
+  }
+
+  private static long divideRoundingUp(long dividend, long divisor) {
+    return (dividend + divisor - 1) / divisor;
+  }
+
+  /** A query slot, released when closed. */
+  interface Permit extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private class TokenBucket {
+    private long tokensAt;
+
+    TokenBucket() {
+      tokensAt = ticker.read() - burst * nanosPerToken;
+    }
+
+    /**
+     * Takes a token from the bucket.
+     *
+     * @return 0 if a token was taken, otherwise the number of nanoseconds until one is available
+     */
+    synchronized long take() {
+      long now = ticker.read();
+      long full = now - burst * nanosPerToken;
+      if (tokensAt < full) {
+        tokensAt = full;
+      }
+      long next = tokensAt + nanosPerToken;
+      if (next > now) {
+        return next - now;
+      }
+      tokensAt = next;
+      return 0;
+    }
+  }
+}
@@ -14,6 +14,7 @@
 
 package com.ericsson.gerrit.plugins.eventslog;
 
+import java.util.List;
 import java.util.Map;
 
 /** Helps build well-formed database query strings. */
@@ -29,6 +30,42 @@ public interface QueryMaker {
    */
   String formQueryFromRequestParameters(Map<String, String> params) throws MalformedQueryException;
 
+  /**
+   * Forms String queries based on the given parameters. A wide time window may be split into
+   * queries on contiguous parts of it, so that they can run concurrently.
+   *
+   * @param params parameters which are used to form the queries
+   * @return the queries, in the order of the parts of the time window they cover
+   * @throws MalformedQueryException if the given parameters do conform to requirements
+   */
+  List<String> formQueriesFromRequestParameters(Map<String, String> params)
+      throws MalformedQueryException;
+
+  /**
+   * Forms a String query for hourly event counts based on the given parameters.
+   *
+   * @param params parameters which are used to form the query; when null, the counts of the last
+   *     day are queried
+   * @return a query based on the given parameters. The query should conform to the format required
+   *     by the database.
+   * @throws MalformedQueryException if the given parameters do conform to requirements or if the
+   *     database does not support event counts
+   */
+  String formCountsQueryFromRequestParameters(Map<String, String> params)
+      throws MalformedQueryException;
+
+  /**
+   * Forms a String query exporting events based on the given parameters. Unlike other queries, the
+   * number of events is not limited.
+   *
+   * @param params parameters which are used to form the query, or null to export all events
+   * @return a query based on the given parameters. The query should conform to the format required
+   *     by the database.
+   * @throws MalformedQueryException if the given parameters do conform to requirements
+   */
+  String formExportQueryFromRequestParameters(Map<String, String> params)
+      throws MalformedQueryException;
+
   /**
    * Get the query designated as the default when no parameters are given.
    *
@@ -0,0 +1,42 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+/** An exception type for when a query is rejected to protect the events database. */
+public class TooManyRequestsException extends EventsLogException {
+  private static final long serialVersionUID = 1L;
+  private static final String MESSAGE = "Too many event queries, retry later";
+
+  private final long retryAfter;
+
+  /**
+   * Constructs a <code>TooManyRequestsException</code> object with the default message.
+   *
+   * @param retryAfter number of seconds after which the query may be retried
+   */
+  public TooManyRequestsException(long retryAfter) {
+    super(MESSAGE);
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Returns the number of seconds after which the query may be retried.
+   *
+   * @return the delay in seconds, at least 1
+   */
+  public long getRetryAfter() {
+    return Math.max(retryAfter, 1);
+  }
+}
@@ -0,0 +1,172 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.segment;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * The format of the records of events appended to a file, shared by the segments and by the journal
+ * of the events kept while the database is offline.
+ *
+ * <p>Each record is made of the length and the checksum of its content, then its content: sequence
+ * number, creation time, length of the project name, project name and event.
+ */
+public final class EventRecords {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  /** The size of the length and checksum preceding the content of a record. */
+  public static final int HEADER = Integer.BYTES * 2;
+
+  /** The size of the sequence number, creation time and project name length of a record. */
+  public static final int FIXED = Long.BYTES * 2 + Integer.BYTES;
+
+  /** Receives the records found when recovering a file. */
+  public interface RecordListener {
+    /**
+     * Called for each complete record, in order.
+     *
+     * @param position the position of the record in the file
+     * @param seq the sequence number of the event
+     * @param timestamp the creation time of the event, in seconds since the epoch
+     */
+    void record(long position, long seq, long timestamp);
+  }
+
+  private EventRecords() {}
+
+  /**
+   * Write an event as a record.
+   *
+   * @param channel the file to write to
+   * @param position the position to write the record at
+   * @param seq the sequence number of the event
+   * @param timestamp the creation time of the event, in seconds since the epoch
+   * @param project the name of the project of the event
+   * @param event the event in JSON format
+   * @return the size of the record
+   * @throws IOException if the record cannot be written
+   */
+  public static int write(
+      FileChannel channel, long position, long seq, long timestamp, byte[] project, byte[] event)
+      throws IOException {
+    int length = FIXED + project.length + event.length;
+    ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+    record.putInt(length).putInt(0);
+    record.putLong(seq).putLong(timestamp).putInt(project.length).put(project).put(event);
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), HEADER, length);
+    record.putInt(Integer.BYTES, (int) crc.getValue());
+    record.flip();
+    while (record.hasRemaining()) {
+      channel.write(record, position + record.position());
+    }
+    return record.capacity();
+  }
+
+  /**
+   * Read the content of a record.
+   *
+   * @param channel the file to read from
+   * @param file the path of the file, for the error messages
+   * @param position the position of the record
+   * @return the content of the record, its size is the length of the content
+   * @throws IOException if the record cannot be read
+   */
+  public static ByteBuffer read(FileChannel channel, Path file, long position) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER);
+    readFully(channel, file, header, position);
+    ByteBuffer content = ByteBuffer.allocate(header.getInt(0));
+    readFully(channel, file, content, position + HEADER);
+    return content;
+  }
+
+  /** Get the sequence number of the event of the content of a record. */
+  public static long seq(ByteBuffer content) {
+    return content.getLong(0);
+  }
+
+  /** Get the creation time of the event of the content of a record. */
+  public static long timestamp(ByteBuffer content) {
+    return content.getLong(Long.BYTES);
+  }
+
+  /** Get the project name of the event of the content of a record read from a file. */
+  public static String project(ByteBuffer content) {
+    return new String(content.array(), FIXED, content.getInt(Long.BYTES * 2), UTF_8);
+  }
+
+  /** Get the event of the content of a record read from a file. */
+  public static String event(ByteBuffer content) {
+    int start = FIXED + content.getInt(Long.BYTES * 2);
+    return new String(content.array(), start, content.capacity() - start, UTF_8);
+  }
+
+  /**
+   * Scan the records of a file, and drop an incomplete last record.
+   *
+   * @param channel the file to scan
+   * @param file the path of the file, for the messages
+   * @param listener receives the complete records
+   * @return the size of the complete records
+   * @throws IOException if the file cannot be read or truncated
+   */
+  public static long recover(FileChannel channel, Path file, RecordListener listener)
+      throws IOException {
+    long fileSize = channel.size();
+    ByteBuffer header = ByteBuffer.allocate(HEADER + FIXED);
+    CRC32 crc = new CRC32();
+    long position = 0;
+    while (position + HEADER + FIXED <= fileSize) {
+      header.clear();
+      readFully(channel, file, header, position);
+      int length = header.getInt(0);
+      if (length < FIXED || position + HEADER + length > fileSize) {
+        break;
+      }
+      ByteBuffer content = ByteBuffer.allocate(length);
+      readFully(channel, file, content, position + HEADER);
+      crc.reset();
+      crc.update(content.array());
+      if ((int) crc.getValue() != header.getInt(Integer.BYTES)) {
+        break;
+      }
+      listener.record(position, seq(content), timestamp(content));
+      position += HEADER + length;
+    }
+    if (position < fileSize) {
+      log.atWarning().log(
+          "Dropping %d bytes of incomplete events at the end of %s", fileSize - position, file);
+      channel.truncate(position);
+    }
+    return position;
+  }
+
+  private static void readFully(FileChannel channel, Path file, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of " + file);
+      }
+    }
+    buffer.flip();
+  }
+}
@@ -0,0 +1,329 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.segment;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A segment of the event log: an append-only file of events and a memory-mapped sparse index of it.
+ *
+ * <p>Each event is stored as one of the {@link EventRecords}. Every {@link #INDEX_INTERVAL} bytes,
+ * the index gets an entry with the position and sequence number of the record there and the latest
+ * creation time of the events before it, so that scans can skip what comes earlier.
+ *
+ * <p>A segment is sealed once full; its index is then trusted when the segment is opened again. The
+ * index of the segment being written is rebuilt on opening, dropping any record which was not
+ * completely written.
+ */
+final class Segment implements Closeable {
+  static final String LOG_SUFFIX = ".log";
+  static final String INDEX_SUFFIX = ".idx";
+  static final int INDEX_INTERVAL = 4096;
+
+  private static final int INDEX_HEADER = 40;
+  private static final int INDEX_ENTRY = Long.BYTES * 2 + Integer.BYTES;
+  private static final int HEADER_COUNT = 0;
+  private static final int HEADER_SEALED = 4;
+  private static final int HEADER_MIN_TIMESTAMP = 8;
+  private static final int HEADER_MAX_TIMESTAMP = 16;
+  private static final int HEADER_NEXT_SEQ = 24;
+  private static final int HEADER_SIZE = 32;
+
+  private final long baseSeq;
+  private final Path logPath;
+  private final Path indexPath;
+  private final FileChannel channel;
+  private MappedByteBuffer index;
+  private int indexCapacity;
+  private int indexCount;
+  private long lastIndexed = -INDEX_INTERVAL;
+  private long size;
+  private long nextSeq;
+  private long minTimestamp = Long.MAX_VALUE;
+  private long maxTimestamp = Long.MIN_VALUE;
+  private boolean sealed;
+  private boolean closed;
+
+  private Segment(Path dir, long baseSeq) throws IOException {
+    this.baseSeq = baseSeq;
+    String name = String.format("%020d", baseSeq);
+    logPath = dir.resolve(name + LOG_SUFFIX);
+    indexPath = dir.resolve(name + INDEX_SUFFIX);
+    channel =
+        FileChannel.open(
+            logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    nextSeq = baseSeq;
+  }
+
+  /**
+   * Open the segment starting at the sequence number, creating it if needed.
+   *
+   * @param dir the directory of the segments
+   * @param baseSeq the sequence number of the first event of the segment
+   * @param maxSize the size beyond which the segment is full
+   * @return the segment
+   * @throws IOException if the segment cannot be read or created
+   */
+  static Segment open(Path dir, long baseSeq, long maxSize) throws IOException {
+    Segment segment = new Segment(dir, baseSeq);
+    try {
+      if (!segment.loadSealedIndex()) {
+        segment.recover(maxSize);
+      }
+    } catch (IOException e) {
+      segment.close();
+      throw e;
+    }
+    return segment;
+  }
+
+  /**
+   * Get the sequence number of the first event of the segment from the name of its file.
+   *
+   * @param logFile the file of the segment
+   * @return the sequence number, or -1 if the file is not one of a segment
+   */
+  static long parseBaseSeq(Path logFile) {
+    String name = logFile.getFileName().toString();
+    if (!name.endsWith(LOG_SUFFIX)) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private boolean loadSealedIndex() throws IOException {
+    if (!Files.exists(indexPath) || Files.size(indexPath) < INDEX_HEADER) {
+      return false;
+    }
+    try (FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+      MappedByteBuffer sealedIndex =
+          indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+      if (sealedIndex.getInt(HEADER_SEALED) != 1
+          || sealedIndex.getLong(HEADER_SIZE) != channel.size()) {
+        return false;
+      }
+      index = sealedIndex;
+      indexCount = sealedIndex.getInt(HEADER_COUNT);
+      indexCapacity = indexCount;
+      minTimestamp = sealedIndex.getLong(HEADER_MIN_TIMESTAMP);
+      maxTimestamp = sealedIndex.getLong(HEADER_MAX_TIMESTAMP);
+      nextSeq = sealedIndex.getLong(HEADER_NEXT_SEQ);
+      size = channel.size();
+      sealed = true;
+      return true;
+    }
+  }
+
+  /** Scan the records of the segment to rebuild its index, and drop an incomplete last record. */
+  private void recover(long maxSize) throws IOException {
+    mapIndex(Math.max(maxSize, channel.size()));
+    size = EventRecords.recover(channel, logPath, this::indexRecord);
+    writeIndexHeader();
+  }
+
+  private void mapIndex(long maxSize) throws IOException {
+    indexCapacity = (int) (maxSize / INDEX_INTERVAL) + 2;
+    try (FileChannel indexChannel =
+        FileChannel.open(
+            indexPath,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      index =
+          indexChannel.map(
+              FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) indexCapacity * INDEX_ENTRY);
+    }
+  }
+
+  private void indexRecord(long position, long seq, long timestamp) {
+    if (position - lastIndexed >= INDEX_INTERVAL && indexCount < indexCapacity) {
+      int offset = INDEX_HEADER + indexCount * INDEX_ENTRY;
+      index.putLong(offset, maxTimestamp);
+      index.putLong(offset + Long.BYTES, seq);
+      index.putInt(offset + Long.BYTES * 2, (int) position);
+      indexCount++;
+      lastIndexed = position;
+    }
+    nextSeq = seq + 1;
+    minTimestamp = Math.min(minTimestamp, timestamp);
+    maxTimestamp = Math.max(maxTimestamp, timestamp);
+  }
+
+  private void writeIndexHeader() {
+    index.putInt(HEADER_COUNT, indexCount);
+    index.putInt(HEADER_SEALED, sealed ? 1 : 0);
+    index.putLong(HEADER_MIN_TIMESTAMP, minTimestamp);
+    index.putLong(HEADER_MAX_TIMESTAMP, maxTimestamp);
+    index.putLong(HEADER_NEXT_SEQ, nextSeq);
+    index.putLong(HEADER_SIZE, size);
+  }
+
+  /**
+   * Append an event to the segment.
+   *
+   * @param timestamp the creation time of the event, in seconds since the epoch
+   * @param project the name of the project of the event
+   * @param event the event in JSON format
+   * @return the sequence number of the event
+   * @throws IOException if the event cannot be written
+   */
+  synchronized long append(long timestamp, byte[] project, byte[] event) throws IOException {
+    if (sealed || closed) {
+      throw new IOException(logPath + " is sealed");
+    }
+    long seq = nextSeq;
+    long position = size;
+    int length = EventRecords.write(channel, position, seq, timestamp, project, event);
+    indexRecord(position, seq, timestamp);
+    size += length;
+    writeIndexHeader();
+    return seq;
+  }
+
+  /**
+   * Read the events of the segment created within the time window and stored after the sequence
+   * number.
+   *
+   * @param from the earliest creation time, in seconds since the epoch
+   * @param to the latest creation time, in seconds since the epoch
+   * @param after the sequence number the events are stored after
+   * @return the events, in the order they were stored
+   * @throws IOException if the segment cannot be read
+   */
+  List<SegmentEntry> read(long from, long to, long after) throws IOException {
+    long start;
+    long end;
+    synchronized (this) {
+      if (closed || size == 0 || from > maxTimestamp || to < minTimestamp || after >= nextSeq - 1) {
+        return Collections.emptyList();
+      }
+      start = findStart(from, after);
+      end = size;
+    }
+    MappedByteBuffer records;
+    try {
+      // The mapping stays readable while later events are appended.
+      records = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    } catch (ClosedChannelException e) {
+      // The segment was removed by the retention meanwhile.
+      return Collections.emptyList();
+    }
+    List<SegmentEntry> entries = new ArrayList<>();
+    while (records.remaining() >= EventRecords.HEADER + EventRecords.FIXED) {
+      int length = records.getInt();
+      records.position(records.position() + Integer.BYTES);
+      int next = records.position() + length;
+      long seq = records.getLong();
+      long timestamp = records.getLong();
+      if (seq > after && timestamp >= from && timestamp <= to) {
+        int projectLength = records.getInt();
+        ByteBuffer project = records.slice(records.position(), projectLength);
+        ByteBuffer event =
+            records.slice(
+                records.position() + projectLength, next - records.position() - projectLength);
+        entries.add(new SegmentEntry(seq, timestamp, UTF_8.decode(project).toString(), event));
+      }
+      records.position(next);
+    }
+    return entries;
+  }
+
+  /** Find the position of the last index entry before which all events can be skipped. */
+  private long findStart(long from, long after) {
+    int low = 0;
+    int high = indexCount - 1;
+    int found = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int offset = INDEX_HEADER + mid * INDEX_ENTRY;
+      // The events before the entry are all older than its time and stored before its sequence.
+      if (index.getLong(offset) < from && index.getLong(offset + Long.BYTES) <= after + 1) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found < 0 ? 0 : index.getInt(INDEX_HEADER + found * INDEX_ENTRY + Long.BYTES * 2);
+  }
+
+  /** Write the appended events to disk and mark the segment as complete. */
+  synchronized void seal() throws IOException {
+    channel.force(false);
+    sealed = true;
+    writeIndexHeader();
+    index.force();
+  }
+
+  synchronized void force() throws IOException {
+    if (!closed && !sealed) {
+      channel.force(false);
+      index.force();
+    }
+  }
+
+  synchronized long size() {
+    return size;
+  }
+
+  synchronized boolean isSealed() {
+    return sealed;
+  }
+
+  synchronized long nextSeq() {
+    return nextSeq;
+  }
+
+  synchronized long maxTimestamp() {
+    return maxTimestamp;
+  }
+
+  long baseSeq() {
+    return baseSeq;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      channel.close();
+    }
+  }
+
+  /** Close the segment and delete its files. */
+  synchronized void delete() throws IOException {
+    close();
+    Files.deleteIfExists(indexPath);
+    Files.deleteIfExists(logPath);
+  }
+}
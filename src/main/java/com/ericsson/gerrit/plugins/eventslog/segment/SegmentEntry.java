@@ -0,0 +1,50 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.segment;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+
+/** An event read from a segment. The event itself is only decoded when asked for. */
+final class SegmentEntry {
+  private final long seq;
+  private final long timestamp;
+  private final String project;
+  private final ByteBuffer event;
+
+  SegmentEntry(long seq, long timestamp, String project, ByteBuffer event) {
+    this.seq = seq;
+    this.timestamp = timestamp;
+    this.project = project;
+    this.event = event;
+  }
+
+  long getSeq() {
+    return seq;
+  }
+
+  long getTimestamp() {
+    return timestamp;
+  }
+
+  String getProject() {
+    return project;
+  }
+
+  String getEvent() {
+    return UTF_8.decode(event.duplicate()).toString();
+  }
+}
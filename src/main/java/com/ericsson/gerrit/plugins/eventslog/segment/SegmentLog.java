@@ -0,0 +1,223 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.segment;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The event log: a directory of segments, written one after the other. A new segment is started
+ * once the last one reaches the maximum size, and the oldest segments are removed as a whole by the
+ * retention.
+ */
+final class SegmentLog implements Closeable {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  /** Receives the events of the log. */
+  @FunctionalInterface
+  interface EntryConsumer {
+    void accept(SegmentEntry entry) throws IOException;
+  }
+
+  /** Keeps the events read from the log. */
+  @FunctionalInterface
+  interface EntryFilter {
+    boolean test(SegmentEntry entry);
+  }
+
+  private final Path dir;
+  private final long maxSize;
+  private final List<Segment> segments = new CopyOnWriteArrayList<>();
+  private Segment current;
+
+  private SegmentLog(Path dir, long maxSize) {
+    this.dir = dir;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Open the log in the directory, creating it if needed.
+   *
+   * @param dir the directory of the segments
+   * @param maxSize the size beyond which a new segment is started
+   * @return the log
+   * @throws IOException if the segments cannot be read or created
+   */
+  static SegmentLog open(Path dir, long maxSize) throws IOException {
+    Files.createDirectories(dir);
+    List<Long> baseSeqs = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + Segment.LOG_SUFFIX)) {
+      for (Path file : files) {
+        long baseSeq = Segment.parseBaseSeq(file);
+        if (baseSeq > 0) {
+          baseSeqs.add(baseSeq);
+        }
+      }
+    }
+    Collections.sort(baseSeqs);
+    SegmentLog segmentLog = new SegmentLog(dir, maxSize);
+    try {
+      for (long baseSeq : baseSeqs) {
+        segmentLog.segments.add(Segment.open(dir, baseSeq, maxSize));
+      }
+      if (segmentLog.segments.isEmpty()) {
+        segmentLog.segments.add(Segment.open(dir, 1, maxSize));
+      }
+      segmentLog.current = segmentLog.segments.get(segmentLog.segments.size() - 1);
+    } catch (IOException e) {
+      segmentLog.close();
+      throw e;
+    }
+    return segmentLog;
+  }
+
+  /**
+   * Append an event to the log.
+   *
+   * @param timestamp the creation time of the event, in seconds since the epoch
+   * @param project the name of the project of the event
+   * @param event the event in JSON format
+   * @return the sequence number of the event
+   * @throws IOException if the event cannot be written
+   */
+  synchronized long append(long timestamp, String project, String event) throws IOException {
+    // The last segment may be sealed already, if the plugin stopped before starting the next one.
+    if (current.isSealed() || current.size() >= maxSize) {
+      roll();
+    }
+    return current.append(timestamp, project.getBytes(UTF_8), event.getBytes(UTF_8));
+  }
+
+  private void roll() throws IOException {
+    if (!current.isSealed()) {
+      current.seal();
+    }
+    Segment next = Segment.open(dir, current.nextSeq(), maxSize);
+    segments.add(next);
+    current = next;
+    log.atFine().log("Started segment %d of the events log", next.baseSeq());
+  }
+
+  /**
+   * Read the events matching the query.
+   *
+   * @param query the query
+   * @param filter keeps the events to return
+   * @return the events, in the order they were stored
+   * @throws IOException if the segments cannot be read
+   */
+  List<SegmentEntry> read(SegmentQuery query, EntryFilter filter) throws IOException {
+    List<Segment> snapshot = new ArrayList<>(segments);
+    if (query.latest) {
+      Deque<SegmentEntry> entries = new ArrayDeque<>();
+      for (int i = snapshot.size() - 1; i >= 0; i--) {
+        List<SegmentEntry> read = snapshot.get(i).read(query.from, query.to, query.after);
+        for (int j = read.size() - 1; j >= 0; j--) {
+          if (filter.test(read.get(j))) {
+            entries.addFirst(read.get(j));
+            if (query.hasLimit() && entries.size() == query.limit) {
+              return new ArrayList<>(entries);
+            }
+          }
+        }
+      }
+      return new ArrayList<>(entries);
+    }
+    List<SegmentEntry> entries = new ArrayList<>();
+    for (Segment segment : snapshot) {
+      for (SegmentEntry entry : segment.read(query.from, query.to, query.after)) {
+        if (filter.test(entry)) {
+          entries.add(entry);
+          if (query.hasLimit() && entries.size() == query.limit) {
+            return entries;
+          }
+        }
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Pass the events matching the query to the consumer, one segment at a time.
+   *
+   * @param query the query
+   * @param consumer receives the events, in the order they were stored
+   * @throws IOException if the segments cannot be read or the consumer fails
+   */
+  void forEach(SegmentQuery query, EntryConsumer consumer) throws IOException {
+    for (Segment segment : new ArrayList<>(segments)) {
+      for (SegmentEntry entry : segment.read(query.from, query.to, query.after)) {
+        consumer.accept(entry);
+      }
+    }
+  }
+
+  /**
+   * Remove the segments whose events were all created before the given time. The segment being
+   * written is always kept.
+   *
+   * @param timestamp the time, in seconds since the epoch
+   * @return the number of segments removed
+   * @throws IOException if a segment cannot be deleted
+   */
+  synchronized int removeOlderThan(long timestamp) throws IOException {
+    int removed = 0;
+    for (Segment segment : segments) {
+      if (segment == current || segment.maxTimestamp() >= timestamp) {
+        break;
+      }
+      segments.remove(segment);
+      segment.delete();
+      removed++;
+    }
+    return removed;
+  }
+
+  /**
+   * Write the events appended to the segment being written to disk.
+   *
+   * @throws IOException if the events cannot be written
+   */
+  void force() throws IOException {
+    Segment segment;
+    synchronized (this) {
+      segment = current;
+    }
+    segment.force();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (Segment segment : segments) {
+      try {
+        segment.close();
+      } catch (IOException e) {
+        log.atWarning().withCause(e).log("Cannot close segment %d", segment.baseSeq());
+      }
+    }
+  }
+}
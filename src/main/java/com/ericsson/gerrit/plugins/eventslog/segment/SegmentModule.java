@@ -0,0 +1,34 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.segment;
+
+import com.ericsson.gerrit.plugins.eventslog.EventModule;
+import com.ericsson.gerrit.plugins.eventslog.EventStore;
+import com.ericsson.gerrit.plugins.eventslog.QueryMaker;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.AbstractModule;
+import com.google.inject.internal.UniqueAnnotations;
+
+/** Stores the events in a log of segment files on the local disk. */
+public class SegmentModule extends AbstractModule {
+
+  @Override
+  protected void configure() {
+    install(new EventModule());
+    bind(EventStore.class).to(SegmentStore.class);
+    bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create()).to(SegmentStore.class);
+    bind(QueryMaker.class).to(SegmentQueryMaker.class);
+  }
+}
@@ -0,0 +1,84 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.segment;
+
+import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A query on the segment log: the events created within a time window, stored after a sequence
+ * number, up to a limit.
+ */
+final class SegmentQuery {
+  private static final String FROM = "from";
+  private static final String TO = "to";
+  private static final String AFTER = "after";
+  private static final String LIMIT = "limit";
+  private static final String LATEST = "latest";
+
+  final long from;
+  final long to;
+  final long after;
+  final int limit;
+  final boolean latest;
+
+  /**
+   * @param from the earliest creation time of the events, in seconds since the epoch
+   * @param to the latest creation time of the events, in seconds since the epoch
+   * @param after the sequence number the events are stored after
+   * @param limit the maximum number of events, or 0 for no limit
+   * @param latest whether to get the latest events within the limit, rather than the first ones
+   */
+  SegmentQuery(long from, long to, long after, int limit, boolean latest) {
+    this.from = from;
+    this.to = to;
+    this.after = after;
+    this.limit = limit;
+    this.latest = latest;
+  }
+
+  static SegmentQuery parse(String query) throws MalformedQueryException {
+    Map<String, String> values = new HashMap<>();
+    for (String part : query.split(";")) {
+      int equalsPos = part.indexOf('=');
+      if (equalsPos < 0) {
+        throw new MalformedQueryException();
+      }
+      values.put(part.substring(0, equalsPos), part.substring(equalsPos + 1));
+    }
+    try {
+      return new SegmentQuery(
+          Long.parseLong(values.getOrDefault(FROM, String.valueOf(Long.MIN_VALUE))),
+          Long.parseLong(values.getOrDefault(TO, String.valueOf(Long.MAX_VALUE))),
+          Long.parseLong(values.getOrDefault(AFTER, "0")),
+          Integer.parseInt(values.getOrDefault(LIMIT, "0")),
+          Boolean.parseBoolean(values.get(LATEST)));
+    } catch (NumberFormatException e) {
+      throw new MalformedQueryException(e);
+    }
+  }
+
+  boolean hasLimit() {
+    return limit > 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s=%d;%s=%d;%s=%d;%s=%d;%s=%b",
+        FROM, from, TO, to, AFTER, after, LIMIT, limit, LATEST, latest);
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.segment;
+
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.FieldProjection;
+import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
+import com.ericsson.gerrit.plugins.eventslog.QueryDates;
+import com.ericsson.gerrit.plugins.eventslog.QueryMaker;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+/** Forms queries on the segment log. Projected fields are applied to the whole events read. */
+@Singleton
+class SegmentQueryMaker implements QueryMaker {
+  private static final String TIME_ONE = "t1";
+  private static final String TIME_TWO = "t2";
+  private static final String AFTER = "after";
+  private static final String SEARCH = "search";
+
+  private final int returnLimit;
+
+  @Inject
+  SegmentQueryMaker(EventsLogConfig config) {
+    this.returnLimit = config.getReturnLimit();
+  }
+
+  @Override
+  public String formQueryFromRequestParameters(Map<String, String> params)
+      throws MalformedQueryException {
+    if (params == null) {
+      return getDefaultQuery();
+    }
+    FieldProjection.parse(params.get(FieldProjection.FIELDS));
+    // Events are only indexed when stored in a database.
+    if (params.get(SEARCH) != null) {
+      throw new MalformedQueryException();
+    }
+    if (params.get(TIME_ONE) == null && params.get(TIME_TWO) == null) {
+      if (params.containsKey(FieldProjection.FIELDS)) {
+        return getDefaultQuery();
+      }
+      throw new MalformedQueryException();
+    }
+    long[] dates = parseDates(params.get(TIME_ONE), params.get(TIME_TWO));
+    return new SegmentQuery(dates[0], dates[1], 0, returnLimit, false).toString();
+  }
+
+  /** {@inheritDoc} The whole time window is always covered by a single query. */
+  @Override
+  public List<String> formQueriesFromRequestParameters(Map<String, String> params)
+      throws MalformedQueryException {
+    return ImmutableList.of(formQueryFromRequestParameters(params));
+  }
+
+  /** {@inheritDoc} Event counts are not kept in the segment log. */
+  @Override
+  public String formCountsQueryFromRequestParameters(Map<String, String> params)
+      throws MalformedQueryException {
+    throw new MalformedQueryException();
+  }
+
+  @Override
+  public String formExportQueryFromRequestParameters(Map<String, String> params)
+      throws MalformedQueryException {
+    long after = 0;
+    long[] dates = {Long.MIN_VALUE, Long.MAX_VALUE};
+    if (params != null && params.get(AFTER) != null) {
+      try {
+        after = Long.parseLong(params.get(AFTER));
+      } catch (NumberFormatException e) {
+        throw new MalformedQueryException(e);
+      }
+    }
+    if (params != null && (params.get(TIME_ONE) != null || params.get(TIME_TWO) != null)) {
+      dates = parseDates(params.get(TIME_ONE), params.get(TIME_TWO));
+    }
+    return new SegmentQuery(dates[0], dates[1], after, 0, false).toString();
+  }
+
+  @Override
+  public String getDefaultQuery() {
+    return new SegmentQuery(Long.MIN_VALUE, Long.MAX_VALUE, 0, returnLimit, true).toString();
+  }
+
+  private static long[] parseDates(String dateOne, String dateTwo) throws MalformedQueryException {
+    LocalDateTime[] dates = QueryDates.parseRange(dateOne, dateTwo);
+    return new long[] {QueryDates.toEpochSecond(dates[0]), QueryDates.toEpochSecond(dates[1])};
+  }
+}
@@ -0,0 +1,249 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.segment;
+
+import com.ericsson.gerrit.plugins.eventslog.EventCleanerPool;
+import com.ericsson.gerrit.plugins.eventslog.EventPool;
+import com.ericsson.gerrit.plugins.eventslog.EventStore;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogException;
+import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
+import com.ericsson.gerrit.plugins.eventslog.ServiceUnavailableException;
+import com.google.common.base.Supplier;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.server.events.ProjectEvent;
+import com.google.gerrit.server.events.SupplierSerializer;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.permissions.PermissionBackendException;
+import com.google.gerrit.server.permissions.ProjectPermission;
+import com.google.gerrit.server.util.time.TimeUtil;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores the events in a log of segment files on the local disk, rather than in a database.
+ *
+ * <p>Events are appended as they come and written to disk every second. Queries scan the segments
+ * overlapping their time window, skipping with the index of each segment what comes before it. The
+ * retention removes whole segments once all their events are older than the maximum age.
+ */
+@Singleton
+class SegmentStore implements EventStore, LifecycleListener {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+  private static final long BYTES_PER_MB = 1024L * 1024L;
+  private static final long FORCE_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+  private static final long RETENTION_INTERVAL = TimeUnit.DAYS.toSeconds(1);
+
+  private final Gson gson =
+      new GsonBuilder().registerTypeAdapter(Supplier.class, new SupplierSerializer()).create();
+  private final Path path;
+  private final long segmentSize;
+  private final int maxAge;
+  private final int returnLimit;
+  private final ScheduledExecutorService pool;
+  private final ScheduledExecutorService cleanerPool;
+  private final PermissionBackend permissionBackend;
+  private volatile SegmentLog segmentLog;
+  private ScheduledFuture<?> forceTask;
+  private ScheduledFuture<?> retentionTask;
+
+  @Inject
+  SegmentStore(
+      EventsLogConfig cfg,
+      @EventPool ScheduledExecutorService pool,
+      @EventCleanerPool ScheduledExecutorService cleanerPool,
+      PermissionBackend permissionBackend) {
+    this.path = cfg.getSegmentPath();
+    this.segmentSize = cfg.getSegmentSize() * BYTES_PER_MB;
+    this.maxAge = cfg.getMaxAge();
+    this.returnLimit = cfg.getReturnLimit();
+    this.pool = pool;
+    this.cleanerPool = cleanerPool;
+    this.permissionBackend = permissionBackend;
+  }
+
+  @Override
+  public void start() {
+    try {
+      segmentLog = SegmentLog.open(path, segmentSize);
+    } catch (IOException e) {
+      log.atSevere().withCause(e).log("Cannot open the events log in %s", path);
+      return;
+    }
+    forceTask =
+        pool.scheduleWithFixedDelay(
+            this::force, FORCE_INTERVAL, FORCE_INTERVAL, TimeUnit.MILLISECONDS);
+    retentionTask =
+        cleanerPool.scheduleAtFixedRate(
+            this::removeOldSegments, 0, RETENTION_INTERVAL, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (forceTask != null) {
+      forceTask.cancel(false);
+    }
+    if (retentionTask != null) {
+      retentionTask.cancel(false);
+    }
+    if (segmentLog != null) {
+      try {
+        segmentLog.force();
+        segmentLog.close();
+      } catch (IOException e) {
+        log.atWarning().withCause(e).log("Cannot close the events log");
+      }
+    }
+  }
+
+  @Override
+  public void storeEvent(ProjectEvent event) {
+    Project.NameKey projectName = event.getProjectNameKey();
+    if (projectName == null || segmentLog == null) {
+      return;
+    }
+    try {
+      segmentLog.append(event.eventCreatedOn, projectName.get(), gson.toJson(event));
+    } catch (IOException e) {
+      log.atSevere().withCause(e).log(
+          "Cannot store %s event of project %s", event.getType(), projectName.get());
+    }
+  }
+
+  /**
+   * {@inheritDoc} The events returned are restricted to the projects which are visible to the user.
+   *
+   * @throws ServiceUnavailableException if the events log cannot be opened
+   */
+  @Override
+  public List<String> queryChangeEvents(String query) throws EventsLogException {
+    SegmentLog current = getSegmentLog();
+    Map<String, Boolean> visible = new HashMap<>();
+    PermissionBackend.WithUser user = permissionBackend.currentUser();
+    List<SegmentEntry> entries;
+    try {
+      entries =
+          current.read(
+              SegmentQuery.parse(query),
+              entry -> visible.computeIfAbsent(entry.getProject(), name -> isVisible(user, name)));
+    } catch (IOException e) {
+      throw new EventsLogException("Cannot read the events log", e);
+    }
+    List<String> events = new ArrayList<>(entries.size());
+    for (SegmentEntry entry : entries) {
+      events.add(entry.getEvent());
+    }
+    return events;
+  }
+
+  /**
+   * {@inheritDoc} A single query covers the whole time window, so the queries are run one after the
+   * other until the limit is reached.
+   */
+  @Override
+  public List<String> queryChangeEvents(List<String> queries) throws EventsLogException {
+    List<String> events = new ArrayList<>();
+    for (String query : queries) {
+      List<String> part = queryChangeEvents(query);
+      events.addAll(part.subList(0, Math.min(part.size(), returnLimit - events.size())));
+      if (events.size() >= returnLimit) {
+        break;
+      }
+    }
+    return events;
+  }
+
+  /** {@inheritDoc} Event counts are not kept in the events log. */
+  @Override
+  public List<String> queryEventCounts(String query) throws EventsLogException {
+    throw new MalformedQueryException();
+  }
+
+  /**
+   * {@inheritDoc} The events exported are restricted to the projects which are visible to the user.
+   * Their identifiers are their sequence numbers in the events log.
+   *
+   * @throws ServiceUnavailableException if the events log cannot be opened
+   */
+  @Override
+  public void exportChangeEvents(String query, EventSink sink)
+      throws EventsLogException, IOException {
+    SegmentLog current = getSegmentLog();
+    PermissionBackend.WithUser user = permissionBackend.currentUser();
+    Map<String, Boolean> visible = new HashMap<>();
+    current.forEach(
+        SegmentQuery.parse(query),
+        entry -> {
+          if (visible.computeIfAbsent(entry.getProject(), name -> isVisible(user, name))) {
+            sink.write(entry.getSeq(), entry.getProject(), entry.getEvent());
+          }
+        });
+  }
+
+  private SegmentLog getSegmentLog() throws ServiceUnavailableException {
+    SegmentLog current = segmentLog;
+    if (current == null) {
+      throw new ServiceUnavailableException();
+    }
+    return current;
+  }
+
+  private static boolean isVisible(PermissionBackend.WithUser user, String projectName) {
+    try {
+      user.project(Project.nameKey(projectName)).check(ProjectPermission.ACCESS);
+      return true;
+    } catch (AuthException e) {
+      // Ignore
+    } catch (PermissionBackendException e) {
+      log.atWarning().withCause(e).log("Cannot check project access permission");
+    }
+    return false;
+  }
+
+  private void force() {
+    try {
+      segmentLog.force();
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot write the events log to disk");
+    }
+  }
+
+  private void removeOldSegments() {
+    long oldest =
+        TimeUnit.MILLISECONDS.toSeconds(TimeUtil.nowMs()) - TimeUnit.DAYS.toSeconds(maxAge);
+    try {
+      int removed = segmentLog.removeOlderThan(oldest);
+      if (removed > 0) {
+        log.atInfo().log("Removed %d segments of events older than %d days", removed, maxAge);
+      }
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot remove old events");
+    }
+  }
+}
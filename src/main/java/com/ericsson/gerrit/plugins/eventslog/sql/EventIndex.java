@@ -0,0 +1,411 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogException;
+import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
+import com.ericsson.gerrit.plugins.eventslog.ServiceUnavailableException;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * A local Lucene index of the events stored in the database, to search them by their content.
+ *
+ * <p>Each event is indexed with its type, change, revision, uploader, author, branch and message,
+ * and points back to its row by its identifier. Events are indexed as they are stored, so the index
+ * only covers the events stored since it was enabled. It is not available on Cloud Spanner, whose
+ * identifiers are not numbers.
+ *
+ * <p>Indexed events are searchable right away, from the near real-time view of the writer, but are
+ * only written to disk once a minute and when the index is closed: the events indexed in the last
+ * minute before a crash are not found afterwards.
+ */
+@Singleton
+class EventIndex implements LifecycleListener {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  static final String ID = "id";
+
+  /** The identifier as a term, which the event is replaced by when it is indexed again. */
+  static final String KEY = "key";
+
+  static final String PROJECT = "project";
+  static final String TIMESTAMP = "timestamp";
+  static final String TYPE = "type";
+  static final String CHANGE = "change";
+  static final String REVISION = "revision";
+  static final String UPLOADER = "uploader";
+  static final String AUTHOR = "author";
+  static final String BRANCH = "branch";
+  static final String MESSAGE = "message";
+
+  private static final String REFS_HEADS = "refs/heads/";
+  private static final long COMMIT_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+  /** The number of hits per page is this many times the limit, as some may not be visible. */
+  private static final int PAGE_FACTOR = 2;
+
+  private final boolean enabled;
+  private final Path path;
+  private final Analyzer analyzer =
+      new PerFieldAnalyzerWrapper(
+          new KeywordAnalyzer(), ImmutableMap.of(MESSAGE, new StandardAnalyzer()));
+  private IndexWriter writer;
+  private SearcherManager searcherManager;
+  private long lastCommit;
+
+  @Inject
+  EventIndex(EventsLogConfig cfg) {
+    this.enabled =
+        cfg.getIndexEvents() && SQLDialect.fromJdbcUrl(cfg.getStoreUrl()) != SQLDialect.SPANNER;
+    this.path = cfg.getIndexPath();
+  }
+
+  @Override
+  public synchronized void start() {
+    if (!enabled) {
+      return;
+    }
+    try {
+      writer = new IndexWriter(FSDirectory.open(path), new IndexWriterConfig(analyzer));
+      searcherManager = new SearcherManager(writer, null);
+      lastCommit = System.nanoTime();
+    } catch (IOException e) {
+      log.atSevere().withCause(e).log("Cannot open the events index in %s", path);
+      writer = null;
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (writer == null) {
+      return;
+    }
+    try {
+      searcherManager.close();
+      writer.close();
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot close the events index");
+    }
+    writer = null;
+  }
+
+  /**
+   * Whether the index is enabled and open.
+   *
+   * @return true if events can be indexed and searched
+   */
+  synchronized boolean isOpen() {
+    return writer != null;
+  }
+
+  /**
+   * Index an event. The event can be searched once the index is refreshed.
+   *
+   * @param id the identifier of the event in the database
+   * @param project the name of the project of the event
+   * @param timestamp the creation time of the event
+   * @param eventJson the event in JSON format
+   */
+  void add(long id, String project, Instant timestamp, String eventJson) {
+    IndexWriter current = getWriter();
+    if (current == null) {
+      return;
+    }
+    try {
+      // Replace the event if it was already indexed, such as when it was stored again.
+      current.updateDocument(
+          new Term(KEY, Long.toString(id)), toDocument(id, project, timestamp, eventJson));
+    } catch (IOException | JsonParseException | IllegalStateException e) {
+      log.atWarning().withCause(e).log("Cannot index event %d of project %s", id, project);
+    }
+  }
+
+  /** Make the indexed events searchable. They are written to disk if they were not for a minute. */
+  synchronized void refresh() {
+    if (writer == null) {
+      return;
+    }
+    try {
+      searcherManager.maybeRefresh();
+      if (System.nanoTime() - lastCommit >= COMMIT_INTERVAL) {
+        commit();
+      }
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot refresh the events index");
+    }
+  }
+
+  /** Write the indexed events to disk and make them searchable. */
+  synchronized void commit() {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.commit();
+      lastCommit = System.nanoTime();
+      searcherManager.maybeRefresh();
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot commit the events index");
+    }
+  }
+
+  /**
+   * Remove the events created before the given time.
+   *
+   * @param timestamp the time
+   */
+  void removeOlderThan(Instant timestamp) {
+    delete(LongPoint.newRangeQuery(TIMESTAMP, Long.MIN_VALUE, timestamp.getEpochSecond() - 1));
+  }
+
+  /**
+   * Remove the events of a project.
+   *
+   * @param project the name of the project
+   */
+  void removeProject(String project) {
+    IndexWriter current = getWriter();
+    if (current == null) {
+      return;
+    }
+    try {
+      current.deleteDocuments(new Term(PROJECT, project));
+      commit();
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot remove the events of %s from the index", project);
+    }
+  }
+
+  private void delete(Query query) {
+    IndexWriter current = getWriter();
+    if (current == null) {
+      return;
+    }
+    try {
+      current.deleteDocuments(query);
+      commit();
+    } catch (IOException e) {
+      log.atWarning().withCause(e).log("Cannot remove events from the index");
+    }
+  }
+
+  /**
+   * Search the events, latest first. The hits are read a page at a time, and those of the projects
+   * which are not visible are skipped, until the limit is reached.
+   *
+   * @param search the search, in Lucene query syntax; terms without a field are searched in the
+   *     message
+   * @param from the earliest creation time, in seconds since the epoch
+   * @param to the latest creation time, in seconds since the epoch
+   * @param limit the maximum number of events
+   * @param visibleProjects gets which of the given projects are visible
+   * @return the identifiers of the events found
+   * @throws MalformedQueryException if the index is not open or the search is not valid
+   * @throws ServiceUnavailableException if the index cannot be read
+   */
+  List<Long> search(
+      String search,
+      long from,
+      long to,
+      int limit,
+      Function<Set<String>, Set<String>> visibleProjects)
+      throws EventsLogException {
+    if (getWriter() == null) {
+      throw new MalformedQueryException();
+    }
+    Query query;
+    try {
+      query =
+          new BooleanQuery.Builder()
+              .add(new QueryParser(MESSAGE, analyzer).parse(search), BooleanClause.Occur.MUST)
+              .add(LongPoint.newRangeQuery(TIMESTAMP, from, to), BooleanClause.Occur.FILTER)
+              .build();
+    } catch (ParseException e) {
+      throw new MalformedQueryException(e);
+    }
+    Sort latestFirst = new Sort(new SortField(ID, SortField.Type.LONG, true));
+    int pageSize = limit * PAGE_FACTOR;
+    Map<String, Boolean> visible = new HashMap<>();
+    List<Long> ids = new ArrayList<>(limit);
+    try {
+      IndexSearcher searcher = searcherManager.acquire();
+      try {
+        StoredFields storedFields = searcher.storedFields();
+        FieldDoc after = null;
+        TopDocs page;
+        do {
+          page = searcher.searchAfter(after, query, pageSize, latestFirst);
+          List<Document> docs = new ArrayList<>(page.scoreDocs.length);
+          Set<String> unknown = new HashSet<>();
+          for (ScoreDoc hit : page.scoreDocs) {
+            Document doc = storedFields.document(hit.doc);
+            docs.add(doc);
+            String project = doc.get(PROJECT);
+            if (project != null && !visible.containsKey(project)) {
+              unknown.add(project);
+            }
+          }
+          if (!unknown.isEmpty()) {
+            Set<String> visibleUnknown = visibleProjects.apply(unknown);
+            unknown.forEach(project -> visible.put(project, visibleUnknown.contains(project)));
+          }
+          for (Document doc : docs) {
+            // The project of the events indexed before it was stored is checked once the event is
+            // read from the database.
+            String project = doc.get(PROJECT);
+            if (project == null || visible.get(project)) {
+              ids.add(doc.getField(ID).numericValue().longValue());
+              if (ids.size() == limit) {
+                return ids;
+              }
+            }
+          }
+          if (page.scoreDocs.length > 0) {
+            after = (FieldDoc) page.scoreDocs[page.scoreDocs.length - 1];
+          }
+        } while (page.scoreDocs.length == pageSize);
+        return ids;
+      } finally {
+        searcherManager.release(searcher);
+      }
+    } catch (IndexSearcher.TooManyClauses e) {
+      throw new MalformedQueryException(e);
+    } catch (IOException e) {
+      throw new ServiceUnavailableException("Cannot search the events index", e);
+    }
+  }
+
+  private synchronized IndexWriter getWriter() {
+    return writer;
+  }
+
+  private static Document toDocument(long id, String project, Instant timestamp, String eventJson) {
+    JsonObject event = JsonParser.parseString(eventJson).getAsJsonObject();
+    Document doc = new Document();
+    doc.add(new LongPoint(ID, id));
+    doc.add(new StoredField(ID, id));
+    doc.add(new NumericDocValuesField(ID, id));
+    doc.add(new StringField(KEY, Long.toString(id), Field.Store.NO));
+    doc.add(new StringField(PROJECT, project, Field.Store.YES));
+    doc.add(new LongPoint(TIMESTAMP, timestamp.getEpochSecond()));
+    addKeyword(doc, TYPE, event.get("type"));
+
+    JsonObject change = getObject(event, "change");
+    JsonObject patchSet = getObject(event, "patchSet");
+    JsonObject refUpdate = getObject(event, "refUpdate");
+    if (change != null) {
+      addKeyword(doc, CHANGE, change.get("number"));
+      addKeyword(doc, CHANGE, change.get("id"));
+      addKeyword(doc, BRANCH, change.get("branch"));
+      addText(doc, change.get("subject"));
+      addText(doc, change.get("commitMessage"));
+    }
+    if (patchSet != null) {
+      addKeyword(doc, REVISION, patchSet.get("revision"));
+      addAccount(doc, UPLOADER, getObject(patchSet, "uploader"));
+    }
+    if (refUpdate != null) {
+      addKeyword(doc, REVISION, refUpdate.get("newRev"));
+      JsonElement refName = refUpdate.get("refName");
+      if (refName != null && refName.isJsonPrimitive()) {
+        String branch = refName.getAsString();
+        addKeyword(
+            doc,
+            BRANCH,
+            branch.startsWith(REFS_HEADS) ? branch.substring(REFS_HEADS.length()) : branch);
+      }
+    }
+    addAccount(doc, UPLOADER, getObject(event, "uploader"));
+    addAccount(doc, AUTHOR, getObject(event, "author"));
+    addText(doc, event.get("comment"));
+    return doc;
+  }
+
+  private static JsonObject getObject(JsonObject parent, String name) {
+    JsonElement element = parent.get(name);
+    return element != null && element.isJsonObject() ? element.getAsJsonObject() : null;
+  }
+
+  private static void addAccount(Document doc, String field, JsonObject account) {
+    if (account != null) {
+      addKeyword(doc, field, account.get("username"));
+      addKeyword(doc, field, account.get("email"));
+    }
+  }
+
+  private static void addKeyword(Document doc, String field, JsonElement value) {
+    if (value != null && value.isJsonPrimitive()) {
+      addKeyword(doc, field, value.getAsString());
+    }
+  }
+
+  private static void addKeyword(Document doc, String field, String value) {
+    doc.add(new StringField(field, value, Field.Store.NO));
+  }
+
+  private static void addText(Document doc, JsonElement value) {
+    if (value != null && value.isJsonPrimitive()) {
+      doc.add(new TextField(MESSAGE, value.getAsString(), Field.Store.NO));
+    }
+  }
+}
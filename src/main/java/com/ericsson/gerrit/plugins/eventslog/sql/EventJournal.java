@@ -0,0 +1,276 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.ericsson.gerrit.plugins.eventslog.EventsLogException;
+import com.ericsson.gerrit.plugins.eventslog.segment.EventRecords;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.server.events.ProjectEvent;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the events in a journal file while the database is offline, rather than in a local
+ * database: the events are appended to the file, then read back in order when they are restored.
+ *
+ * <p>Each event is stored as one of the {@link EventRecords}, as in the segments of the segment
+ * store, its key followed by a line break preceding the event itself. The records appended
+ * meanwhile are written to disk together, {@link #SYNC_DELAY} milliseconds after the first of them
+ * or once a batch is stored. A record which was not completely written is dropped when the journal
+ * is opened.
+ *
+ * <p>The journal is emptied once all its events are restored. If the plugin stops midway, the
+ * events are all restored again the next time, which the database ignores for the ones it has.
+ * Nothing is opened until the journal is used.
+ */
+class EventJournal implements LocalEventStore {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  static final String SUFFIX = ".journal";
+  static final long SYNC_DELAY = 100;
+
+  private static final int KEY_LENGTH = 36;
+
+  private final Path file;
+  private final EventSerializer serializer = new EventSerializer(SQLDialect.H2);
+  private final ScheduledThreadPoolExecutor syncExecutor;
+  private FileChannel channel;
+  private long size;
+  private long firstSeq = 1;
+  private long nextSeq = 1;
+  private long removedUpTo;
+  private long readSeq = -1;
+  private long readPosition;
+  private boolean syncPending;
+
+  /**
+   * Create a journal.
+   *
+   * @param file the journal file
+   * @param pluginName the name of the plugin, to name the thread writing the journal to disk
+   */
+  EventJournal(Path file, String pluginName) {
+    this.file = file;
+    this.syncExecutor =
+        new ScheduledThreadPoolExecutor(
+            1,
+            new ThreadFactoryBuilder()
+                .setNameFormat(pluginName + "-journal")
+                .setDaemon(true)
+                .build());
+    // The thread only runs while events are written.
+    syncExecutor.setKeepAliveTime(SYNC_DELAY * 10, TimeUnit.MILLISECONDS);
+    syncExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  @Override
+  public synchronized void createDBIfNotCreated() throws SQLException {
+    try {
+      open();
+    } catch (IOException e) {
+      throw new SQLException("Cannot open " + file, e);
+    }
+  }
+
+  @Override
+  public boolean dbExists() {
+    return Files.exists(file);
+  }
+
+  @Override
+  public synchronized void storeEvent(ProjectEvent event) throws EventsLogException {
+    try {
+      append(new KeyedEvent(event));
+    } catch (IOException e) {
+      throw new EventsLogException("Cannot write event to " + file, e);
+    }
+    if (!syncPending && !syncExecutor.isShutdown()) {
+      syncPending = true;
+      syncExecutor.schedule(this::flush, SYNC_DELAY, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void storeEvents(List<KeyedEvent> events) throws SQLException {
+    try {
+      synchronized (this) {
+        for (KeyedEvent event : events) {
+          append(event);
+        }
+      }
+      sync();
+    } catch (IOException e) {
+      throw new SQLException("Cannot write events to " + file, e);
+    }
+  }
+
+  private void append(KeyedEvent keyed) throws IOException {
+    open();
+    ProjectEvent event = keyed.getEvent();
+    size +=
+        EventRecords.write(
+            channel,
+            size,
+            nextSeq,
+            event.eventCreatedOn,
+            event.getProjectNameKey().get().getBytes(UTF_8),
+            (keyed.getKey() + "\n" + serializer.serialize(event)).getBytes(UTF_8));
+    nextSeq++;
+  }
+
+  @Override
+  public void flush() {
+    try {
+      sync();
+    } catch (IOException e) {
+      log.atSevere().withCause(e).log("Cannot write the events of %s to disk", file);
+    }
+  }
+
+  /** Write the appended events to disk, without holding up the events appended meanwhile. */
+  private void sync() throws IOException {
+    FileChannel current;
+    synchronized (this) {
+      syncPending = false;
+      current = channel;
+    }
+    if (current != null && current.isOpen()) {
+      current.force(false);
+    }
+  }
+
+  @Override
+  public synchronized List<SQLEntry> getEntries(long afterId, int limit) throws SQLException {
+    List<SQLEntry> entries = new ArrayList<>(limit);
+    try {
+      open();
+      long after = Math.max(afterId, removedUpTo);
+      // Carry on from the previous read when restoring, rather than reading the journal again.
+      long position = after == readSeq ? readPosition : 0;
+      while (entries.size() < limit && position < size) {
+        ByteBuffer content = EventRecords.read(channel, file, position);
+        position += EventRecords.HEADER + content.capacity();
+        long seq = EventRecords.seq(content);
+        if (seq > after) {
+          String event = EventRecords.event(content);
+          String key = null;
+          // Events journaled by earlier versions of the plugin have no key.
+          if (event.length() > KEY_LENGTH && event.charAt(KEY_LENGTH) == '\n') {
+            key = event.substring(0, KEY_LENGTH);
+            event = event.substring(KEY_LENGTH + 1);
+          }
+          entries.add(
+              new SQLEntry(
+                  EventRecords.project(content),
+                  Instant.ofEpochSecond(EventRecords.timestamp(content)),
+                  event,
+                  seq,
+                  key));
+          readSeq = seq;
+          readPosition = position;
+        }
+      }
+    } catch (IOException e) {
+      throw new SQLException("Cannot read events from " + file, e);
+    }
+    return entries;
+  }
+
+  @Override
+  public synchronized long countEvents() throws SQLException {
+    createDBIfNotCreated();
+    return Math.max(nextSeq - Math.max(firstSeq, removedUpTo + 1), 0);
+  }
+
+  @Override
+  public synchronized void removeEventsUpTo(long id) throws SQLException {
+    removedUpTo = Math.max(removedUpTo, id);
+    if (channel == null || removedUpTo < nextSeq - 1) {
+      return;
+    }
+    try {
+      channel.truncate(0);
+      channel.force(false);
+    } catch (IOException e) {
+      throw new SQLException("Cannot empty " + file, e);
+    }
+    size = 0;
+    firstSeq = nextSeq;
+    readSeq = -1;
+  }
+
+  @Override
+  public void close() {
+    syncExecutor.shutdownNow();
+    flush();
+    synchronized (this) {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          log.atWarning().withCause(e).log("Cannot close %s", file);
+        }
+        channel = null;
+      }
+    }
+  }
+
+  private void open() throws IOException {
+    if (channel != null) {
+      return;
+    }
+    Files.createDirectories(file.getParent());
+    channel =
+        FileChannel.open(
+            file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    recover();
+  }
+
+  /** Find the end of the complete records of the journal, and drop an incomplete last record. */
+  private void recover() throws IOException {
+    long[] seqs = new long[2];
+    size =
+        EventRecords.recover(
+            channel,
+            file,
+            (position, seq, timestamp) -> {
+              if (seqs[0] == 0) {
+                seqs[0] = seq;
+              }
+              seqs[1] = seq;
+            });
+    firstSeq = seqs[0] > 0 ? seqs[0] : 1;
+    nextSeq = seqs[1] + 1;
+  }
+
+  @VisibleForTesting
+  synchronized long size() {
+    return size;
+  }
+}
@@ -0,0 +1,119 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import com.google.common.base.Supplier;
+import com.google.gerrit.server.events.ProjectEvent;
+import com.google.gerrit.server.events.SupplierSerializer;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.Writer;
+
+/**
+ * Serializes events to JSON for storing. Each thread writes into its own reused buffer, and the
+ * escaping the database needs is applied while writing rather than on a copy.
+ */
+class EventSerializer {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /** Buffers grown beyond this size by large events are not kept. */
+  private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+  private final Gson gson =
+      new GsonBuilder().registerTypeAdapter(Supplier.class, new SupplierSerializer()).create();
+  private final ThreadLocal<StringBuilder> buffers =
+      ThreadLocal.withInitial(() -> new StringBuilder(INITIAL_CAPACITY));
+  private final boolean escapeNewlines;
+
+  EventSerializer(SQLDialect databaseDialect) {
+    // Cloud Spanner reads escaped newlines in strings as actual newlines.
+    this.escapeNewlines = databaseDialect == SQLDialect.SPANNER;
+  }
+
+  /**
+   * Serialize the event.
+   *
+   * @param event the event to serialize
+   * @return the event as JSON
+   */
+  String serialize(ProjectEvent event) {
+    StringBuilder buffer = buffers.get();
+    buffer.setLength(0);
+    if (escapeNewlines) {
+      NewlineEscaper escaper = new NewlineEscaper(buffer);
+      gson.toJson(event, escaper);
+      escaper.close();
+    } else {
+      gson.toJson(event, buffer);
+    }
+    String json = buffer.toString();
+    if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+      buffers.remove();
+    }
+    return json;
+  }
+
+  /** Writes the characters to the buffer, doubling the backslash of each {@code \n} sequence. */
+  private static class NewlineEscaper extends Writer {
+    private final StringBuilder buffer;
+    private boolean backslash;
+
+    NewlineEscaper(StringBuilder buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int c) {
+      if (backslash) {
+        backslash = false;
+        buffer.append('\\');
+        if (c == 'n') {
+          buffer.append("\\n");
+          return;
+        }
+      }
+      if (c == '\\') {
+        backslash = true;
+      } else {
+        buffer.append((char) c);
+      }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        write(cbuf[i]);
+      }
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        write(str.charAt(i));
+      }
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {
+      if (backslash) {
+        backslash = false;
+        buffer.append('\\');
+      }
+    }
+  }
+}
@@ -55,9 +55,12 @@ public class EventsLogCleaner implements ProjectDeletedListener {
     pool.submit(new RemoveProjectEventsTask(pluginName, projectName));
   }
 
-  public void scheduleCleaningWith(int maxAge) {
+  public void scheduleCleaningWith(int maxAge, int countsMaxAge) {
     pool.scheduleAtFixedRate(
-        new RemoveOldEventsTask(pluginName, maxAge), getInitialDelay(), INTERVAL, TimeUnit.SECONDS);
+        new RemoveOldEventsTask(pluginName, maxAge, countsMaxAge),
+        getInitialDelay(),
+        INTERVAL,
+        TimeUnit.SECONDS);
   }
 
   private long getInitialDelay() {
@@ -91,16 +94,19 @@ public class EventsLogCleaner implements ProjectDeletedListener {
 
   private class RemoveOldEventsTask implements Runnable {
     private final int maxAge;
+    private final int countsMaxAge;
     private final String taskName;
 
-    RemoveOldEventsTask(String prefix, int maxAge) {
+    RemoveOldEventsTask(String prefix, int maxAge, int countsMaxAge) {
       this.maxAge = maxAge;
+      this.countsMaxAge = countsMaxAge;
       this.taskName = String.format("[%s] Remove old events", prefix);
     }
 
     @Override
     public void run() {
       eventsDb.removeOldEvents(maxAge);
+      eventsDb.removeOldEventCounts(countsMaxAge);
     }
 
     @Override
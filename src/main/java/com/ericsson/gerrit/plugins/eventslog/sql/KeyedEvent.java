@@ -0,0 +1,51 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import com.google.gerrit.server.events.ProjectEvent;
+import java.util.UUID;
+
+/**
+ * An event with the key it is stored with. The key is a random UUID assigned once, when the event
+ * is received, and kept while the event is queued, handed over to the local store and restored, so
+ * that storing it again does not duplicate it while distinct events with the same content are all
+ * stored.
+ */
+final class KeyedEvent {
+  private final ProjectEvent event;
+  private final String key;
+
+  /**
+   * Assign a new key to an event just received.
+   *
+   * @param event the event
+   */
+  KeyedEvent(ProjectEvent event) {
+    this(event, UUID.randomUUID().toString());
+  }
+
+  KeyedEvent(ProjectEvent event, String key) {
+    this.event = event;
+    this.key = key;
+  }
+
+  ProjectEvent getEvent() {
+    return event;
+  }
+
+  String getKey() {
+    return key;
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import com.ericsson.gerrit.plugins.eventslog.EventsLogException;
+import com.google.gerrit.server.events.ProjectEvent;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Keeps the events while the database is offline, until they are restored to it. Problems with the
+ * store are reported as {@link SQLException}s whatever the store, so that they are handled like the
+ * ones of the database.
+ */
+interface LocalEventStore {
+  /**
+   * Set up the store, creating it if needed.
+   *
+   * @throws SQLException If there was a problem with the store
+   */
+  void createDBIfNotCreated() throws SQLException;
+
+  /**
+   * Whether the store exists, that is whether it may hold events to restore.
+   *
+   * @return true if it exists
+   * @throws SQLException If there was a problem with the store
+   */
+  boolean dbExists() throws SQLException;
+
+  /**
+   * Queue the event to be stored.
+   *
+   * @param event the event to store
+   * @throws EventsLogException If there was a problem queueing the event
+   */
+  void storeEvent(ProjectEvent event) throws EventsLogException;
+
+  /**
+   * Store the events right away rather than queueing them, keeping their keys.
+   *
+   * @param events the events to store, in order
+   * @throws SQLException If there was a problem with the store
+   */
+  void storeEvents(List<KeyedEvent> events) throws SQLException;
+
+  /** Store the queued events now. */
+  void flush();
+
+  /**
+   * Get the events stored after an identifier, in the order they were stored.
+   *
+   * @param afterId the identifier to start after
+   * @param limit the maximum number of events to get
+   * @return the events
+   * @throws SQLException If there was a problem with the store
+   */
+  List<SQLEntry> getEntries(long afterId, int limit) throws SQLException;
+
+  /**
+   * Count the events stored.
+   *
+   * @return the number of events
+   * @throws SQLException If there was a problem with the store
+   */
+  long countEvents() throws SQLException;
+
+  /**
+   * Remove the events stored up to an identifier, once they are restored.
+   *
+   * @param id the identifier of the last event to remove
+   * @throws SQLException If there was a problem with the store
+   */
+  void removeEventsUpTo(long id) throws SQLException;
+
+  /** Store the queued events, then release the resources of the store. */
+  void close();
+}
@@ -19,7 +19,7 @@ import static java.lang.annotation.RetentionPolicy.RUNTIME;
 import com.google.inject.BindingAnnotation;
 import java.lang.annotation.Retention;
 
-/** Annotation applied to the SQLClient connected to the local database */
+/** Annotation applied to the store keeping the events while the database is offline */
 @Retention(RUNTIME)
 @BindingAnnotation
 @interface LocalEventsDb {}
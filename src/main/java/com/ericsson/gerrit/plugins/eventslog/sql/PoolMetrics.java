@@ -0,0 +1,71 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import com.google.common.base.Supplier;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/** Reports the usage of each connection pool to the events database. */
+@Singleton
+class PoolMetrics {
+
+  @Inject
+  PoolMetrics(MetricMaker metricMaker, @EventsDb SQLClient eventsDb) {
+    Set<HikariPoolMXBean> registered = new HashSet<>();
+    for (Map.Entry<String, HikariPoolMXBean> e : eventsDb.getPools().entrySet()) {
+      HikariPoolMXBean pool = e.getValue();
+      if (!registered.add(pool)) {
+        continue;
+      }
+      String name = e.getKey();
+      register(
+          metricMaker,
+          name,
+          "active",
+          "Connections in use",
+          () -> (long) pool.getActiveConnections());
+      register(
+          metricMaker, name, "idle", "Idle connections", () -> (long) pool.getIdleConnections());
+      register(
+          metricMaker,
+          name,
+          "pending",
+          "Threads waiting for a connection",
+          () -> (long) pool.getThreadsAwaitingConnection());
+    }
+  }
+
+  private static void register(
+      MetricMaker metricMaker,
+      String pool,
+      String state,
+      String description,
+      Supplier<Long> value) {
+    metricMaker.newCallbackMetric(
+        String.format("connections/%s/%s", pool, state),
+        Long.class,
+        new Description(String.format("%s in the %s pool", description, pool))
+            .setGauge()
+            .setUnit("connections"),
+        value);
+  }
+}
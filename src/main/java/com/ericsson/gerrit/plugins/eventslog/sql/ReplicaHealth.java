@@ -0,0 +1,65 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks whether a read replica can be reached. A replica that cannot is skipped by the queries
+ * until it is probed again, waiting twice as long after each failed probe, up to {@link
+ * #MAX_BACKOFF}.
+ */
+class ReplicaHealth {
+  static final long MIN_BACKOFF = TimeUnit.SECONDS.toNanos(1);
+  static final long MAX_BACKOFF = TimeUnit.MINUTES.toNanos(1);
+
+  private long backoff;
+  private long retryAt;
+
+  /**
+   * Whether to query the replica. Once its back off is over, only the first caller probes it, the
+   * others keep skipping it meanwhile.
+   *
+   * @param now the current time, in nanoseconds
+   * @return true if the replica is up or is to be probed
+   */
+  synchronized boolean shouldTry(long now) {
+    if (backoff == 0) {
+      return true;
+    }
+    if (now - retryAt < 0) {
+      return false;
+    }
+    retryAt = now + backoff;
+    return true;
+  }
+
+  /** Record that the replica could be reached. */
+  synchronized void up() {
+    backoff = 0;
+  }
+
+  /**
+   * Record that the replica cannot be reached.
+   *
+   * @param now the current time, in nanoseconds
+   * @return the time until the replica is probed again, in nanoseconds
+   */
+  synchronized long down(long now) {
+    backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+    retryAt = now + backoff;
+    return backoff;
+  }
+}
@@ -14,119 +14,996 @@
 
 package com.ericsson.gerrit.plugins.eventslog.sql;
 
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.BUCKET_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.COUNTS_TABLE_NAME;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.COUNT_ENTRY;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.DATE_ENTRY;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.EVENT_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.EVENT_KEY_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.NAME_ENTRY;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PRIMARY_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PROJECTS_TABLE_NAME;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PROJECT_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PROJECT_ID_ENTRY;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TABLE_NAME;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TYPE_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.VISIBILITY_ENTRY;
 import static java.lang.String.format;
+import static java.time.temporal.ChronoUnit.HOURS;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+import com.ericsson.gerrit.plugins.eventslog.EventStore.EventSink;
 import com.ericsson.gerrit.plugins.eventslog.EventsLogException;
 import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
-import com.google.common.base.Supplier;
+import com.ericsson.gerrit.plugins.eventslog.ServiceUnavailableException;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multiset;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gerrit.server.events.ProjectEvent;
-import com.google.gerrit.server.events.SupplierSerializer;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
-class SQLClient {
+class SQLClient implements LocalEventStore {
   static final int MAX_BATCH_SIZE = 100;
+  static final int DRAIN_BATCH_SIZE = 1000;
   static final int QUEUE_CAPACITY = 10000;
+  static final int EXPORT_FETCH_SIZE = 1000;
+
+  /** The deadline of the writes which may take as long as they need. */
+  private static final long NO_DEADLINE = Long.MAX_VALUE;
 
   private static final FluentLogger log = FluentLogger.forEnclosingClass();
-  private final Gson gson;
+  private final EventSerializer serializer;
   private final SQLDialect databaseDialect;
-  private final BlockingQueue<ProjectEvent> eventQueue;
+  private String upsertCountQuery;
+  private final boolean projectDictionary;
+  private final boolean multiRowInsert;
+  private final Map<String, Integer> projectIds = new ConcurrentHashMap<>();
+  private final Map<Integer, String> projectNames = new ConcurrentHashMap<>();
+  private final Map<String, Long> projectClasses = new ConcurrentHashMap<>();
+  private final BlockingQueue<KeyedEvent> eventQueue;
   private final ScheduledExecutorService scheduler;
+  private final ThreadPoolExecutor queryExecutor;
 
   private HikariDataSource ds;
+  private HikariDataSource queryDs;
+  private HikariDataSource maintenanceDs;
+  private final List<HikariDataSource> replicaDs;
+  private final List<ReplicaHealth> replicaHealth;
+  private final boolean checkReplicaLag;
+  private final AtomicInteger nextReplica = new AtomicInteger();
+  private final AtomicLong writeWatermark = new AtomicLong();
+  private volatile boolean watermarkStale = true;
+  private EventIndex index;
+  private volatile WriteListener writeListener;
+  private volatile Runnable projectListener;
+  private boolean jsonbEvents;
+  private int migrationBatchSize = 10000;
+  private long migrationBatchDelay = 100;
+  private long shutdownTimeout = 10000;
+  private SchemaMigrator migrator;
 
+  /**
+   * Creates a client using a single connection pool for storing, querying and removing events.
+   *
+   * @param config the connection pool configuration
+   */
   public SQLClient(HikariConfig config) {
+    this(config, null, null);
+  }
+
+  /**
+   * Creates a client using independent connection pools so that queries and maintenance work, such
+   * as removing old events, cannot take the connections needed to store events.
+   *
+   * @param config the configuration of the pool used to store events
+   * @param queryConfig the configuration of the pool used to query events, or null to use the
+   *     storing pool
+   * @param maintenanceConfig the configuration of the pool used to remove events, or null to use
+   *     the storing pool
+   */
+  public SQLClient(HikariConfig config, HikariConfig queryConfig, HikariConfig maintenanceConfig) {
+    this(config, queryConfig, maintenanceConfig, ImmutableList.of(), true);
+  }
+
+  /**
+   * Creates a client using independent connection pools, sending queries to read replicas of the
+   * database when they are up to date.
+   *
+   * @param config the configuration of the pool used to store events
+   * @param queryConfig the configuration of the pool used to query events, or null to use the
+   *     storing pool
+   * @param maintenanceConfig the configuration of the pool used to remove events, or null to use
+   *     the storing pool
+   * @param replicaConfigs the configuration of the pools connected to the read replicas
+   * @param checkReplicaLag whether to query the primary database when a replica has not yet
+   *     received all the events stored by this client
+   */
+  public SQLClient(
+      HikariConfig config,
+      HikariConfig queryConfig,
+      HikariConfig maintenanceConfig,
+      List<HikariConfig> replicaConfigs,
+      boolean checkReplicaLag) {
+    databaseDialect = SQLDialect.fromJdbcUrl(config.getJdbcUrl());
+    if (databaseDialect == SQLDialect.MYSQL) {
+      // Report the events left out by ON DUPLICATE KEY UPDATE as not inserted rather than as found.
+      config.addDataSourceProperty("useAffectedRows", "true");
+    }
     ds = new HikariDataSource(config);
+    queryDs = queryConfig != null ? new HikariDataSource(queryConfig) : ds;
+    maintenanceDs = maintenanceConfig != null ? new HikariDataSource(maintenanceConfig) : ds;
+    replicaDs = new ArrayList<>(replicaConfigs.size());
+    replicaHealth = new ArrayList<>(replicaConfigs.size());
+    for (HikariConfig replicaConfig : replicaConfigs) {
+      replicaDs.add(new HikariDataSource(replicaConfig));
+      replicaHealth.add(new ReplicaHealth());
+    }
+    this.checkReplicaLag = checkReplicaLag;
     eventQueue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
-    gson = new GsonBuilder().registerTypeAdapter(Supplier.class, new SupplierSerializer()).create();
-    databaseDialect = SQLDialect.fromJdbcUrl(config.getJdbcUrl());
+    serializer = new EventSerializer(databaseDialect);
+    upsertCountQuery = SQLTable.upsertCountQuery(databaseDialect);
+    // Spanner has no sequential identifiers to number projects with.
+    projectDictionary = databaseDialect != SQLDialect.SPANNER;
+    // A single statement inserting all the rows of a batch is parsed and sent once, where a JDBC
+    // batch is sent as one statement per row by the PostgreSQL and MySQL drivers by default.
+    multiRowInsert = databaseDialect != SQLDialect.SPANNER;
     scheduler = Executors.newSingleThreadScheduledExecutor();
+    // One thread per query connection, so that the parts of a query do not wait for one another.
+    // Once they are all busy, a few parts may wait; the others run on the thread of their query
+    // rather than queue up behind the parts of other queries.
+    int queryThreads = queryDs.getMaximumPoolSize();
+    queryExecutor =
+        new ThreadPoolExecutor(
+            queryThreads,
+            queryThreads,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queryThreads),
+            new ThreadFactoryBuilder()
+                .setNameFormat(queryDs.getPoolName() + "-part-%d")
+                .setDaemon(true)
+                .build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    queryExecutor.allowCoreThreadTimeOut(true);
     scheduler.scheduleAtFixedRate(this::flush, 2, 2, TimeUnit.SECONDS);
   }
 
-  void flush() {
-    List<ProjectEvent> batch = new ArrayList<>();
+  /**
+   * Keep hourly counts of the events stored by this client, which it does by default where the
+   * database supports them. To be set before the database is created.
+   *
+   * @param counts whether to count the events
+   */
+  void setCounts(boolean counts) {
+    upsertCountQuery = counts ? SQLTable.upsertCountQuery(databaseDialect) : null;
+  }
+
+  /**
+   * Index the events stored by this client from now on.
+   *
+   * @param index the index to add the events to
+   */
+  void setIndex(EventIndex index) {
+    this.index = index;
+  }
+
+  /**
+   * Notify the listener of the outcome of the writes of the queued events. Without a listener, the
+   * events of a batch that cannot be written are lost.
+   *
+   * @param writeListener the listener to notify
+   */
+  void setWriteListener(WriteListener writeListener) {
+    this.writeListener = writeListener;
+  }
+
+  /**
+   * Notify the listener when projects this client did not know of yet are added to the projects
+   * table or read from it, so that they are classified.
+   *
+   * @param projectListener the listener to notify, on the thread storing the events
+   */
+  void setProjectListener(Runnable projectListener) {
+    this.projectListener = projectListener;
+  }
+
+  /**
+   * Set how fast the existing events are backfilled when the schema is migrated.
+   *
+   * @param batchSize the number of event identifiers covered by each batch
+   * @param batchDelay the time to wait between two batches, in milliseconds
+   */
+  void setMigrationThrottle(int batchSize, long batchDelay) {
+    this.migrationBatchSize = batchSize;
+    this.migrationBatchDelay = batchDelay;
+  }
+
+  /**
+   * Set how long closing the client may take to store the events still queued. The events left once
+   * it is over are handed to the listener as failed to write.
+   *
+   * @param shutdownTimeout the time to store the queued events within, in milliseconds
+   */
+  void setShutdownTimeout(long shutdownTimeout) {
+    this.shutdownTimeout = shutdownTimeout;
+  }
+
+  /**
+   * Store the events as JSONB rather than as text, on PostgreSQL only. The events column is
+   * converted and indexed in the background by a schema migration.
+   *
+   * @param jsonbEvents whether to store the events as JSONB
+   */
+  void setJsonbEvents(boolean jsonbEvents) {
+    this.jsonbEvents = jsonbEvents && databaseDialect == SQLDialect.POSTGRESQL;
+  }
+
+  /**
+   * Search the indexed events, latest first.
+   *
+   * @param search the search, in Lucene query syntax
+   * @param from the earliest creation time, in seconds since the epoch
+   * @param to the latest creation time, in seconds since the epoch
+   * @param limit the maximum number of events
+   * @param visibleProjects gets which of the given projects are visible
+   * @return the identifiers of the events found
+   * @throws MalformedQueryException if the events are not indexed or the search is not valid
+   * @throws ServiceUnavailableException if the index cannot be read
+   */
+  List<Long> searchEvents(
+      String search,
+      long from,
+      long to,
+      int limit,
+      Function<Set<String>, Set<String>> visibleProjects)
+      throws EventsLogException {
+    if (!indexing()) {
+      throw new MalformedQueryException();
+    }
+    return index.search(search, from, to, limit, visibleProjects);
+  }
+
+  private boolean indexing() {
+    return index != null && index.isOpen();
+  }
+
+  @Override
+  public void flush() {
+    List<KeyedEvent> batch = new ArrayList<>();
     eventQueue.drainTo(batch, MAX_BATCH_SIZE);
 
     if (batch.isEmpty()) {
       return;
     }
 
+    WriteListener listener = writeListener;
+    // Nothing may escape, or the periodic flush would stop for good.
     try {
-      batchInsert(batch);
-    } catch (SQLException e) {
-      log.atSevere().withCause(e).log("Failed to batch insert events");
+      try {
+        batchInsert(batch, NO_DEADLINE);
+      } catch (SQLException e) {
+        writeFailed(listener, batch, e);
+        return;
+      } catch (RuntimeException e) {
+        writeFailed(listener, batch, new SQLException("Failed to store events", e));
+        return;
+      }
+      if (listener != null) {
+        listener.written();
+      }
+    } catch (RuntimeException e) {
+      log.atSevere().withCause(e).log("Failed to hand over the outcome of storing events");
+    }
+  }
+
+  /**
+   * Store all the queued events, in large batches, until the deadline. The events left once it is
+   * reached, or once a batch fails, are handed to the listener at once rather than tried again. The
+   * deadline is checked before each step of a batch, and its statements time out once the deadline
+   * is reached, rounded up to the second.
+   */
+  private void drain(long deadline) {
+    WriteListener listener = writeListener;
+    List<KeyedEvent> batch = new ArrayList<>();
+    while (eventQueue.drainTo(batch, DRAIN_BATCH_SIZE) > 0) {
+      try {
+        batchInsert(batch, deadline);
+      } catch (SQLException e) {
+        eventQueue.drainTo(batch);
+        writeFailed(listener, batch, e);
+        return;
+      }
+      batch.clear();
     }
   }
 
-  private void batchInsert(List<ProjectEvent> events) throws SQLException {
-    String sql =
-        "INSERT INTO "
-            + TABLE_NAME
-            + " ("
-            + PROJECT_ENTRY
-            + ", "
-            + DATE_ENTRY
-            + ", "
-            + EVENT_ENTRY
-            + ") VALUES (?, ?, ?)";
+  /**
+   * Get the seconds a statement may run until the deadline, rounded up.
+   *
+   * @param deadline the {@link System#nanoTime()} by which the statement must run, or {@link
+   *     #NO_DEADLINE}
+   * @return the query timeout, 0 for no limit
+   * @throws SQLTimeoutException If the deadline is reached
+   */
+  private static int queryTimeout(long deadline) throws SQLTimeoutException {
+    if (deadline == NO_DEADLINE) {
+      return 0;
+    }
+    long remaining = deadline - System.nanoTime();
+    if (remaining <= 0) {
+      throw new SQLTimeoutException("Shutdown timeout reached storing events");
+    }
+    return (int) Math.max(1, (remaining + 999_999_999) / 1_000_000_000);
+  }
 
-    try (Connection conn = ds.getConnection();
-        PreparedStatement ps = conn.prepareStatement(sql)) {
+  private static void writeFailed(WriteListener listener, List<KeyedEvent> batch, SQLException e) {
+    if (listener == null) {
+      log.atSevere().withCause(e).log("Failed to batch insert %d events", batch.size());
+    } else {
+      listener.writeFailed(batch, e);
+    }
+  }
 
-      for (ProjectEvent e : events) {
-        String projectName = e.getProjectNameKey().get();
-        Instant ts = Instant.ofEpochSecond(e.eventCreatedOn);
-        String eventJson = gson.toJson(e);
+  /**
+   * Store the events right away rather than queueing them, such as the events another database
+   * failed to store.
+   *
+   * @param events the events to store, in order
+   * @throws SQLException If there was a problem with the database
+   */
+  @Override
+  public void storeEvents(List<KeyedEvent> events) throws SQLException {
+    batchInsert(events, NO_DEADLINE);
+  }
+
+  /**
+   * Store the events.
+   *
+   * @param events the events to store, in order
+   * @param deadline the {@link System#nanoTime()} by which to store them, or {@link #NO_DEADLINE}
+   */
+  private void batchInsert(List<KeyedEvent> events, long deadline) throws SQLException {
+    List<SQLEntry> entries = new ArrayList<>(events.size());
+    List<String> types = new ArrayList<>(events.size());
+    for (KeyedEvent keyed : events) {
+      ProjectEvent e = keyed.getEvent();
+      entries.add(
+          new SQLEntry(
+              e.getProjectNameKey().get(),
+              Instant.ofEpochSecond(e.eventCreatedOn),
+              serializer.serialize(e),
+              0,
+              keyed.getKey()));
+      types.add(e.getType());
+    }
+    insertEntries(entries, types, deadline);
+  }
+
+  /**
+   * Store events read from another database, such as the local one, in a single transaction.
+   *
+   * @param entries the events to store, in order
+   * @throws SQLException If there was a problem with the database
+   */
+  void storeEntries(List<SQLEntry> entries) throws SQLException {
+    if (entries.isEmpty()) {
+      return;
+    }
+    List<String> types = new ArrayList<>(entries.size());
+    for (SQLEntry entry : entries) {
+      types.add(getType(entry.getEvent()));
+    }
+    insertEntries(entries, types, NO_DEADLINE);
+  }
 
-        if (databaseDialect == SQLDialect.SPANNER && eventJson != null) {
-          eventJson = eventJson.replace("\\n", "\\\\n");
+  /**
+   * Insert the events that are not stored yet, telling them apart by their keys. Events already
+   * stored, or stored concurrently by another writer, are left out by the database; only the events
+   * actually inserted are counted and indexed.
+   */
+  private void insertEntries(List<SQLEntry> entries, List<String> types, long deadline)
+      throws SQLException {
+    Map<String, Integer> keys = new LinkedHashMap<>();
+    for (int i = 0; i < entries.size(); i++) {
+      keys.putIfAbsent(entries.get(i).getKey(), i);
+    }
+    queryTimeout(deadline);
+    try (Connection conn = ds.getConnection()) {
+      // Projects are added outside of the transaction, so that cached identifiers always exist.
+      if (projectDictionary) {
+        for (SQLEntry e : entries) {
+          getProjectId(conn, e.getName(), deadline);
         }
+      }
+      conn.setAutoCommit(false);
+      Map<String, Long> inserted;
+      try {
+        inserted = insertEvents(conn, entries, keys, deadline);
+        Multiset<CountKey> counts = HashMultiset.create();
+        for (String key : inserted.keySet()) {
+          int i = keys.get(key);
+          if (types.get(i) != null) {
+            SQLEntry e = entries.get(i);
+            counts.add(new CountKey(e.getTimestamp(), e.getName(), types.get(i)));
+          }
+        }
+        updateCounts(conn, counts, deadline);
+        conn.commit();
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      }
+      if (!inserted.isEmpty()) {
+        watermarkStale = true;
+      }
+      if (indexing() && !inserted.isEmpty()) {
+        if (inserted.containsValue(null)) {
+          inserted = selectIdsByKey(conn, inserted.keySet(), deadline);
+          conn.commit();
+        }
+        for (Map.Entry<String, Long> id : inserted.entrySet()) {
+          SQLEntry e = entries.get(keys.get(id.getKey()));
+          index.add(id.getValue(), e.getName(), e.getTimestamp(), e.getEvent());
+        }
+        index.refresh();
+      }
+    }
+  }
+
+  /**
+   * Insert the events, in the transaction of the connection.
+   *
+   * @return the identifiers of the events inserted by key, null where the database does not return
+   *     them
+   */
+  private Map<String, Long> insertEvents(
+      Connection conn, List<SQLEntry> entries, Map<String, Integer> keys, long deadline)
+      throws SQLException {
+    Map<String, Long> inserted = new LinkedHashMap<>();
+    if (multiRowInsert) {
+      try (PreparedStatement ps = prepareInsert(conn, keys.size(), deadline)) {
+        setEvents(conn, ps, entries, keys.entrySet(), deadline);
+        if (databaseDialect == SQLDialect.POSTGRESQL) {
+          // The statement returns the rows it inserted.
+          try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+              inserted.put(rs.getString(2), rs.getLong(1));
+            }
+          }
+          return inserted;
+        }
+        if (ps.executeUpdate() == keys.size()) {
+          keys.keySet().forEach(key -> inserted.put(key, null));
+          return inserted;
+        }
+      }
+      // Some of the events were already stored, insert them one by one to tell which.
+      conn.rollback();
+    }
+    List<String> batch = new ArrayList<>(keys.keySet());
+    int[] updateCounts;
+    try (PreparedStatement ps = prepareInsert(conn, 1, deadline)) {
+      for (Map.Entry<String, Integer> key : keys.entrySet()) {
+        setEvents(conn, ps, entries, ImmutableList.of(key), deadline);
+        ps.addBatch();
+      }
+      updateCounts = ps.executeBatch();
+    }
+    for (int i = 0; i < updateCounts.length; i++) {
+      if (updateCounts[i] > 0 || updateCounts[i] == Statement.SUCCESS_NO_INFO) {
+        inserted.put(batch.get(i), null);
+      }
+    }
+    return inserted;
+  }
+
+  /** Set the project, date, event and key of each of the events, in order. */
+  private void setEvents(
+      Connection conn,
+      PreparedStatement ps,
+      List<SQLEntry> entries,
+      Collection<Map.Entry<String, Integer>> keys,
+      long deadline)
+      throws SQLException {
+    int param = 0;
+    for (Map.Entry<String, Integer> key : keys) {
+      SQLEntry e = entries.get(key.getValue());
+      setProject(conn, ps, ++param, e.getName(), deadline);
+      ps.setTimestamp(++param, Timestamp.from(e.getTimestamp()));
+      ps.setString(++param, e.getEvent());
+      ps.setString(++param, key.getKey());
+    }
+  }
+
+  /**
+   * Find the identifiers of the stored events among the given keys.
+   *
+   * @return the identifiers of the events found, by key
+   */
+  private Map<String, Long> selectIdsByKey(Connection conn, Set<String> keys, long deadline)
+      throws SQLException {
+    Map<String, Long> ids = new HashMap<>();
+    if (keys.isEmpty()) {
+      return ids;
+    }
+    try (PreparedStatement ps =
+        conn.prepareStatement(SQLTable.selectIdsByKeyQuery(databaseDialect, keys.size()))) {
+      ps.setQueryTimeout(queryTimeout(deadline));
+      int param = 0;
+      for (String key : keys) {
+        ps.setString(++param, key);
+      }
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          String key = rs.getString(2);
+          ids.put(key, databaseDialect == SQLDialect.SPANNER ? foldId(key) : rs.getLong(1));
+        }
+      }
+    }
+    return ids;
+  }
+
+  /** Fold a Spanner identifier to 64 bits, which is enough to tell events apart. */
+  private static long foldId(String id) {
+    UUID uuid = UUID.fromString(id);
+    return uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+  }
+
+  /**
+   * Prepare the insertion of events, leaving out the ones already stored.
+   *
+   * @param rows the number of rows inserted by the statement
+   * @param deadline the {@link System#nanoTime()} by which the statement must run, or {@link
+   *     #NO_DEADLINE}
+   */
+  private PreparedStatement prepareInsert(Connection conn, int rows, long deadline)
+      throws SQLException {
+    PreparedStatement ps =
+        conn.prepareStatement(
+            SQLTable.insertEventsQuery(databaseDialect, projectDictionary, jsonbEvents, rows));
+    try {
+      ps.setQueryTimeout(queryTimeout(deadline));
+    } catch (SQLException e) {
+      ps.close();
+      throw e;
+    }
+    return ps;
+  }
+
+  private void setProject(
+      Connection conn, PreparedStatement ps, int index, String projectName, long deadline)
+      throws SQLException {
+    if (projectDictionary) {
+      ps.setInt(index, getProjectId(conn, projectName, deadline));
+    } else {
+      ps.setString(index, projectName);
+    }
+  }
 
+  /**
+   * Get the identifier of the project, adding the project to the projects table if needed. The
+   * connection must not be in a transaction, as the identifier is cached.
+   */
+  private int getProjectId(Connection conn, String projectName, long deadline) throws SQLException {
+    Integer id = projectIds.get(projectName);
+    if (id != null) {
+      return id;
+    }
+    id = selectProjectId(conn, projectName, deadline);
+    if (id == null) {
+      try (PreparedStatement ps =
+          conn.prepareStatement(
+              format("INSERT INTO %s (%s) VALUES (?)", PROJECTS_TABLE_NAME, NAME_ENTRY))) {
+        ps.setQueryTimeout(queryTimeout(deadline));
         ps.setString(1, projectName);
-        ps.setTimestamp(2, Timestamp.from(ts));
-        ps.setString(3, eventJson);
+        ps.executeUpdate();
+      } catch (SQLException e) {
+        log.atFine().withCause(e).log("Project %s may have been added concurrently", projectName);
+      }
+      id = selectProjectId(conn, projectName, deadline);
+      if (id == null) {
+        throw new SQLException("Cannot add project " + projectName);
+      }
+    }
+    cacheProject(id, projectName);
+    Runnable listener = projectListener;
+    if (listener != null) {
+      listener.run();
+    }
+    return id;
+  }
+
+  private static Integer selectProjectId(Connection conn, String projectName, long deadline)
+      throws SQLException {
+    try (PreparedStatement ps =
+        conn.prepareStatement(
+            format(
+                "SELECT %s FROM %s WHERE %s = ?",
+                PRIMARY_ENTRY, PROJECTS_TABLE_NAME, NAME_ENTRY))) {
+      ps.setQueryTimeout(queryTimeout(deadline));
+      ps.setString(1, projectName);
+      try (ResultSet rs = ps.executeQuery()) {
+        return rs.next() ? rs.getInt(1) : null;
+      }
+    }
+  }
+
+  /**
+   * Reads the events of a result set. The columns are looked up once, rather than by name for each
+   * row. The names of the projects which are not cached yet are looked up on the connection, if one
+   * is given.
+   */
+  private class RowDecoder {
+    private final Connection conn;
+    private final ResultSet rs;
+    private final int idColumn;
+    private final int projectColumn;
+    private final int projectIdColumn;
+    private final int dateColumn;
+    private final int eventColumn;
+    private final int keyColumn;
+
+    RowDecoder(Connection conn, ResultSet rs) throws SQLException {
+      this.conn = conn;
+      this.rs = rs;
+      idColumn = rs.findColumn(PRIMARY_ENTRY);
+      projectColumn = rs.findColumn(PROJECT_ENTRY);
+      projectIdColumn = projectDictionary ? rs.findColumn(PROJECT_ID_ENTRY) : 0;
+      dateColumn = rs.findColumn(DATE_ENTRY);
+      eventColumn = rs.findColumn(EVENT_ENTRY);
+      keyColumn = findColumn(rs.getMetaData(), EVENT_KEY_ENTRY);
+    }
+
+    private int findColumn(ResultSetMetaData metaData, String name) throws SQLException {
+      for (int i = 1; i <= metaData.getColumnCount(); i++) {
+        if (name.equalsIgnoreCase(metaData.getColumnLabel(i))) {
+          return i;
+        }
+      }
+      return 0;
+    }
+
+    Object id() throws SQLException {
+      return rs.getObject(idColumn);
+    }
+
+    /**
+     * Get the identifier of the event as a number. Spanner identifiers are UUIDs, folded to 64
+     * bits, which is enough to tell events apart.
+     */
+    long longId() throws SQLException {
+      if (databaseDialect == SQLDialect.SPANNER) {
+        return foldId(rs.getString(idColumn));
+      }
+      return rs.getLong(idColumn);
+    }
+
+    /** Get the name of the project of the event the result set is on. */
+    String projectName() throws SQLException {
+      if (projectIdColumn > 0) {
+        int id = rs.getInt(projectIdColumn);
+        if (!rs.wasNull()) {
+          return getProjectName(conn, id);
+        }
+      }
+      // Events stored before the projects table existed, or not yet migrated.
+      return rs.getString(projectColumn);
+    }
+
+    Instant date() throws SQLException {
+      return rs.getTimestamp(dateColumn).toInstant();
+    }
+
+    String event() throws SQLException {
+      return rs.getString(eventColumn);
+    }
+
+    /** Get the event as a stream, which the driver may provide without building a string. */
+    Reader eventReader() throws SQLException {
+      Reader reader = rs.getCharacterStream(eventColumn);
+      return reader != null ? reader : new StringReader("null");
+    }
+
+    /** Get the key of the event, null if it has none or the result set does not hold it. */
+    String key() throws SQLException {
+      return keyColumn > 0 ? rs.getString(keyColumn) : null;
+    }
+
+    SQLEntry entry() throws SQLException {
+      return new SQLEntry(projectName(), date(), event(), longId(), key());
+    }
+  }
+
+  private String getProjectName(Connection conn, int id) throws SQLException {
+    String name = projectNames.get(id);
+    if (name != null) {
+      return name;
+    }
+    if (conn == null) {
+      throw new SQLException("Unknown project " + id);
+    }
+    try (PreparedStatement ps =
+        conn.prepareStatement(
+            format(
+                "SELECT %s FROM %s WHERE %s = ?",
+                NAME_ENTRY, PROJECTS_TABLE_NAME, PRIMARY_ENTRY))) {
+      ps.setInt(1, id);
+      try (ResultSet rs = ps.executeQuery()) {
+        if (!rs.next()) {
+          throw new SQLException("Unknown project " + id);
+        }
+        name = rs.getString(1);
+      }
+    }
+    cacheProject(id, name);
+    return name;
+  }
+
+  private void loadProjectNames(Connection conn) throws SQLException {
+    try (Statement stat = conn.createStatement();
+        ResultSet rs =
+            stat.executeQuery(
+                format("SELECT %s, %s FROM %s", PRIMARY_ENTRY, NAME_ENTRY, PROJECTS_TABLE_NAME))) {
+      while (rs.next()) {
+        cacheProject(rs.getInt(1), rs.getString(2));
+      }
+    }
+  }
+
+  private void cacheProject(int id, String name) {
+    projectIds.put(name, id);
+    projectNames.put(id, name);
+  }
+
+  /**
+   * Create the projects table and load the projects it holds. The events are made to refer to it by
+   * the schema migrations.
+   */
+  private void createProjectDictionary() throws SQLException {
+    execute(SQLTable.createProjectsTableQuery(databaseDialect));
+    try (Connection conn = ds.getConnection();
+        Statement stat = conn.createStatement()) {
+      try (ResultSet rs =
+          stat.executeQuery(
+              format(
+                  "SELECT %s, %s, %s FROM %s",
+                  PRIMARY_ENTRY, NAME_ENTRY, VISIBILITY_ENTRY, PROJECTS_TABLE_NAME))) {
+        while (rs.next()) {
+          cacheProject(rs.getInt(1), rs.getString(2));
+          long visibilityClass = rs.getLong(3);
+          if (!rs.wasNull()) {
+            projectClasses.put(rs.getString(2), visibilityClass);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Return if events refer to their project through the projects table, which then holds the
+   * visibility class of each project.
+   */
+  boolean hasProjectDictionary() {
+    return projectDictionary;
+  }
+
+  /**
+   * Get the projects known to this client.
+   *
+   * @param unclassified whether to only get the projects whose visibility class is not set
+   * @return the names of the projects
+   */
+  Set<String> getProjects(boolean unclassified) {
+    Set<String> projects = new HashSet<>(projectIds.keySet());
+    if (unclassified) {
+      projects.removeAll(projectClasses.keySet());
+    }
+    return projects;
+  }
+
+  /**
+   * Set the visibility classes of projects. Projects sharing a class are visible to the same users.
+   *
+   * @param classes the visibility classes by project name
+   * @throws SQLException If there was a problem with the database
+   */
+  void setVisibilityClasses(Map<String, Long> classes) throws SQLException {
+    if (classes.isEmpty()) {
+      return;
+    }
+    try (Connection conn = ds.getConnection();
+        PreparedStatement ps =
+            conn.prepareStatement(
+                format(
+                    "UPDATE %s SET %s = ? WHERE %s = ?",
+                    PROJECTS_TABLE_NAME, VISIBILITY_ENTRY, NAME_ENTRY))) {
+      for (Map.Entry<String, Long> entry : classes.entrySet()) {
+        ps.setLong(1, entry.getValue());
+        ps.setString(2, entry.getKey());
         ps.addBatch();
       }
+      ps.executeBatch();
+    }
+    projectClasses.putAll(classes);
+  }
 
+  /**
+   * Get the known visibility classes, each with one of its projects. Whether a user can see that
+   * project tells whether they can see all the projects of the class.
+   *
+   * @return a project name by visibility class
+   */
+  Map<Long, String> getVisibilityClasses() {
+    Map<Long, String> classes = new HashMap<>();
+    for (Map.Entry<String, Long> entry : projectClasses.entrySet()) {
+      classes.putIfAbsent(entry.getValue(), entry.getKey());
+    }
+    return classes;
+  }
+
+  /**
+   * Add the given events to the hourly event counts, in the transaction of the connection. Nothing
+   * is done if the database does not support event counts.
+   */
+  private void updateCounts(Connection conn, Multiset<CountKey> counts, long deadline)
+      throws SQLException {
+    if (upsertCountQuery == null || counts.isEmpty()) {
+      return;
+    }
+    try (PreparedStatement ps = conn.prepareStatement(upsertCountQuery)) {
+      ps.setQueryTimeout(queryTimeout(deadline));
+      for (Multiset.Entry<CountKey> count : counts.entrySet()) {
+        CountKey key = count.getElement();
+        ps.setTimestamp(1, Timestamp.from(key.bucket));
+        ps.setString(2, key.project);
+        ps.setString(3, key.type);
+        ps.setLong(4, count.getCount());
+        ps.addBatch();
+      }
       ps.executeBatch();
     }
   }
 
+  /**
+   * Get the highest event id stored by this client. It is read from the database once per query
+   * following writes rather than on every write, since only queries need it.
+   */
+  private long writeWatermark() throws SQLException {
+    if (watermarkStale) {
+      watermarkStale = false;
+      try (Connection conn = ds.getConnection()) {
+        writeWatermark.accumulateAndGet(maxId(conn), Math::max);
+      } catch (SQLException e) {
+        watermarkStale = true;
+        throw e;
+      }
+    }
+    return writeWatermark.get();
+  }
+
+  private static long maxId(Connection conn) throws SQLException {
+    try (Statement stat = conn.createStatement();
+        ResultSet rs =
+            stat.executeQuery(format("SELECT MAX(%s) FROM %s", PRIMARY_ENTRY, TABLE_NAME))) {
+      return rs.next() ? rs.getLong(1) : 0;
+    }
+  }
+
+  /**
+   * Get a connection to run a query on. Read replicas are tried in turn, skipping those that are
+   * unreachable or, when lag is checked, those whose highest event id is lower than the highest id
+   * stored by this client. The primary database is used when no replica qualifies.
+   *
+   * <p>A replica that cannot be reached is not tried again until its back off is over, so that
+   * queries do not wait for it to time out each time.
+   */
+  private Connection getQueryConnection() throws SQLException {
+    if (replicaDs.isEmpty()) {
+      return queryDs.getConnection();
+    }
+    long watermark = checkReplicaLag ? writeWatermark() : 0;
+    for (int i = 0; i < replicaDs.size(); i++) {
+      int next = Math.floorMod(nextReplica.getAndIncrement(), replicaDs.size());
+      HikariDataSource replica = replicaDs.get(next);
+      ReplicaHealth health = replicaHealth.get(next);
+      if (!health.shouldTry(System.nanoTime())) {
+        continue;
+      }
+      Connection conn = null;
+      try {
+        conn = replica.getConnection();
+        health.up();
+        if (!checkReplicaLag || maxId(conn) >= watermark) {
+          return conn;
+        }
+        log.atFine().log("Replica %s is behind, skipping it", replica.getPoolName());
+        conn.close();
+      } catch (SQLException e) {
+        long retryIn = health.down(System.nanoTime());
+        log.atWarning().withCause(e).log(
+            "Cannot query replica %s, retrying it in %d ms",
+            replica.getPoolName(), TimeUnit.NANOSECONDS.toMillis(retryIn));
+        if (conn != null) {
+          conn.close();
+        }
+      }
+    }
+    return queryDs.getConnection();
+  }
+
   /**
    * Create the database if it has not yet been created.
    *
    * @throws SQLException If there was a problem with the database
    */
-  void createDBIfNotCreated() throws SQLException {
+  @Override
+  public void createDBIfNotCreated() throws SQLException {
     execute(SQLTable.createTableQuery(databaseDialect));
+    if (upsertCountQuery != null) {
+      execute(SQLTable.createCountsTableQuery());
+    }
+    if (projectDictionary) {
+      createProjectDictionary();
+    }
+    if (migrator == null) {
+      migrator =
+          new SchemaMigrator(
+              ds,
+              maintenanceDs,
+              databaseDialect,
+              SchemaMigrator.migrations(jsonbEvents),
+              migrationBatchSize,
+              migrationBatchDelay);
+    }
+    migrator.migrate();
     switch (databaseDialect) {
       case SPANNER:
         execute(SQLTable.createSpannerDateIndex());
@@ -135,6 +1012,12 @@ class SQLClient {
       default:
         execute(SQLTable.createIndexes(databaseDialect));
     }
+    migrator.startBackfills();
+  }
+
+  /** Run the pending backfills of the schema migrations to the end, in the calling thread. */
+  void completeBackfills() throws SQLException {
+    migrator.completeBackfills();
   }
 
   /**
@@ -143,19 +1026,61 @@ class SQLClient {
    * @return true if it exists, otherwise return false
    * @throws SQLException If there was a problem with the database
    */
-  boolean dbExists() throws SQLException {
+  @Override
+  public boolean dbExists() throws SQLException {
     try (Connection conn = ds.getConnection();
         ResultSet tables = conn.getMetaData().getTables(null, null, TABLE_NAME, null)) {
       return tables.next();
     }
   }
 
-  void close() {
-    flush();
-    scheduler.shutdownNow();
+  @Override
+  public void close() {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeout);
+    scheduler.shutdown();
+    try {
+      // Let a flush in progress end, so that the events are still stored in order.
+      if (!scheduler.awaitTermination(shutdownTimeout, TimeUnit.MILLISECONDS)) {
+        scheduler.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      scheduler.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    drain(deadline);
+    if (migrator != null) {
+      migrator.stop();
+    }
+    queryExecutor.shutdownNow();
+    if (queryDs != ds) {
+      queryDs.close();
+    }
+    if (maintenanceDs != ds) {
+      maintenanceDs.close();
+    }
+    for (HikariDataSource replica : replicaDs) {
+      replica.close();
+    }
     ds.close();
   }
 
+  /**
+   * Get the management interface of each connection pool, keyed by the kind of work it is used for.
+   *
+   * @return the pools used to store, query and remove events; the same pool may appear more than
+   *     once
+   */
+  Map<String, HikariPoolMXBean> getPools() {
+    Map<String, HikariPoolMXBean> pools = new LinkedHashMap<>();
+    pools.put("write", ds.getHikariPoolMXBean());
+    pools.put("query", queryDs.getHikariPoolMXBean());
+    pools.put("maintenance", maintenanceDs.getHikariPoolMXBean());
+    for (int i = 0; i < replicaDs.size(); i++) {
+      pools.put("replica-" + i, replicaDs.get(i).getHikariPoolMXBean());
+    }
+    return pools;
+  }
+
   /**
    * Get events as a multimap list of Strings and SQLEntries. The String represents the project
    * name, and the SQLEntry is the event information.
@@ -165,7 +1090,7 @@ class SQLClient {
    * @throws EventsLogException If there was a problem with the database
    */
   ListMultimap<String, SQLEntry> getEvents(String query) throws EventsLogException {
-    try (Connection conn = ds.getConnection();
+    try (Connection conn = getQueryConnection();
         Statement stat = conn.createStatement()) {
       return listEvents(stat, query);
     } catch (SQLException e) {
@@ -174,34 +1099,200 @@ class SQLClient {
   }
 
   /**
-   * Queue the event in memory for processing.
+   * Run the parts of a query concurrently, each on its own connection, and get their events as
+   * multimap lists of Strings and SQLEntries. The results are taken in the order of the parts; once
+   * the first parts hold enough events, the parts still running are cancelled in the database and
+   * their results are left out.
+   *
+   * @param queries the parts of the query as strings, covering contiguous ranges in order
+   * @param limit the number of events needed
+   * @return the events of each part that is needed, in the order of the parts
+   * @throws EventsLogException If there was a problem with the database
+   */
+  List<ListMultimap<String, SQLEntry>> getEvents(List<String> queries, int limit)
+      throws EventsLogException {
+    List<QueryPart> parts = new ArrayList<>(queries.size());
+    List<Future<ListMultimap<String, SQLEntry>>> futures = new ArrayList<>(queries.size());
+    List<ListMultimap<String, SQLEntry>> results = new ArrayList<>(queries.size());
+    try {
+      for (String query : queries) {
+        QueryPart part = new QueryPart(query);
+        parts.add(part);
+        futures.add(queryExecutor.submit(part));
+      }
+      int found = 0;
+      for (Future<ListMultimap<String, SQLEntry>> future : futures) {
+        ListMultimap<String, SQLEntry> result = future.get();
+        results.add(result);
+        found += result.size();
+        if (found >= limit) {
+          break;
+        }
+      }
+      return results;
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), EventsLogException.class);
+      throw new EventsLogException("Cannot query database", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new EventsLogException("Interrupted while querying database", e);
+    } finally {
+      for (int i = results.size(); i < parts.size(); i++) {
+        parts.get(i).cancel();
+        futures.get(i).cancel(true);
+      }
+    }
+  }
+
+  /** A part of a query, which can be cancelled in the database while it runs. */
+  private class QueryPart implements Callable<ListMultimap<String, SQLEntry>> {
+    private final String query;
+    private Statement stat;
+    private boolean cancelled;
+
+    QueryPart(String query) {
+      this.query = query;
+    }
+
+    @Override
+    public ListMultimap<String, SQLEntry> call() throws EventsLogException {
+      try (Connection conn = getQueryConnection();
+          Statement statement = conn.createStatement()) {
+        if (!start(statement)) {
+          return ArrayListMultimap.create();
+        }
+        try {
+          return listEvents(statement, query);
+        } finally {
+          start(null);
+        }
+      } catch (SQLException e) {
+        throw new EventsLogException("Cannot query database", e);
+      }
+    }
+
+    private synchronized boolean start(Statement stat) {
+      this.stat = stat;
+      return !cancelled;
+    }
+
+    synchronized void cancel() {
+      cancelled = true;
+      if (stat != null) {
+        try {
+          stat.cancel();
+        } catch (SQLException e) {
+          log.atFine().withCause(e).log("Cannot cancel query part");
+        }
+      }
+    }
+  }
+
+  /**
+   * Get event counts as a multimap list of Strings and SQLEventCounts. The String represents the
+   * project name.
+   *
+   * @param query the query as a string
+   * @return Multimap list of Strings (project names) and SQLEventCounts, empty if the database does
+   *     not support event counts
+   * @throws EventsLogException If there was a problem with the database
+   */
+  ListMultimap<String, SQLEventCount> getEventCounts(String query) throws EventsLogException {
+    if (upsertCountQuery == null) {
+      return ArrayListMultimap.create();
+    }
+    try (Connection conn = getQueryConnection();
+        Statement stat = conn.createStatement();
+        ResultSet rs = stat.executeQuery(query)) {
+      ListMultimap<String, SQLEventCount> result = ArrayListMultimap.create();
+      while (rs.next()) {
+        String project = rs.getString(PROJECT_ENTRY);
+        result.put(
+            project,
+            new SQLEventCount(
+                rs.getTimestamp(BUCKET_ENTRY).toInstant(),
+                project,
+                rs.getString(TYPE_ENTRY),
+                rs.getLong(COUNT_ENTRY)));
+      }
+      return result;
+    } catch (SQLException e) {
+      throw new MalformedQueryException(e);
+    }
+  }
+
+  /**
+   * Stream events to the sink, reading them from a forward-only cursor so that only a fetch of rows
+   * is in memory at once. Exports run on the maintenance pool, as they can hold a connection for a
+   * long time.
+   *
+   * @param query the query as a string
+   * @param sink receives each event
+   * @throws EventsLogException If there was a problem with the database
+   * @throws IOException If the sink failed to write an event
+   */
+  void exportEvents(String query, EventSink sink) throws EventsLogException, IOException {
+    try (Connection conn = maintenanceDs.getConnection()) {
+      // PostgreSQL only uses a cursor within a transaction.
+      conn.setAutoCommit(false);
+      try (Statement stat =
+          conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+        // MySQL only streams rows, one at a time, with this fetch size.
+        boolean streaming = databaseDialect == SQLDialect.MYSQL;
+        stat.setFetchSize(streaming ? Integer.MIN_VALUE : EXPORT_FETCH_SIZE);
+        if (projectDictionary) {
+          // MySQL runs no other statement on the connection while it streams rows, so the names
+          // of the projects cannot be looked up then. Within the transaction, the events read
+          // next only refer to the projects read now.
+          loadProjectNames(conn);
+        }
+        try (ResultSet rs = stat.executeQuery(query)) {
+          RowDecoder row = new RowDecoder(streaming ? null : conn, rs);
+          while (rs.next()) {
+            // The columns are read in order, the event last, as a stream.
+            Object id = row.id();
+            String project = row.projectName();
+            try (Reader event = row.eventReader()) {
+              sink.write(id, project, event);
+            }
+          }
+        }
+      } finally {
+        conn.rollback();
+      }
+    } catch (SQLException e) {
+      throw new EventsLogException("Cannot export events", e);
+    }
+  }
+
+  /**
+   * Queue the event in memory for processing, assigning it its key.
    *
    * @throws EventsLogException If there was a problem queueing the event
    * @param event the event to store
    */
-  void storeEvent(ProjectEvent event) throws EventsLogException {
-    if (!eventQueue.offer(event)) {
-      throw new EventsLogException(String.format("Cannot offer event %s", gson.toJson(event)));
+  @Override
+  public void storeEvent(ProjectEvent event) throws EventsLogException {
+    if (!eventQueue.offer(new KeyedEvent(event))) {
+      throw new EventsLogException(
+          String.format(
+              "Cannot offer event %s of project %s", event.getType(), event.getProjectNameKey()));
     }
   }
 
   void storeEvent(String projectName, Instant timestamp, String eventJson) throws SQLException {
-    String sql =
-        "INSERT INTO "
-            + TABLE_NAME
-            + " ("
-            + PROJECT_ENTRY
-            + ", "
-            + DATE_ENTRY
-            + ", "
-            + EVENT_ENTRY
-            + ") VALUES (?, ?, ?)";
-    try (Connection conn = ds.getConnection();
-        PreparedStatement ps = conn.prepareStatement(sql)) {
-      ps.setString(1, projectName);
-      ps.setTimestamp(2, Timestamp.from(timestamp));
-      ps.setString(3, eventJson);
-      ps.executeUpdate();
+    storeEntries(
+        ImmutableList.of(
+            new SQLEntry(projectName, timestamp, eventJson, 0, UUID.randomUUID().toString())));
+  }
+
+  private static String getType(String eventJson) {
+    try {
+      JsonElement type = JsonParser.parseString(eventJson).getAsJsonObject().get("type");
+      return type != null && type.isJsonPrimitive() ? type.getAsString() : null;
+    } catch (JsonParseException | IllegalStateException e) {
+      log.atFine().withCause(e).log("Cannot read the type of event %s", eventJson);
+      return null;
     }
   }
 
@@ -213,16 +1304,47 @@ class SQLClient {
   void removeOldEvents(int maxAge) {
     try {
       execute(
+          maintenanceDs,
           format(
               "DELETE FROM %s WHERE %s < '%s'",
               TABLE_NAME,
               DATE_ENTRY,
               new Timestamp(System.currentTimeMillis() - MILLISECONDS.convert(maxAge, DAYS))));
       log.atInfo().log(
-          "Events older than %d days were removed from database %s", maxAge, ds.getPoolName());
+          "Events older than %d days were removed from database %s",
+          maxAge, maintenanceDs.getPoolName());
+      if (indexing()) {
+        index.removeOlderThan(Instant.now().minus(maxAge, ChronoUnit.DAYS));
+      }
+    } catch (SQLException e) {
+      log.atWarning().withCause(e).log(
+          "Cannot remove old event entries from database %s", maintenanceDs.getPoolName());
+    }
+  }
+
+  /**
+   * Remove all event counts whose bucket is older than maxAge.
+   *
+   * @param maxAge The maximum age to keep event counts
+   */
+  public void removeOldEventCounts(int maxAge) {
+    if (upsertCountQuery == null) {
+      return;
+    }
+    try {
+      execute(
+          maintenanceDs,
+          format(
+              "DELETE FROM %s WHERE %s < '%s'",
+              COUNTS_TABLE_NAME,
+              BUCKET_ENTRY,
+              new Timestamp(System.currentTimeMillis() - MILLISECONDS.convert(maxAge, DAYS))));
+      log.atInfo().log(
+          "Event counts older than %d days were removed from database %s",
+          maxAge, maintenanceDs.getPoolName());
     } catch (SQLException e) {
       log.atWarning().withCause(e).log(
-          "Cannot remove old event entries from database %s", ds.getPoolName());
+          "Cannot remove old event counts from database %s", maintenanceDs.getPoolName());
     }
   }
 
@@ -232,13 +1354,43 @@ class SQLClient {
    * @param project Events attributed to this project should be removed
    */
   void removeProjectEvents(String project) {
-    try {
-      execute(format("DELETE FROM %s WHERE project = '%s'", TABLE_NAME, project));
+    try (Connection conn = maintenanceDs.getConnection()) {
+      delete(conn, format("DELETE FROM %s WHERE project = ?", TABLE_NAME), project);
+      if (projectDictionary) {
+        delete(
+            conn,
+            format(
+                "DELETE FROM %s WHERE %s = (SELECT %s FROM %s WHERE %s = ?)",
+                TABLE_NAME, PROJECT_ID_ENTRY, PRIMARY_ENTRY, PROJECTS_TABLE_NAME, NAME_ENTRY),
+            project);
+      }
+      if (upsertCountQuery != null) {
+        delete(conn, format("DELETE FROM %s WHERE project = ?", COUNTS_TABLE_NAME), project);
+      }
+      if (projectDictionary) {
+        delete(
+            conn, format("DELETE FROM %s WHERE %s = ?", PROJECTS_TABLE_NAME, NAME_ENTRY), project);
+        Integer id = projectIds.remove(project);
+        if (id != null) {
+          projectNames.remove(id);
+        }
+        projectClasses.remove(project);
+      }
+      if (indexing()) {
+        index.removeProject(project);
+      }
     } catch (SQLException e) {
       log.atWarning().withCause(e).log("Cannot remove project %s events from database", project);
     }
   }
 
+  private static void delete(Connection conn, String query, String project) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(query)) {
+      ps.setString(1, project);
+      ps.executeUpdate();
+    }
+  }
+
   /**
    * Do a simple query on the database. This is used to determine whether or not the main database
    * is online.
@@ -257,33 +1409,86 @@ class SQLClient {
    */
   List<SQLEntry> getAll() throws SQLException {
     List<SQLEntry> entries = new ArrayList<>();
-    try (Connection conn = ds.getConnection();
+    try (Connection conn = queryDs.getConnection();
         Statement stat = conn.createStatement();
         ResultSet rs = stat.executeQuery("SELECT * FROM " + TABLE_NAME)) {
+      RowDecoder row = new RowDecoder(conn, rs);
       while (rs.next()) {
-        entries.add(
-            new SQLEntry(
-                rs.getString(PROJECT_ENTRY),
-                rs.getTimestamp(DATE_ENTRY).toInstant(),
-                rs.getString(EVENT_ENTRY),
-                rs.getObject(PRIMARY_ENTRY)));
+        entries.add(row.entry());
       }
       return entries;
     }
   }
 
+  /**
+   * Get the events stored after an identifier, in the order they were stored.
+   *
+   * @param afterId the identifier to start after
+   * @param limit the maximum number of events to get
+   * @return the events
+   * @throws SQLException If there was a problem with the database
+   */
+  @Override
+  public List<SQLEntry> getEntries(long afterId, int limit) throws SQLException {
+    List<SQLEntry> entries = new ArrayList<>(limit);
+    try (Connection conn = queryDs.getConnection();
+        PreparedStatement ps =
+            conn.prepareStatement(
+                format(
+                    "SELECT * FROM %s WHERE %s > ? ORDER BY %s LIMIT ?",
+                    TABLE_NAME, PRIMARY_ENTRY, PRIMARY_ENTRY))) {
+      ps.setLong(1, afterId);
+      ps.setInt(2, limit);
+      try (ResultSet rs = ps.executeQuery()) {
+        RowDecoder row = new RowDecoder(conn, rs);
+        while (rs.next()) {
+          entries.add(row.entry());
+        }
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Count the events stored.
+   *
+   * @return the number of events
+   * @throws SQLException If there was a problem with the database
+   */
+  @Override
+  public long countEvents() throws SQLException {
+    try (Connection conn = queryDs.getConnection();
+        Statement stat = conn.createStatement();
+        ResultSet rs = stat.executeQuery("SELECT COUNT(*) FROM " + TABLE_NAME)) {
+      return rs.next() ? rs.getLong(1) : 0;
+    }
+  }
+
+  /**
+   * Remove the events stored up to an identifier, such as the ones restored to another database.
+   *
+   * @param id the identifier of the last event to remove
+   * @throws SQLException If there was a problem with the database
+   */
+  @Override
+  public void removeEventsUpTo(long id) throws SQLException {
+    try (Connection conn = ds.getConnection();
+        PreparedStatement ps =
+            conn.prepareStatement(
+                format("DELETE FROM %s WHERE %s <= ?", TABLE_NAME, PRIMARY_ENTRY))) {
+      ps.setLong(1, id);
+      ps.executeUpdate();
+    }
+  }
+
   private ListMultimap<String, SQLEntry> listEvents(Statement stat, String query)
       throws MalformedQueryException {
     try (ResultSet rs = stat.executeQuery(query)) {
       ListMultimap<String, SQLEntry> result = ArrayListMultimap.create();
+      RowDecoder row = new RowDecoder(stat.getConnection(), rs);
       while (rs.next()) {
-        SQLEntry entry =
-            new SQLEntry(
-                rs.getString(PROJECT_ENTRY),
-                rs.getTimestamp(DATE_ENTRY).toInstant(),
-                rs.getString(EVENT_ENTRY),
-                rs.getObject(PRIMARY_ENTRY));
-        result.put(rs.getString(PROJECT_ENTRY), entry);
+        SQLEntry entry = row.entry();
+        result.put(entry.getName(), entry);
       }
       return result;
     } catch (SQLException e) {
@@ -292,9 +1497,56 @@ class SQLClient {
   }
 
   private void execute(String query) throws SQLException {
-    try (Connection conn = ds.getConnection();
+    execute(ds, query);
+  }
+
+  private static void execute(HikariDataSource dataSource, String query) throws SQLException {
+    try (Connection conn = dataSource.getConnection();
         Statement stat = conn.createStatement()) {
       stat.execute(query);
     }
   }
+
+  /** The hour, project and type that events are counted by. */
+  private static class CountKey {
+    private final Instant bucket;
+    private final String project;
+    private final String type;
+
+    CountKey(Instant timestamp, String project, String type) {
+      this.bucket = timestamp.truncatedTo(HOURS);
+      this.project = project;
+      this.type = type;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o instanceof CountKey) {
+        CountKey other = (CountKey) o;
+        return bucket.equals(other.bucket)
+            && project.equals(other.project)
+            && type.equals(other.type);
+      }
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(bucket, project, type);
+    }
+  }
+
+  /** Notified of the outcome of the writes of the queued events, on the thread writing them. */
+  interface WriteListener {
+    /** Called when a batch of events was written. */
+    void written();
+
+    /**
+     * Called when a batch of events could not be written, instead of dropping it.
+     *
+     * @param batch the events of the batch, in order
+     * @param e the cause of the failure
+     */
+    void writeFailed(List<KeyedEvent> batch, SQLException e);
+  }
 }
@@ -14,20 +14,28 @@
 
 package com.ericsson.gerrit.plugins.eventslog.sql;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import java.time.Instant;
-import java.util.Objects;
+import java.util.UUID;
 
 class SQLEntry implements Comparable<SQLEntry> {
   private String name;
   private Instant timestamp;
   private String event;
-  private Object id;
+  private long id;
+  private String key;
+
+  SQLEntry(String name, Instant timestamp, String event, long id) {
+    this(name, timestamp, event, id, null);
+  }
 
-  SQLEntry(String name, Instant timestamp, String event, Object id) {
+  SQLEntry(String name, Instant timestamp, String event, long id, String key) {
     this.name = name;
     this.timestamp = timestamp;
     this.event = event;
     this.id = id;
+    this.key = key;
   }
 
   public String getName() {
@@ -42,6 +50,21 @@ class SQLEntry implements Comparable<SQLEntry> {
     return event;
   }
 
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * Get the key of the event, assigned when it was received. Events stored locally by earlier
+   * versions of the plugin have none; their key is derived from their project and content instead.
+   */
+  String getKey() {
+    if (key == null) {
+      key = UUID.nameUUIDFromBytes((name + "\n" + event).getBytes(UTF_8)).toString();
+    }
+    return key;
+  }
+
   @Override
   public int compareTo(SQLEntry o) {
     return timestamp.compareTo(o.timestamp);
@@ -51,13 +74,13 @@ class SQLEntry implements Comparable<SQLEntry> {
   public boolean equals(Object o) {
     if (o instanceof SQLEntry) {
       SQLEntry other = (SQLEntry) o;
-      return Objects.equals(id, other.id);
+      return id == other.id;
     }
     return false;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(id);
+    return Long.hashCode(id);
   }
 }
@@ -0,0 +1,53 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static java.util.Comparator.comparing;
+
+import java.time.Instant;
+import java.util.Comparator;
+
+/** The number of events of a type that happened on a project during one hour. */
+class SQLEventCount implements Comparable<SQLEventCount> {
+  private static final Comparator<SQLEventCount> ORDER =
+      comparing((SQLEventCount c) -> c.bucket)
+          .thenComparing(c -> c.project)
+          .thenComparing(c -> c.type);
+
+  private final String bucket;
+  private final String project;
+  private final String type;
+  private final long count;
+
+  SQLEventCount(Instant bucket, String project, String type, long count) {
+    this.bucket = bucket.toString();
+    this.project = project;
+    this.type = type;
+    this.count = count;
+  }
+
+  public String getProject() {
+    return project;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public int compareTo(SQLEventCount o) {
+    return ORDER.compare(this, o);
+  }
+}
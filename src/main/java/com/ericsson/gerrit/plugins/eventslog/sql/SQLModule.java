@@ -19,48 +19,125 @@ import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.H2_DB_PREFIX
 import com.ericsson.gerrit.plugins.eventslog.EventModule;
 import com.ericsson.gerrit.plugins.eventslog.EventStore;
 import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.LocalStoreType;
 import com.ericsson.gerrit.plugins.eventslog.QueryMaker;
+import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.events.ProjectDeletedListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.google.inject.internal.UniqueAnnotations;
 import com.zaxxer.hikari.HikariConfig;
+import java.util.ArrayList;
+import java.util.List;
 
-class SQLModule extends AbstractModule {
+/** Stores the events in a database. */
+public class SQLModule extends AbstractModule {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
 
   @Override
   protected void configure() {
     install(new EventModule());
     bind(EventStore.class).to(SQLStore.class);
+    bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create()).to(EventIndex.class);
     bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create()).to(SQLStore.class);
     bind(QueryMaker.class).to(SQLQueryMaker.class);
+    bind(PoolMetrics.class).asEagerSingleton();
+    DynamicSet.bind(binder(), ProjectDeletedListener.class).to(EventsLogCleaner.class);
   }
 
   @Provides
   @Singleton
   @EventsDb
-  SQLClient provideSqlClient(EventsLogConfig cfg, @PluginName String pluginName) {
-    HikariConfig dsConfig = new HikariConfig();
-    dsConfig.setJdbcUrl(cfg.getStoreUrl());
-    dsConfig.setUsername(cfg.getStoreUsername());
-    dsConfig.setPassword(cfg.getStorePassword());
-    dsConfig.setPoolName("[" + pluginName + "] EventsDb");
-    dsConfig.setMaximumPoolSize(cfg.getMaxConnections());
-    setDataSourceOptions(cfg, dsConfig);
-    return new SQLClient(dsConfig);
+  SQLClient provideSqlClient(EventsLogConfig cfg, @PluginName String pluginName, EventIndex index) {
+    SQLClient client =
+        new SQLClient(
+            eventsDbConfig(
+                cfg,
+                cfg.getStoreUrl(),
+                "[" + pluginName + "] EventsDb",
+                cfg.getMaxConnections(),
+                cfg.getWriteConnectionTimeout()),
+            eventsDbConfig(
+                cfg,
+                cfg.getStoreUrl(),
+                "[" + pluginName + "] EventsDb-query",
+                cfg.getMaxQueryConnections(),
+                cfg.getQueryConnectionTimeout()),
+            eventsDbConfig(
+                cfg,
+                cfg.getStoreUrl(),
+                "[" + pluginName + "] EventsDb-maintenance",
+                cfg.getMaxMaintenanceConnections(),
+                cfg.getMaintenanceConnectionTimeout()),
+            replicaConfigs(cfg, pluginName),
+            cfg.getCheckReplicaLag());
+    client.setIndex(index);
+    client.setJsonbEvents(cfg.getJsonbEvents());
+    client.setMigrationThrottle(cfg.getMigrationBatchSize(), cfg.getMigrationBatchDelay());
+    client.setShutdownTimeout(cfg.getShutdownTimeout());
+    return client;
+  }
+
+  private List<HikariConfig> replicaConfigs(EventsLogConfig cfg, String pluginName) {
+    List<HikariConfig> replicaConfigs = new ArrayList<>();
+    String[] urls = cfg.getReadStoreUrls();
+    if (urls.length > 0 && SQLDialect.fromJdbcUrl(cfg.getStoreUrl()) == SQLDialect.SPANNER) {
+      log.atWarning().log("Read replicas are not supported with Cloud Spanner, ignoring them");
+      return replicaConfigs;
+    }
+    for (int i = 0; i < urls.length; i++) {
+      HikariConfig dsConfig =
+          eventsDbConfig(
+              cfg,
+              urls[i],
+              "[" + pluginName + "] EventsDb-replica-" + i,
+              cfg.getMaxQueryConnections(),
+              cfg.getQueryConnectionTimeout());
+      // Do not fail to start when a replica is unreachable, queries then use the primary.
+      dsConfig.setInitializationFailTimeout(-1);
+      replicaConfigs.add(dsConfig);
+    }
+    return replicaConfigs;
   }
 
   @Provides
   @Singleton
   @LocalEventsDb
-  SQLClient provideLocalSqlClient(EventsLogConfig cfg, @PluginName String pluginName) {
+  LocalEventStore provideLocalEventStore(EventsLogConfig cfg, @PluginName String pluginName) {
+    if (cfg.getLocalStoreType() == LocalStoreType.JOURNAL) {
+      return new EventJournal(
+          cfg.getLocalStorePath().resolve(SQLTable.TABLE_NAME + EventJournal.SUFFIX), pluginName);
+    }
     HikariConfig dsConfig = new HikariConfig();
     dsConfig.setJdbcUrl(H2_DB_PREFIX + cfg.getLocalStorePath().resolve(SQLTable.TABLE_NAME));
     dsConfig.setPoolName("[" + pluginName + "] LocalEventsDb");
     setDataSourceOptions(cfg, dsConfig);
-    return new SQLClient(dsConfig);
+    SQLClient client = new SQLClient(dsConfig);
+    // The database counts the events once they are restored.
+    client.setCounts(false);
+    client.setShutdownTimeout(cfg.getShutdownTimeout());
+    return client;
+  }
+
+  private HikariConfig eventsDbConfig(
+      EventsLogConfig cfg,
+      String url,
+      String poolName,
+      int maxConnections,
+      long connectionTimeout) {
+    HikariConfig dsConfig = new HikariConfig();
+    dsConfig.setJdbcUrl(url);
+    dsConfig.setUsername(cfg.getStoreUsername());
+    dsConfig.setPassword(cfg.getStorePassword());
+    dsConfig.setPoolName(poolName);
+    dsConfig.setMaximumPoolSize(maxConnections);
+    dsConfig.setConnectionTimeout(connectionTimeout);
+    setDataSourceOptions(cfg, dsConfig);
+    return dsConfig;
   }
 
   private void setDataSourceOptions(EventsLogConfig cfg, HikariConfig dsConfig) {
@@ -14,39 +14,61 @@
 
 package com.ericsson.gerrit.plugins.eventslog.sql;
 
+import static com.ericsson.gerrit.plugins.eventslog.QueryDates.DATE_TIME_FORMAT;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.BUCKET_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.COUNTS_TABLE_NAME;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.DATE_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.EVENT_ENTRY;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PRIMARY_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PROJECT_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PROJECT_ID_ENTRY;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TABLE_NAME;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TYPE_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.VISIBLE_CONDITION;
 
 import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.FieldProjection;
 import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
+import com.ericsson.gerrit.plugins.eventslog.QueryDates;
 import com.ericsson.gerrit.plugins.eventslog.QueryMaker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+import com.google.gson.JsonObject;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import java.time.LocalDate;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @Singleton
 class SQLQueryMaker implements QueryMaker {
-  private static final int TWO = 2;
   private static final String TIME_ONE = "t1";
   private static final String TIME_TWO = "t2";
+  private static final String AFTER = "after";
+  private static final String SEARCH = "search";
+  private static final String TYPE = "type";
+  private static final String CHANGE = "change";
+  private static final String BRANCH = "branch";
+  private static final String UPLOADER = "uploader";
   private static final String UTC = "Z";
-  private static final DateTimeFormatter DATE_TIME_FORMAT =
-      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-  private static final DateTimeFormatter DATE_ONLY_FORMAT =
-      DateTimeFormatter.ofPattern("yyyy-MM-dd");
+  private static final long MIN_RANGE_SECONDS = TimeUnit.HOURS.toSeconds(1);
 
   private final int returnLimit;
+  private final int queryParallelism;
   private final SQLDialect databaseDialect;
+  private final EventIndex index;
+  private final boolean jsonbEvents;
 
   @Inject
-  SQLQueryMaker(EventsLogConfig config) {
+  SQLQueryMaker(EventsLogConfig config, EventIndex index) {
+    this.index = index;
     this.returnLimit = config.getReturnLimit();
+    this.queryParallelism = config.getQueryParallelism();
     this.databaseDialect = SQLDialect.fromJdbcUrl(config.getStoreUrl());
+    this.jsonbEvents = config.getJsonbEvents() && databaseDialect == SQLDialect.POSTGRESQL;
   }
 
   @Override
@@ -55,54 +77,287 @@ class SQLQueryMaker implements QueryMaker {
     if (params == null) {
       return getDefaultQuery();
     }
-    String[] dates;
-    try {
-      dates = parseDates(params.get(TIME_ONE), params.get(TIME_TWO));
-    } catch (DateTimeParseException e) {
-      throw new MalformedQueryException(e);
+    String columns = selectColumns(FieldProjection.parse(params.get(FieldProjection.FIELDS)));
+    String where = VISIBLE_CONDITION + filterConditions(params);
+    if (params.get(SEARCH) != null) {
+      return searchQuery(columns, where, params);
     }
+    if (params.get(TIME_ONE) == null
+        && params.get(TIME_TWO) == null
+        && (params.containsKey(FieldProjection.FIELDS) || !where.equals(VISIBLE_CONDITION))) {
+      return defaultQuery(columns, where);
+    }
+    String[] dates = parseDates(params.get(TIME_ONE), params.get(TIME_TWO));
 
     switch (databaseDialect) {
       case SPANNER:
         return String.format(
-            "SELECT * FROM %s WHERE %s BETWEEN '%s%s' and '%s%s' ORDER BY date_created LIMIT %d",
-            TABLE_NAME, DATE_ENTRY, dates[0], UTC, dates[1], UTC, returnLimit);
+            "SELECT %s FROM %s WHERE %s AND %s BETWEEN '%s%s' and '%s%s' ORDER BY date_created"
+                + " LIMIT %d",
+            columns, TABLE_NAME, where, DATE_ENTRY, dates[0], UTC, dates[1], UTC, returnLimit);
       default:
         return String.format(
-            "SELECT * FROM %s WHERE %s BETWEEN '%s' and '%s' ORDER BY date_created LIMIT %d",
-            TABLE_NAME, DATE_ENTRY, dates[0], dates[1], returnLimit);
+            "SELECT %s FROM %s WHERE %s AND %s BETWEEN '%s' and '%s' ORDER BY date_created LIMIT"
+                + " %d",
+            columns, TABLE_NAME, where, DATE_ENTRY, dates[0], dates[1], returnLimit);
     }
   }
 
+  /**
+   * {@inheritDoc} The time window is split in as many parts as the configured query parallelism, as
+   * long as each part covers at least an hour.
+   */
   @Override
-  public String getDefaultQuery() {
+  public List<String> formQueriesFromRequestParameters(Map<String, String> params)
+      throws MalformedQueryException {
+    if (queryParallelism == 1
+        || params == null
+        || params.get(SEARCH) != null
+        || (params.get(TIME_ONE) == null && params.get(TIME_TWO) == null)) {
+      return ImmutableList.of(formQueryFromRequestParameters(params));
+    }
+    String columns = selectColumns(FieldProjection.parse(params.get(FieldProjection.FIELDS)));
+    String where = VISIBLE_CONDITION + filterConditions(params);
+    LocalDateTime[] dates = QueryDates.parseRange(params.get(TIME_ONE), params.get(TIME_TWO));
+    long seconds = Duration.between(dates[0], dates[1]).getSeconds();
+    int ranges = (int) Math.min(queryParallelism, seconds / MIN_RANGE_SECONDS);
+    if (ranges <= 1) {
+      return ImmutableList.of(formQueryFromRequestParameters(params));
+    }
+
+    String suffix = databaseDialect == SQLDialect.SPANNER ? UTC : "";
+    List<String> queries = new ArrayList<>(ranges);
+    for (int i = 0; i < ranges; i++) {
+      LocalDateTime start = dates[0].plusSeconds(seconds * i / ranges);
+      LocalDateTime end =
+          i == ranges - 1 ? dates[1] : dates[0].plusSeconds(seconds * (i + 1) / ranges);
+      queries.add(
+          String.format(
+              "SELECT %s FROM %s WHERE %s AND %s >= '%s%s' and %s %s '%s%s' ORDER BY date_created"
+                  + " LIMIT %d",
+              columns,
+              TABLE_NAME,
+              where,
+              DATE_ENTRY,
+              DATE_TIME_FORMAT.format(start),
+              suffix,
+              DATE_ENTRY,
+              // Only the last part includes its end, the others end where the next one starts.
+              i == ranges - 1 ? "<=" : "<",
+              DATE_TIME_FORMAT.format(end),
+              suffix,
+              returnLimit));
+    }
+    return queries;
+  }
+
+  /**
+   * Form a query on the latest events found by the index, within the time window when one is given.
+   * The index is searched when the query runs, within the projects the user can see.
+   */
+  private String searchQuery(String columns, String where, Map<String, String> params)
+      throws MalformedQueryException {
+    long from = Long.MIN_VALUE;
+    long to = Long.MAX_VALUE;
+    if (params.get(TIME_ONE) != null || params.get(TIME_TWO) != null) {
+      LocalDateTime[] dates = QueryDates.parseRange(params.get(TIME_ONE), params.get(TIME_TWO));
+      from = QueryDates.toEpochSecond(dates[0]);
+      to = QueryDates.toEpochSecond(dates[1]);
+    }
+    if (!index.isOpen()) {
+      throw new MalformedQueryException();
+    }
     return String.format(
-        "SELECT * FROM (SELECT * FROM %s ORDER BY %s DESC LIMIT %s) a ORDER BY %s ASC",
-        TABLE_NAME, PRIMARY_ENTRY, returnLimit, PRIMARY_ENTRY);
+        "SELECT %s FROM %s WHERE %s AND %s IN (%s) ORDER BY %s",
+        columns,
+        TABLE_NAME,
+        where,
+        PRIMARY_ENTRY,
+        SQLTable.searchIds(params.get(SEARCH), from, to),
+        PRIMARY_ENTRY);
+  }
+
+  /**
+   * Get the columns to select. Where the database can build JSON, only the selected fields of the
+   * events are read; elsewhere the whole events are read and projected afterwards.
+   */
+  private String selectColumns(FieldProjection fields) {
+    if (fields == null) {
+      return "*";
+    }
+    switch (databaseDialect) {
+      case POSTGRESQL:
+        return String.format(
+            "%s, %s, %s, %s, json_strip_nulls(%s) AS %s",
+            PRIMARY_ENTRY,
+            PROJECT_ENTRY,
+            PROJECT_ID_ENTRY,
+            DATE_ENTRY,
+            buildObject(fields, new ArrayList<>()),
+            EVENT_ENTRY);
+      case MYSQL:
+        return String.format(
+            "%s, %s, %s, %s, %s AS %s",
+            PRIMARY_ENTRY,
+            PROJECT_ENTRY,
+            PROJECT_ID_ENTRY,
+            DATE_ENTRY,
+            buildObject(fields, new ArrayList<>()),
+            EVENT_ENTRY);
+      case H2:
+      case SPANNER:
+      default:
+        return "*";
+    }
+  }
+
+  private String buildObject(FieldProjection fields, List<String> path) {
+    List<String> members = new ArrayList<>();
+    for (Map.Entry<String, FieldProjection> child : fields.getChildren().entrySet()) {
+      path.add(child.getKey());
+      members.add("'" + child.getKey() + "'");
+      members.add(child.getValue().isLeaf() ? extract(path) : buildObject(child.getValue(), path));
+      path.remove(path.size() - 1);
+    }
+    return String.format(
+        databaseDialect == SQLDialect.POSTGRESQL ? "json_build_object(%s)" : "JSON_OBJECT(%s)",
+        String.join(", ", members));
+  }
+
+  private String extract(List<String> path) {
+    if (databaseDialect == SQLDialect.POSTGRESQL) {
+      return String.format("CAST(%s AS json) #> '{%s}'", EVENT_ENTRY, String.join(",", path));
+    }
+    return String.format("JSON_EXTRACT(%s, '$.\"%s\"')", EVENT_ENTRY, String.join("\".\"", path));
   }
 
-  private String[] parseDates(String dateOne, String dateTwo)
-      throws MalformedQueryException, DateTimeParseException {
-    if (dateOne == null && dateTwo == null) {
+  @Override
+  public String formCountsQueryFromRequestParameters(Map<String, String> params)
+      throws MalformedQueryException {
+    if (SQLTable.upsertCountQuery(databaseDialect) == null) {
       throw new MalformedQueryException();
     }
-    LocalDateTime dOne = dateOne == null ? LocalDateTime.now() : parseDate(dateOne);
-    LocalDateTime dTwo = dateTwo == null ? LocalDateTime.now() : parseDate(dateTwo);
-    LocalDateTime[] dates = new LocalDateTime[TWO];
+    String[] dates;
+    if (params == null) {
+      LocalDateTime now = LocalDateTime.now();
+      dates =
+          new String[] {DATE_TIME_FORMAT.format(now.minusDays(1)), DATE_TIME_FORMAT.format(now)};
+    } else {
+      dates = parseDates(params.get(TIME_ONE), params.get(TIME_TWO));
+    }
+    // No limit: the counts are already aggregated, and a limit applied before the projects that
+    // are not visible to the user are filtered out would drop some of the visible ones.
+    return String.format(
+        "SELECT * FROM %s WHERE %s BETWEEN '%s' and '%s' ORDER BY %s, %s, %s",
+        COUNTS_TABLE_NAME,
+        BUCKET_ENTRY,
+        dates[0],
+        dates[1],
+        BUCKET_ENTRY,
+        PROJECT_ENTRY,
+        TYPE_ENTRY);
+  }
 
-    dates[0] = dOne.isBefore(dTwo) ? dOne : dTwo;
-    dates[1] = dOne.isBefore(dTwo) ? dTwo : dOne;
-    return new String[] {DATE_TIME_FORMAT.format(dates[0]), DATE_TIME_FORMAT.format(dates[1])};
+  @Override
+  public String formExportQueryFromRequestParameters(Map<String, String> params)
+      throws MalformedQueryException {
+    List<String> conditions = new ArrayList<>();
+    if (params != null && params.get(AFTER) != null) {
+      // Spanner identifiers are random, exports cannot be resumed from one.
+      if (databaseDialect == SQLDialect.SPANNER) {
+        throw new MalformedQueryException();
+      }
+      try {
+        conditions.add(String.format("%s > %d", PRIMARY_ENTRY, Long.parseLong(params.get(AFTER))));
+      } catch (NumberFormatException e) {
+        throw new MalformedQueryException(e);
+      }
+    }
+    if (params != null && (params.get(TIME_ONE) != null || params.get(TIME_TWO) != null)) {
+      String[] dates = parseDates(params.get(TIME_ONE), params.get(TIME_TWO));
+      String suffix = databaseDialect == SQLDialect.SPANNER ? UTC : "";
+      conditions.add(
+          String.format(
+              "%s BETWEEN '%s%s' and '%s%s'", DATE_ENTRY, dates[0], suffix, dates[1], suffix));
+    }
+    // The columns are listed in the order they are read, so that drivers streaming the rows can
+    // stream the event, read last.
+    return String.format(
+        "SELECT %s FROM %s%s ORDER BY %s",
+        databaseDialect == SQLDialect.SPANNER
+            ? String.join(", ", PRIMARY_ENTRY, PROJECT_ENTRY, DATE_ENTRY, EVENT_ENTRY)
+            : String.join(
+                ", ", PRIMARY_ENTRY, PROJECT_ID_ENTRY, PROJECT_ENTRY, DATE_ENTRY, EVENT_ENTRY),
+        TABLE_NAME,
+        conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions),
+        databaseDialect == SQLDialect.SPANNER ? DATE_ENTRY : PRIMARY_ENTRY);
   }
 
-  private LocalDateTime parseDate(String date) throws DateTimeParseException {
-    LocalDateTime parsedDate;
-    try {
-      parsedDate = LocalDateTime.parse(date, DATE_TIME_FORMAT);
-    } catch (DateTimeParseException e) {
-      LocalDate localDate = LocalDate.parse(date, DATE_ONLY_FORMAT);
-      parsedDate = localDate.atStartOfDay();
+  @Override
+  public String getDefaultQuery() {
+    return defaultQuery("*", VISIBLE_CONDITION);
+  }
+
+  private String defaultQuery(String columns, String where) {
+    return String.format(
+        "SELECT %s FROM (SELECT * FROM %s WHERE %s ORDER BY %s DESC LIMIT %s) a ORDER BY %s ASC",
+        columns, TABLE_NAME, where, PRIMARY_ENTRY, returnLimit, PRIMARY_ENTRY);
+  }
+
+  /**
+   * Get the conditions on the content of the events given by the parameters, as containment
+   * conditions which the GIN index of the events serves. Filters are only supported when the events
+   * are stored as JSONB.
+   */
+  private String filterConditions(Map<String, String> params) throws MalformedQueryException {
+    StringBuilder conditions = new StringBuilder();
+    for (String filter : ImmutableList.of(TYPE, CHANGE, BRANCH, UPLOADER)) {
+      String value = params.get(filter);
+      if (value == null) {
+        continue;
+      }
+      if (!jsonbEvents) {
+        throw new MalformedQueryException();
+      }
+      conditions.append(" AND ").append(SQLTable.containsCondition(filterObject(filter, value)));
     }
-    return parsedDate;
+    return conditions.toString();
+  }
+
+  private static JsonObject filterObject(String filter, String value) {
+    JsonObject object = new JsonObject();
+    switch (filter) {
+      case TYPE:
+        object.addProperty(TYPE, value);
+        return object;
+      case CHANGE:
+        // A change is given by its number or by its Change-Id.
+        Integer number = Ints.tryParse(value);
+        if (number != null) {
+          object.addProperty("number", number);
+        } else {
+          object.addProperty("id", value);
+        }
+        return nest(object, CHANGE);
+      case BRANCH:
+        object.addProperty(BRANCH, value);
+        return nest(object, CHANGE);
+      case UPLOADER:
+      default:
+        object.addProperty(value.contains("@") ? "email" : "username", value);
+        return nest(nest(object, UPLOADER), "patchSet");
+    }
+  }
+
+  private static JsonObject nest(JsonObject object, String name) {
+    JsonObject parent = new JsonObject();
+    parent.add(name, object);
+    return parent;
+  }
+
+  private static String[] parseDates(String dateOne, String dateTwo)
+      throws MalformedQueryException {
+    LocalDateTime[] dates = QueryDates.parseRange(dateOne, dateTwo);
+    return new String[] {DATE_TIME_FORMAT.format(dates[0]), DATE_TIME_FORMAT.format(dates[1])};
   }
 }
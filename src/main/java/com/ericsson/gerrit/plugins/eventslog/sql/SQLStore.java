@@ -15,90 +15,183 @@
 package com.ericsson.gerrit.plugins.eventslog.sql;
 
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TABLE_NAME;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.VISIBLE_CONDITION;
+import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
 import com.ericsson.gerrit.plugins.eventslog.EventPool;
 import com.ericsson.gerrit.plugins.eventslog.EventStore;
 import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.LocalStoreType;
 import com.ericsson.gerrit.plugins.eventslog.EventsLogException;
 import com.ericsson.gerrit.plugins.eventslog.ServiceUnavailableException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimaps;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.exceptions.StorageException;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.server.events.ProjectEvent;
+import com.google.gerrit.server.events.RefUpdatedEvent;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.google.gerrit.server.permissions.ProjectPermission;
 import com.google.gerrit.server.util.time.TimeUtil;
+import com.google.gson.Gson;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.IOException;
-import java.net.ConnectException;
+import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
 
 @Singleton
 class SQLStore implements EventStore, LifecycleListener {
   private static final FluentLogger log = FluentLogger.forEnclosingClass();
   private static final String H2_DB_SUFFIX = ".h2.db";
 
+  /** The number of events restored from the local database at a time. */
+  static final int RESTORE_CHUNK_SIZE = 500;
+
+  private static final Gson gson = new Gson();
+
   private final EventsLogCleaner eventsLogCleaner;
   private SQLClient eventsDb;
-  private SQLClient localEventsDb;
+  private LocalEventStore localEventsDb;
   private final int maxAge;
-  private final int maxTries;
-  private final int waitTime;
+  private final int countsMaxAge;
+  private final int returnLimit;
   private final int connectTime;
-  private boolean online = true;
+  private final WriteCircuitBreaker breaker;
+  private volatile boolean localSetUp;
+  private volatile boolean stopping;
   private boolean copyLocal;
   private final ScheduledExecutorService pool;
   private final PermissionBackend permissionBackend;
+  private final VisibilityClassifier classifier;
+  private final ThreadPoolExecutor permissionCheckExecutor;
+  private final ExecutorService restoreExecutor;
+  private final int restoreDelay;
+  private volatile Future<?> restore;
+  private final AtomicBoolean classifying = new AtomicBoolean();
+  private final AtomicBoolean reclassifying = new AtomicBoolean();
+  private final ThreadPoolExecutor classifyExecutor;
+  private final int permissionCheckThreads;
   private final String pluginName;
   private ScheduledFuture<?> checkConnTask;
   private Path localPath;
+  private String localSuffix;
 
   @Inject
   SQLStore(
       EventsLogConfig cfg,
       @EventsDb SQLClient eventsDb,
-      @LocalEventsDb SQLClient localEventsDb,
+      @LocalEventsDb LocalEventStore localEventsDb,
       @EventPool ScheduledExecutorService pool,
       PermissionBackend permissionBackend,
+      VisibilityClassifier classifier,
       EventsLogCleaner eventsLogCleaner,
       @PluginName String pluginName) {
     this.maxAge = cfg.getMaxAge();
-    this.maxTries = cfg.getMaxTries();
-    this.waitTime = cfg.getWaitTime();
+    this.countsMaxAge = cfg.getCountsMaxAge();
+    this.returnLimit = cfg.getReturnLimit();
     this.connectTime = cfg.getConnectTime();
+    this.breaker = new WriteCircuitBreaker(cfg.getMaxTries(), cfg.getWaitTime());
     this.copyLocal = cfg.getCopyLocal();
     this.eventsDb = eventsDb;
+    eventsDb.setWriteListener(new Failover());
     this.localEventsDb = localEventsDb;
     this.eventsLogCleaner = eventsLogCleaner;
     this.pool = pool;
     this.permissionBackend = permissionBackend;
+    this.classifier = classifier;
+    this.permissionCheckThreads = cfg.getPermissionCheckThreads();
+    this.permissionCheckExecutor =
+        new ThreadPoolExecutor(
+            permissionCheckThreads,
+            permissionCheckThreads,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat(pluginName + "-permission-check-%d")
+                .setDaemon(true)
+                .build());
+    permissionCheckExecutor.allowCoreThreadTimeOut(true);
+    this.classifyExecutor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat(pluginName + "-classify")
+                .setDaemon(true)
+                .build());
+    classifyExecutor.allowCoreThreadTimeOut(true);
+    eventsDb.setProjectListener(this::classifyNewProjects);
+    // Restoring runs on its own thread, so that neither starting the plugin nor the event pool
+    // storing new events waits for it.
+    this.restoreExecutor =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat(pluginName + "-restore")
+                .setDaemon(true)
+                .build());
+    this.restoreDelay = cfg.getRestoreDelay();
     this.localPath = cfg.getLocalStorePath();
+    this.localSuffix =
+        cfg.getLocalStoreType() == LocalStoreType.JOURNAL ? EventJournal.SUFFIX : H2_DB_SUFFIX;
     this.pluginName = pluginName;
   }
 
   @Override
   public void start() {
-    setUp();
-    eventsLogCleaner.scheduleCleaningWith(maxAge);
+    if (setUp()) {
+      restore = restoreExecutor.submit(this::restoreEventsFromLocal);
+    }
+    eventsLogCleaner.scheduleCleaningWith(maxAge, countsMaxAge);
   }
 
   @Override
   public void stop() {
+    stopping = true;
     cancelCheckConnectionTaskIfScheduled(true);
+    permissionCheckExecutor.shutdownNow();
+    classifyExecutor.shutdownNow();
+    restoreExecutor.shutdownNow();
+    // The events the database does not store in time are stored locally, so close it first.
     eventsDb.close();
     localEventsDb.close();
   }
@@ -110,32 +203,300 @@ class SQLStore implements EventStore, LifecycleListener {
    */
   @Override
   public List<String> queryChangeEvents(String query) throws EventsLogException {
-    if (!online) {
+    if (!isOnline()) {
       throw new ServiceUnavailableException();
     }
+    return filterVisible(eventsDb.getEvents(restrictToVisible(searchVisible(query)))).stream()
+        .sorted()
+        .map(SQLEntry::getEvent)
+        .collect(toList());
+  }
+
+  /**
+   * {@inheritDoc} The queries run concurrently. The events returned are restricted to the projects
+   * which are visible to the user.
+   *
+   * @throws ServiceUnavailableException if working in offline mode
+   */
+  @Override
+  public List<String> queryChangeEvents(List<String> queries) throws EventsLogException {
+    if (queries.size() == 1) {
+      return queryChangeEvents(queries.get(0));
+    }
+    if (!isOnline()) {
+      throw new ServiceUnavailableException();
+    }
+    // The parts cover contiguous ranges in order, the first events found are from the first parts.
     List<SQLEntry> entries = new ArrayList<>();
+    List<String> restricted = new ArrayList<>(queries.size());
+    for (String query : queries) {
+      restricted.add(restrictToVisible(searchVisible(query)));
+    }
+    for (ListMultimap<String, SQLEntry> part : eventsDb.getEvents(restricted, returnLimit)) {
+      List<SQLEntry> partEntries = new ArrayList<>(part.values());
+      Collections.sort(partEntries);
+      entries.addAll(
+          partEntries.subList(0, Math.min(partEntries.size(), returnLimit - entries.size())));
+      if (entries.size() >= returnLimit) {
+        break;
+      }
+    }
+    return filterVisible(Multimaps.index(entries, SQLEntry::getName)).stream()
+        .sorted()
+        .map(SQLEntry::getEvent)
+        .collect(toList());
+  }
 
-    for (Entry<String, Collection<SQLEntry>> entry : eventsDb.getEvents(query).asMap().entrySet()) {
-      String projectName = entry.getKey();
+  /**
+   * {@inheritDoc} The counts returned are restricted to the projects which are visible to the user.
+   *
+   * @throws ServiceUnavailableException if working in offline mode
+   */
+  @Override
+  public List<String> queryEventCounts(String query) throws EventsLogException {
+    if (!isOnline()) {
+      throw new ServiceUnavailableException();
+    }
+    return filterVisible(eventsDb.getEventCounts(query)).stream()
+        .sorted()
+        .map(gson::toJson)
+        .collect(toList());
+  }
+
+  /**
+   * {@inheritDoc} The events exported are restricted to the projects which are visible to the user.
+   *
+   * @throws ServiceUnavailableException if working in offline mode
+   */
+  @Override
+  public void exportChangeEvents(String query, EventSink sink)
+      throws EventsLogException, IOException {
+    if (!isOnline()) {
+      throw new ServiceUnavailableException();
+    }
+    PermissionBackend.WithUser user = permissionBackend.currentUser();
+    Map<String, Boolean> visible = new HashMap<>();
+    eventsDb.exportEvents(
+        query,
+        new EventSink() {
+          @Override
+          public void write(Object id, String project, String event) throws IOException {
+            if (visible.computeIfAbsent(project, name -> isVisible(user, name))) {
+              sink.write(id, project, event);
+            }
+          }
+
+          @Override
+          public void write(Object id, String project, Reader event) throws IOException {
+            if (visible.computeIfAbsent(project, name -> isVisible(user, name))) {
+              sink.write(id, project, event);
+            }
+          }
+        });
+  }
+
+  /**
+   * Search the index for the events of the query, if it is a search, within the projects the user
+   * can see.
+   */
+  private String searchVisible(String query) throws EventsLogException {
+    Matcher searchIds = SQLTable.SEARCH_IDS.matcher(query);
+    if (!searchIds.find()) {
+      return query;
+    }
+    List<Long> ids =
+        eventsDb.searchEvents(
+            SQLTable.getSearch(searchIds),
+            Long.parseLong(searchIds.group(1)),
+            Long.parseLong(searchIds.group(2)),
+            returnLimit,
+            this::visibleProjects);
+    if (ids.isEmpty()) {
+      return query;
+    }
+    return query.substring(0, searchIds.start())
+        + ids.stream().map(String::valueOf).collect(joining(", "))
+        + query.substring(searchIds.end());
+  }
+
+  /**
+   * Restrict the query to the visibility classes the user can see, so that the events of the other
+   * projects are not read. The events found are still filtered, as the classes of the projects may
+   * not be up to date.
+   */
+  private String restrictToVisible(String query) {
+    if (!eventsDb.hasProjectDictionary() || !query.contains(VISIBLE_CONDITION)) {
+      return query;
+    }
+    Map<Long, String> classes = eventsDb.getVisibilityClasses();
+    Set<Project.NameKey> visible;
+    try {
+      visible =
+          permissionBackend
+              .currentUser()
+              .filter(
+                  ProjectPermission.ACCESS,
+                  classes.values().stream().map(Project::nameKey).collect(toSet()));
+    } catch (PermissionBackendException e) {
+      log.atWarning().withCause(e).log("Cannot check project access permission");
+      return query;
+    }
+    if (visible.size() == classes.size()) {
+      return query;
+    }
+    List<Long> visibleClasses = new ArrayList<>();
+    for (Entry<Long, String> entry : classes.entrySet()) {
+      if (visible.contains(Project.nameKey(entry.getValue()))) {
+        visibleClasses.add(entry.getKey());
+      }
+    }
+    return query.replace(VISIBLE_CONDITION, SQLTable.visibleCondition(visibleClasses));
+  }
+
+  /**
+   * Set the visibility classes of the projects.
+   *
+   * @param unclassified whether to only classify the projects whose class is not set
+   */
+  private void classifyProjects(boolean unclassified) {
+    Map<String, Long> classes = new HashMap<>();
+    for (String project : eventsDb.getProjects(unclassified)) {
       try {
-        permissionBackend
-            .currentUser()
-            .project(Project.nameKey(projectName))
-            .check(ProjectPermission.ACCESS);
-        entries.addAll(entry.getValue());
-      } catch (AuthException e) {
-        // Ignore
-      } catch (PermissionBackendException e) {
-        log.atWarning().withCause(e).log("Cannot check project access permission");
+        classes.put(project, classifier.classify(project));
+      } catch (StorageException e) {
+        log.atWarning().withCause(e).log("Cannot classify project %s", project);
+      }
+    }
+    try {
+      eventsDb.setVisibilityClasses(classes);
+    } catch (SQLException e) {
+      log.atWarning().withCause(e).log("Cannot store the visibility classes of projects");
+    }
+  }
+
+  /**
+   * Set the visibility classes of the projects which have none yet in the background. Until then,
+   * the events of these projects are filtered once read.
+   */
+  private void classifyNewProjects() {
+    classifyInBackground(classifying, true);
+  }
+
+  /** Recompute the visibility classes of all projects in the background, once access changed. */
+  private void reclassifyProjects() {
+    classifyInBackground(reclassifying, false);
+  }
+
+  /**
+   * Classify the projects on the classification thread, neither on the request threads nor on the
+   * event pool storing the events. A classification requested while another one of the same kind is
+   * pending is left to it.
+   */
+  private void classifyInBackground(AtomicBoolean pending, boolean unclassified) {
+    if (!eventsDb.hasProjectDictionary() || !pending.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      classifyExecutor.execute(
+          () -> {
+            pending.set(false);
+            classifyProjects(unclassified);
+          });
+    } catch (RejectedExecutionException e) {
+      log.atFine().log("Not classifying projects, the store is stopped");
+    }
+  }
+
+  private <T> List<T> filterVisible(ListMultimap<String, T> byProject) {
+    Set<String> visibleProjects = visibleProjects(byProject.keySet());
+    List<T> visible = new ArrayList<>();
+    for (Entry<String, Collection<T>> entry : byProject.asMap().entrySet()) {
+      if (visibleProjects.contains(entry.getKey())) {
+        visible.addAll(entry.getValue());
       }
     }
-    return entries.stream().sorted().map(SQLEntry::getEvent).collect(toList());
+    return visible;
   }
 
   /**
-   * {@inheritDoc} If storing the event fails due to a connection problem, storage will be
-   * re-attempted as specified in gerrit.config. After failing the maximum amount of times, the
-   * event will be stored in a local h2 database.
+   * Get the projects the user can see. The projects are checked at the same time on the permission
+   * check threads. The user is resolved beforehand, on the request thread, since the current user
+   * is request scoped; the checks made from it only read caches and the groups of the user, which
+   * the permission backend itself loads concurrently, so they can run on other threads. A project
+   * which cannot be checked is not visible.
+   */
+  private Set<String> visibleProjects(Set<String> projects) {
+    PermissionBackend.WithUser user = permissionBackend.currentUser();
+    Set<String> visible = new HashSet<>();
+    if (projects.isEmpty()) {
+      return visible;
+    }
+    if (projects.size() == 1) {
+      String project = Iterables.getOnlyElement(projects);
+      if (isVisible(user, project)) {
+        visible.add(project);
+      }
+      return visible;
+    }
+    // One chunk of projects per thread, so that a query on many projects queues no more checks
+    // than there are threads, ahead of the checks of other queries.
+    List<String> all = new ArrayList<>(projects);
+    int chunkSize = (all.size() + permissionCheckThreads - 1) / permissionCheckThreads;
+    List<Future<List<String>>> checks = new ArrayList<>();
+    for (List<String> chunk : Lists.partition(all, chunkSize)) {
+      checks.add(permissionCheckExecutor.submit(() -> visibleProjects(user, chunk)));
+    }
+    try {
+      for (Future<List<String>> check : checks) {
+        try {
+          visible.addAll(check.get());
+        } catch (ExecutionException e) {
+          log.atWarning().withCause(e.getCause()).log("Cannot check project access permission");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.atWarning().log("Interrupted while checking project access permissions");
+    } finally {
+      checks.forEach(check -> check.cancel(true));
+    }
+    return visible;
+  }
+
+  private static List<String> visibleProjects(PermissionBackend.WithUser user, List<String> chunk) {
+    List<String> visible = new ArrayList<>(chunk.size());
+    for (String project : chunk) {
+      if (Thread.currentThread().isInterrupted()) {
+        break;
+      }
+      try {
+        if (isVisible(user, project)) {
+          visible.add(project);
+        }
+      } catch (RuntimeException e) {
+        log.atWarning().withCause(e).log("Cannot check access permission of project %s", project);
+      }
+    }
+    return visible;
+  }
+
+  private static boolean isVisible(PermissionBackend.WithUser user, String projectName) {
+    try {
+      user.project(Project.nameKey(projectName)).check(ProjectPermission.ACCESS);
+      return true;
+    } catch (AuthException e) {
+      // Ignore
+    } catch (PermissionBackendException e) {
+      log.atWarning().withCause(e).log("Cannot check project access permission");
+    }
+    return false;
+  }
+
+  /**
+   * {@inheritDoc} The event is queued for the database, or for the local database while the
+   * database is offline. If the database fails to store the batch of the event, the batch is stored
+   * locally right away; once the database failed as many times in a row as specified in
+   * gerrit.config, the events are stored locally until it is back.
    */
   @Override
   public void storeEvent(ProjectEvent event) {
@@ -144,114 +505,177 @@ class SQLStore implements EventStore, LifecycleListener {
       return;
     }
     try {
-      getEventsDb().storeEvent(event);
+      (breaker.allowWrite() ? eventsDb : localEventsDb).storeEvent(event);
     } catch (EventsLogException e) {
       log.atWarning().withCause(e).log("Cannot queue event");
     }
+    if (event instanceof RefUpdatedEvent
+        && RefNames.REFS_CONFIG.equals(((RefUpdatedEvent) event).getRefName())) {
+      reclassifyProjects();
+    }
   }
 
-  /** Triggers flushes with retry support. */
+  /** Store the queued events now, in the database and in the local database. */
   public void flush() {
-    int failedConnections = 0;
-    boolean done = false;
-
-    while (!done) {
-      try {
-        getEventsDb().flush();
-        done = true;
-      } catch (Exception e) {
-        if ((e.getCause() instanceof ConnectException)
-            || e.getMessage().contains("terminating connection")) {
-          failedConnections++;
-          try {
-            retryIfAllowed(failedConnections);
-          } catch (InterruptedException e1) {
-            Thread.currentThread().interrupt();
-            return;
-          }
-        } else {
-          log.atWarning().withCause(e).log("Cannot flush batched events");
-          return;
-        }
-      }
-    }
+    eventsDb.flush();
+    localEventsDb.flush();
   }
 
-  private void retryIfAllowed(int failedConnections) throws InterruptedException {
-    if (failedConnections < maxTries) {
-      log.atInfo().log("Retrying store events, attempt %d/%d", failedConnections, maxTries);
-      if (waitTime > 0) {
-        Thread.sleep(waitTime);
-      }
-    } else {
-      log.atSevere().log("Failed to store events %d times", maxTries);
-      setOnline(false);
-      throw new InterruptedException("Max retries exceeded");
-    }
+  private boolean isOnline() {
+    return breaker.getState() != WriteCircuitBreaker.State.OFFLINE;
   }
 
-  private void setUp() {
+  /**
+   * Set up the database, or go offline if it fails.
+   *
+   * @return true if the database is set up and the events stored locally are to be restored
+   */
+  private boolean setUp() {
     try {
-      getEventsDb().createDBIfNotCreated();
+      eventsDb.createDBIfNotCreated();
     } catch (SQLException e) {
       log.atWarning().withCause(e).log(
           "Cannot start the database. Events will be stored locally"
               + " until database connection can be established");
-      setOnline(false);
+      if (breaker.trip()) {
+        goOffline();
+      }
+      return false;
+    }
+    cancelCheckConnectionTaskIfScheduled(false);
+    classifyNewProjects();
+    return true;
+  }
+
+  private void setUpLocal() {
+    if (localSetUp) {
+      return;
+    }
+    try {
+      localEventsDb.createDBIfNotCreated();
+      localSetUp = true;
+    } catch (SQLException e) {
+      log.atSevere().withCause(e).log("Cannot start the local database");
     }
-    if (online) {
-      restoreEventsFromLocal();
+  }
+
+  /** Wait for the restore of the events stored locally to end, if one is running. */
+  @VisibleForTesting
+  void awaitRestore() throws InterruptedException, ExecutionException {
+    Future<?> current = restore;
+    if (current != null) {
+      current.get();
+    }
+  }
+
+  /** Wait for the classifications of projects requested so far to end. */
+  @VisibleForTesting
+  void awaitClassification() throws InterruptedException, ExecutionException {
+    classifyExecutor.submit(() -> {}).get();
+  }
+
+  /** Store the events locally until the database is back, probing it meanwhile. */
+  private synchronized void goOffline() {
+    setUpLocal();
+    cancelCheckConnectionTaskIfScheduled(false);
+    if (stopping) {
+      return;
     }
+    checkConnTask =
+        pool.scheduleWithFixedDelay(
+            new CheckConnectionTask(pluginName), 0, connectTime, TimeUnit.MILLISECONDS);
   }
 
-  private SQLClient getEventsDb() {
-    return online ? eventsDb : localEventsDb;
+  /**
+   * Record a successful write or connection check. Once the database is back, it is set up and the
+   * events stored locally restored on the restore thread rather than on the one that wrote, so that
+   * storing the new events does not wait for the migrations.
+   */
+  private void recordSuccess() {
+    if (breaker.recordSuccess()) {
+      log.atInfo().log("Connected to database");
+      try {
+        restore =
+            restoreExecutor.submit(
+                () -> {
+                  if (setUp()) {
+                    restoreEventsFromLocal();
+                  }
+                });
+      } catch (RejectedExecutionException e) {
+        log.atFine().log("Not setting up the database, the plugin is stopping");
+      }
+    }
   }
 
-  private void setOnline(boolean online) {
-    this.online = online;
-    setUp();
-    if (!online) {
-      checkConnTask =
-          pool.scheduleWithFixedDelay(
-              new CheckConnectionTask(pluginName), 0, connectTime, TimeUnit.MILLISECONDS);
-    } else {
-      cancelCheckConnectionTaskIfScheduled(false);
+  private void recordFailure() {
+    if (breaker.recordFailure()) {
+      log.atSevere().log(
+          "Failed to store events in the database, storing them locally until it is back");
+      goOffline();
     }
   }
 
-  private void cancelCheckConnectionTaskIfScheduled(boolean mayInterrupt) {
+  private synchronized void cancelCheckConnectionTaskIfScheduled(boolean mayInterrupt) {
     if (checkConnTask != null) {
       checkConnTask.cancel(mayInterrupt);
     }
   }
 
+  /**
+   * Move the events stored locally while the database was unavailable to the database, one chunk at
+   * a time in the order they were stored. Each chunk is stored in a single transaction, then
+   * removed from the local database, so that a restore that stops midway resumes with the events
+   * left. Only the last chunk may be stored twice, if the plugin stops between the two.
+   *
+   * <p>The restore pauses between chunks, so that the database keeps up with the new events, which
+   * are stored directly meanwhile.
+   */
   private void restoreEventsFromLocal() {
     if (!localDbExists()) {
       return;
     }
+    int restored = 0;
     try {
-      List<SQLEntry> entries = localEventsDb.getAll();
-      if (entries.isEmpty()) {
+      // Store the events still queued locally, so that they are restored as well.
+      localEventsDb.flush();
+      List<SQLEntry> chunk = localEventsDb.getEntries(0, RESTORE_CHUNK_SIZE);
+      if (chunk.isEmpty()) {
         log.atFine().log("No events to restore from local");
+        breaker.restored();
         return;
       }
-      for (SQLEntry entry : entries) {
-        restoreEvent(entry);
+      long total = localEventsDb.countEvents();
+      log.atInfo().log("Restoring %d events from local", total);
+      copyFile(copyLocal);
+      int reported = 0;
+      while (!chunk.isEmpty()) {
+        eventsDb.storeEntries(chunk);
+        long lastId = chunk.get(chunk.size() - 1).getId();
+        localEventsDb.removeEventsUpTo(lastId);
+        restored += chunk.size();
+        int percent = total > 0 ? (int) Math.min(restored * 100 / total, 100) : 100;
+        if (percent / 10 > reported / 10) {
+          reported = percent;
+          log.atInfo().log("Restored %d%% of the events from local", percent);
+        }
+        if (restoreDelay > 0) {
+          Thread.sleep(restoreDelay);
+        }
+        chunk = localEventsDb.getEntries(lastId, RESTORE_CHUNK_SIZE);
       }
     } catch (SQLException e) {
-      log.atWarning().withCause(e).log("Could not query all events from local");
-    }
-    copyFile(copyLocal);
-    localEventsDb.removeOldEvents(0);
-  }
-
-  private void restoreEvent(SQLEntry entry) {
-    try {
-      eventsDb.storeEvent(entry.getName(), entry.getTimestamp(), entry.getEvent());
-    } catch (SQLException e) {
-      log.atWarning().withCause(e).log("Could not restore events from local");
+      log.atWarning().withCause(e).log(
+          "Could not restore events from local after %d events, keeping the others", restored);
+      recordFailure();
+      return;
+    } catch (InterruptedException e) {
+      log.atInfo().log("Stopped restoring events from local after %d events", restored);
+      Thread.currentThread().interrupt();
+      return;
     }
+    log.atInfo().log("Restored %d events from local", restored);
+    breaker.restored();
   }
 
   class CheckConnectionTask implements Runnable {
@@ -263,9 +687,13 @@ class SQLStore implements EventStore, LifecycleListener {
 
     @Override
     public void run() {
+      if (!breaker.allowWrite()) {
+        return;
+      }
       if (checkConnection()) {
-        setOnline(true);
-        log.atInfo().log("Connected to database");
+        recordSuccess();
+      } else {
+        recordFailure();
       }
     }
 
@@ -286,6 +714,31 @@ class SQLStore implements EventStore, LifecycleListener {
     }
   }
 
+  /**
+   * Stores the batches the database fails to store in the local database right away, and tracks
+   * whether the database is online from the outcome of the writes.
+   */
+  private class Failover implements SQLClient.WriteListener {
+    @Override
+    public void written() {
+      recordSuccess();
+    }
+
+    @Override
+    public void writeFailed(List<KeyedEvent> batch, SQLException e) {
+      log.atWarning().withCause(e).log(
+          "Cannot store %d events, storing them locally", batch.size());
+      setUpLocal();
+      try {
+        localEventsDb.storeEvents(batch);
+      } catch (SQLException localError) {
+        log.atSevere().withCause(localError).log(
+            "Cannot store %d events locally, they are lost", batch.size());
+      }
+      recordFailure();
+    }
+  }
+
   private boolean localDbExists() {
     boolean exists = false;
     try {
@@ -301,10 +754,10 @@ class SQLStore implements EventStore, LifecycleListener {
     if (!copyLocal) {
       return;
     }
-    Path file = localPath.resolve(TABLE_NAME + H2_DB_SUFFIX);
+    Path file = localPath.resolve(TABLE_NAME + localSuffix);
     Path copyFile =
         localPath.resolve(
-            TABLE_NAME + (TimeUnit.MILLISECONDS.toSeconds(TimeUtil.nowMs())) + H2_DB_SUFFIX);
+            TABLE_NAME + (TimeUnit.MILLISECONDS.toSeconds(TimeUtil.nowMs())) + localSuffix);
     try {
       Files.copy(file, copyFile);
     } catch (IOException e) {
@@ -15,6 +15,17 @@
 package com.ericsson.gerrit.plugins.eventslog.sql;
 
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.joining;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.JsonObject;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 final class SQLTable {
   static final String TABLE_NAME = "ChangeEvents";
@@ -22,11 +33,55 @@ final class SQLTable {
   static final String PROJECT_ENTRY = "project";
   static final String DATE_ENTRY = "date_created";
   static final String EVENT_ENTRY = "event_info";
+  static final String PROJECT_ID_ENTRY = "project_id";
+  static final String EVENT_KEY_ENTRY = "event_key";
+  static final String PROJECTS_TABLE_NAME = "ChangeEventProjects";
+  static final String NAME_ENTRY = "name";
+  static final String VISIBILITY_ENTRY = "visibility_class";
+  /**
+   * Condition standing for the visibility of the events in queries, replaced by the projects the
+   * user can see when the query runs. Left as is, it is true.
+   */
+  static final String VISIBLE_CONDITION = "/* visible */ 1 = 1";
+  /**
+   * Pattern of the identifiers standing for the events found by searching the index, replaced by
+   * the identifiers of the events of the projects the user can see when the query runs. Left as is,
+   * nothing is found.
+   */
+  static final Pattern SEARCH_IDS =
+      Pattern.compile("/\\* search (-?\\d+) (-?\\d+) ([\\w-]*) \\*/ -1");
+  static final String COUNTS_TABLE_NAME = "ChangeEventCounts";
+  static final String BUCKET_ENTRY = "bucket";
+  static final String TYPE_ENTRY = "event_type";
+  static final String COUNT_ENTRY = "event_count";
+  static final String SCHEMA_TABLE_NAME = "ChangeEventsSchema";
+  static final String VERSION_ENTRY = "version";
+  static final String DESCRIPTION_ENTRY = "description";
+  static final String BACKFILLED_ENTRY = "backfilled_to";
+  static final String COMPLETED_ENTRY = "completed";
 
   /** This is the name of the index that tracks the created date. */
   private static final String CREATED_INDEX = "created_idx";
   /** This is the name of the index that tracks the project. */
   private static final String PROJECT_INDEX = "project_idx";
+  /** This is the name of the index that tracks the project identifier. */
+  private static final String PROJECT_ID_INDEX = "project_id_idx";
+  /** This is the name of the column the 64-bit identifiers are copied to on PostgreSQL. */
+  static final String NEW_ID_ENTRY = "id_new";
+  /** This is the name of the index of the 64-bit identifiers before they become the primary key. */
+  private static final String NEW_ID_INDEX = "id_new_idx";
+  /** This is the name of the constraint checking all the identifiers were copied. */
+  private static final String NEW_ID_CHECK = "id_new_not_null";
+  /** This is the name of the trigger copying the identifiers of new events. */
+  private static final String NEW_ID_TRIGGER = "copy_id_new";
+  /** This is the name of the unique index of the event keys. */
+  private static final String EVENT_KEY_INDEX = "event_key_idx";
+  /** This is the name of the index that tracks the content of the events stored as JSONB. */
+  private static final String EVENT_INFO_INDEX = "event_info_idx";
+  /** This is the name of the column the events are converted to JSONB in. */
+  static final String NEW_EVENT_ENTRY = "event_info_new";
+  /** This is the name of the trigger converting new events to JSONB. */
+  private static final String NEW_EVENT_TRIGGER = "copy_event_info_new";
   /**
    * This is the H2 idempotent index-creation query format. Inputs, in order: index-name,
    * table-name, index-column
@@ -41,6 +96,12 @@ final class SQLTable {
           + "SET @sql := IF( @x > 0, 'SELECT ''Index exists.''', 'ALTER TABLE %s ADD INDEX %s (%s);');\n"
           + "PREPARE stmt FROM @sql;\n"
           + "EXECUTE stmt";
+  /**
+   * This is the MySQL idempotent unique index-creation query format. Inputs, in order: table-name,
+   * index-name, table-name, index-name, index-column
+   */
+  private static final String MYSQL_UNIQUE_INDEX_CREATION_FORMAT =
+      MYSQL_INDEX_CREATION_FORMAT.replace("ADD INDEX", "ADD UNIQUE INDEX");
   /**
    * This is the Postgres idempotent index-creation query format. Inputs, in order: index-name,
    * index-name, table-name, index-column
@@ -66,6 +127,36 @@ final class SQLTable {
   private static final String SPANNER_INDEX_CREATION_FORMAT =
       "CREATE INDEX IF NOT EXISTS %s ON %s (%s)";
 
+  /**
+   * This is the Postgres query format adding to the count of a bucket. Inputs, in order:
+   * table-name, bucket-column, project-column, type-column, count-column, bucket-column,
+   * project-column, type-column, count-column, table-name, count-column, count-column
+   */
+  private static final String POSTGRESQL_COUNT_UPSERT_FORMAT =
+      "INSERT INTO %s (%s, %s, %s, %s) VALUES (?, ?, ?, ?)"
+          + " ON CONFLICT (%s, %s, %s) DO UPDATE SET %s = %s.%s + EXCLUDED.%s";
+  /**
+   * This is the MySQL query format adding to the count of a bucket. Inputs, in order: table-name,
+   * bucket-column, project-column, type-column, count-column, count-column, count-column,
+   * count-column
+   */
+  private static final String MYSQL_COUNT_UPSERT_FORMAT =
+      "INSERT INTO %s (%s, %s, %s, %s) VALUES (?, ?, ?, ?)"
+          + " ON DUPLICATE KEY UPDATE %s = %s + VALUES(%s)";
+  /**
+   * This is the H2 query format adding to the count of a bucket. Inputs, in order: table-name,
+   * bucket-column, project-column, type-column, count-column, bucket-column, bucket-column,
+   * project-column, project-column, type-column, type-column, count-column, count-column,
+   * count-column, bucket-column, project-column, type-column, count-column, bucket-column,
+   * project-column, type-column, count-column
+   */
+  private static final String H2_COUNT_UPSERT_FORMAT =
+      "MERGE INTO %s t USING (VALUES (CAST(? AS TIMESTAMP), CAST(? AS VARCHAR(255)),"
+          + " CAST(? AS VARCHAR(255)), CAST(? AS BIGINT))) s (%s, %s, %s, %s)"
+          + " ON t.%s = s.%s AND t.%s = s.%s AND t.%s = s.%s"
+          + " WHEN MATCHED THEN UPDATE SET t.%s = t.%s + s.%s"
+          + " WHEN NOT MATCHED THEN INSERT (%s, %s, %s, %s) VALUES (s.%s, s.%s, s.%s, s.%s)";
+
   private SQLTable() {}
 
   static String createTableQuery(SQLDialect databaseDialect) {
@@ -73,7 +164,7 @@ final class SQLTable {
     query.append(format("CREATE TABLE IF NOT EXISTS %s(", TABLE_NAME));
     switch (databaseDialect) {
       case POSTGRESQL:
-        query.append(format("%s SERIAL PRIMARY KEY,", PRIMARY_ENTRY));
+        query.append(format("%s BIGSERIAL PRIMARY KEY,", PRIMARY_ENTRY));
         break;
       case SPANNER:
         query.append(format("%s STRING(36) DEFAULT (GENERATE_UUID()), ", PRIMARY_ENTRY));
@@ -81,7 +172,7 @@ final class SQLTable {
       case MYSQL:
       case H2:
       default:
-        query.append(format("%s INT AUTO_INCREMENT PRIMARY KEY,", PRIMARY_ENTRY));
+        query.append(format("%s BIGINT AUTO_INCREMENT PRIMARY KEY,", PRIMARY_ENTRY));
     }
     switch (databaseDialect) {
       case SPANNER:
@@ -93,7 +184,8 @@ final class SQLTable {
       default:
         query.append(format("%s VARCHAR(255),", PROJECT_ENTRY));
         query.append(format("%s TIMESTAMP DEFAULT NOW(),", DATE_ENTRY));
-        query.append(format("%s TEXT)", EVENT_ENTRY));
+        query.append(format("%s TEXT,", EVENT_ENTRY));
+        query.append(format("%s VARCHAR(36))", EVENT_KEY_ENTRY));
     }
     return query.toString();
   }
@@ -171,4 +263,593 @@ final class SQLTable {
     query.append(format(SPANNER_INDEX_CREATION_FORMAT, PROJECT_INDEX, TABLE_NAME, PROJECT_ENTRY));
     return query.toString();
   }
+
+  static String createProjectsTableQuery(SQLDialect databaseDialect) {
+    StringBuilder query = new StringBuilder(120);
+    query.append(format("CREATE TABLE IF NOT EXISTS %s(", PROJECTS_TABLE_NAME));
+    switch (databaseDialect) {
+      case POSTGRESQL:
+        query.append(format("%s SERIAL PRIMARY KEY,", PRIMARY_ENTRY));
+        break;
+      case MYSQL:
+      case H2:
+      default:
+        query.append(format("%s INT AUTO_INCREMENT PRIMARY KEY,", PRIMARY_ENTRY));
+    }
+    query.append(format("%s VARCHAR(255) NOT NULL UNIQUE, %s BIGINT)", NAME_ENTRY, VISIBILITY_ENTRY));
+    return query.toString();
+  }
+
+  static String addProjectIdQuery() {
+    return format("ALTER TABLE %s ADD COLUMN %s INT", TABLE_NAME, PROJECT_ID_ENTRY);
+  }
+
+  /**
+   * Get the statements building the index of the project identifiers of the events. On PostgreSQL,
+   * the index is built from scratch if an earlier build failed, without locking the table, and the
+   * statements must not run in a transaction.
+   *
+   * @param databaseDialect the dialect of the database
+   * @return the statements, to run in order
+   */
+  static List<String> createProjectIdIndexQueries(SQLDialect databaseDialect) {
+    switch (databaseDialect) {
+      case POSTGRESQL:
+        return ImmutableList.of(
+            format("DROP INDEX CONCURRENTLY IF EXISTS %s", PROJECT_ID_INDEX),
+            format(
+                "CREATE INDEX CONCURRENTLY %s ON %s (%s)",
+                PROJECT_ID_INDEX, TABLE_NAME, PROJECT_ID_ENTRY));
+      case MYSQL:
+        return ImmutableList.of(
+            format(
+                MYSQL_INDEX_CREATION_FORMAT,
+                TABLE_NAME,
+                PROJECT_ID_INDEX,
+                TABLE_NAME,
+                PROJECT_ID_INDEX,
+                PROJECT_ID_ENTRY));
+      case H2:
+      default:
+        return ImmutableList.of(
+            format(H2_INDEX_CREATION_FORMAT, PROJECT_ID_INDEX, TABLE_NAME, PROJECT_ID_ENTRY));
+    }
+  }
+
+  static String addEventKeyQuery() {
+    return format("ALTER TABLE %s ADD COLUMN %s VARCHAR(36)", TABLE_NAME, EVENT_KEY_ENTRY);
+  }
+
+  /**
+   * Get the query finding the events stored again under a key already stored, which were stored
+   * before the keys were unique.
+   *
+   * @return the query, returning the identifier of each event to remove
+   */
+  static String duplicateKeysQuery() {
+    return format(
+        "SELECT a.%s FROM %s a JOIN %s b ON a.%s = b.%s AND a.%s > b.%s",
+        PRIMARY_ENTRY,
+        TABLE_NAME,
+        TABLE_NAME,
+        EVENT_KEY_ENTRY,
+        EVENT_KEY_ENTRY,
+        PRIMARY_ENTRY,
+        PRIMARY_ENTRY);
+  }
+
+  /**
+   * Get the statement removing an event.
+   *
+   * @return the statement, taking the identifier of the event as parameter
+   */
+  static String deleteEventQuery() {
+    return format("DELETE FROM %s WHERE %s = ?", TABLE_NAME, PRIMARY_ENTRY);
+  }
+
+  /**
+   * Get the statements building the unique index of the event keys, which fail if keys are stored
+   * more than once. On PostgreSQL, the index is built from scratch if an earlier build failed,
+   * without locking the table, and the statements must not run in a transaction.
+   *
+   * @param databaseDialect the dialect of the database
+   * @return the statements, to run in order
+   */
+  static List<String> createEventKeyIndexQueries(SQLDialect databaseDialect) {
+    switch (databaseDialect) {
+      case POSTGRESQL:
+        return ImmutableList.of(
+            format("DROP INDEX CONCURRENTLY IF EXISTS %s", EVENT_KEY_INDEX),
+            format(
+                "CREATE UNIQUE INDEX CONCURRENTLY %s ON %s (%s)",
+                EVENT_KEY_INDEX, TABLE_NAME, EVENT_KEY_ENTRY));
+      case MYSQL:
+        return ImmutableList.of(
+            format(
+                MYSQL_UNIQUE_INDEX_CREATION_FORMAT,
+                TABLE_NAME,
+                EVENT_KEY_INDEX,
+                TABLE_NAME,
+                EVENT_KEY_INDEX,
+                EVENT_KEY_ENTRY));
+      case H2:
+      default:
+        return ImmutableList.of(
+            format(
+                "CREATE UNIQUE INDEX IF NOT EXISTS %s ON %s (%s)",
+                EVENT_KEY_INDEX, TABLE_NAME, EVENT_KEY_ENTRY));
+    }
+  }
+
+  /**
+   * Get the statement inserting events, leaving out the ones already stored with the same key. On
+   * Spanner, the key is the identifier of the event; elsewhere, it is kept in a column with a
+   * unique index, and events may be stored twice while the index is being built. On PostgreSQL, the statement returns the identifier and key of the events it
+   * inserted; elsewhere, its update count tells how many it inserted, which on MySQL requires the
+   * affected rows rather than the found rows to be reported.
+   *
+   * @param databaseDialect the dialect of the database
+   * @param projectDictionary whether the events refer to their project by identifier
+   * @param jsonbEvents whether the events are stored as JSONB
+   * @param rows the number of events inserted, each taking the project, date, event and key as
+   *     parameters
+   * @return the statement
+   */
+  static String insertEventsQuery(
+      SQLDialect databaseDialect, boolean projectDictionary, boolean jsonbEvents, int rows) {
+    String projectColumn = projectDictionary ? PROJECT_ID_ENTRY : PROJECT_ENTRY;
+    String keyColumn = databaseDialect == SQLDialect.SPANNER ? PRIMARY_ENTRY : EVENT_KEY_ENTRY;
+    String columns = String.join(", ", projectColumn, DATE_ENTRY, EVENT_ENTRY, keyColumn);
+    String values;
+    if (databaseDialect == SQLDialect.H2) {
+      // H2 only leaves out conflicting rows when merging them.
+      values =
+          format(
+              "(CAST(? AS %s), CAST(? AS TIMESTAMP), CAST(? AS CLOB), CAST(? AS VARCHAR(36)))",
+              projectDictionary ? "INT" : "VARCHAR(255)");
+    } else {
+      values = jsonbEvents ? "(?, ?, CAST(? AS jsonb), ?)" : "(?, ?, ?, ?)";
+    }
+    StringBuilder query = new StringBuilder(160 + rows * (values.length() + 2));
+    switch (databaseDialect) {
+      case H2:
+        query.append(format("MERGE INTO %s t USING (VALUES ", TABLE_NAME));
+        break;
+      case SPANNER:
+        query.append(format("INSERT OR IGNORE INTO %s (%s) VALUES ", TABLE_NAME, columns));
+        break;
+      default:
+        query.append(format("INSERT INTO %s (%s) VALUES ", TABLE_NAME, columns));
+    }
+    for (int i = 0; i < rows; i++) {
+      query.append(i == 0 ? "" : ", ").append(values);
+    }
+    switch (databaseDialect) {
+      case H2:
+        query.append(
+            format(
+                ") s (%s) ON t.%s = s.%s WHEN NOT MATCHED THEN INSERT (%s) VALUES (s.%s, s.%s,"
+                    + " s.%s, s.%s)",
+                columns,
+                keyColumn,
+                keyColumn,
+                columns,
+                projectColumn,
+                DATE_ENTRY,
+                EVENT_ENTRY,
+                keyColumn));
+        break;
+      case POSTGRESQL:
+        query.append(
+            format(
+                // Without a conflict target, so that events are stored before the key index is
+                // built.
+                " ON CONFLICT DO NOTHING RETURNING %s, %s", PRIMARY_ENTRY, keyColumn));
+        break;
+      case MYSQL:
+        // INSERT IGNORE would also turn errors, such as a truncated event, into warnings.
+        query.append(format(" ON DUPLICATE KEY UPDATE %s = %s", keyColumn, keyColumn));
+        break;
+      default:
+    }
+    return query.toString();
+  }
+
+  /**
+   * Get the query finding the identifiers of events from their keys.
+   *
+   * @param databaseDialect the dialect of the database
+   * @param keys the number of keys, taken as parameters
+   * @return the query, returning the identifier and key of each event found
+   */
+  static String selectIdsByKeyQuery(SQLDialect databaseDialect, int keys) {
+    String keyColumn = databaseDialect == SQLDialect.SPANNER ? PRIMARY_ENTRY : EVENT_KEY_ENTRY;
+    StringBuilder query =
+        new StringBuilder(
+            format(
+                "SELECT %s, %s FROM %s WHERE %s IN (",
+                PRIMARY_ENTRY, keyColumn, TABLE_NAME, keyColumn));
+    for (int i = 0; i < keys; i++) {
+      query.append(i == 0 ? "?" : ", ?");
+    }
+    return query.append(')').toString();
+  }
+
+  /**
+   * Get the statements moving the project names of a range of existing events to the projects
+   * table: the names missing from the table are added, then the events refer to them by identifier.
+   * Both statements take the identifiers the range starts after and ends at, as parameters.
+   *
+   * @return the statements, to run in order
+   */
+  static List<String> migrateProjectNamesQueries() {
+    String range =
+        format(
+            "%s > ? AND %s <= ? AND %s IS NULL AND %s IS NOT NULL",
+            PRIMARY_ENTRY, PRIMARY_ENTRY, PROJECT_ID_ENTRY, PROJECT_ENTRY);
+    return ImmutableList.of(
+        format(
+            "INSERT INTO %s (%s) SELECT DISTINCT %s FROM %s WHERE %s AND %s NOT IN (SELECT %s FROM"
+                + " %s)",
+            PROJECTS_TABLE_NAME,
+            NAME_ENTRY,
+            PROJECT_ENTRY,
+            TABLE_NAME,
+            range,
+            PROJECT_ENTRY,
+            NAME_ENTRY,
+            PROJECTS_TABLE_NAME),
+        format(
+            "UPDATE %s SET %s = (SELECT p.%s FROM %s p WHERE p.%s = %s.%s), %s = NULL WHERE %s",
+            TABLE_NAME,
+            PROJECT_ID_ENTRY,
+            PRIMARY_ENTRY,
+            PROJECTS_TABLE_NAME,
+            NAME_ENTRY,
+            TABLE_NAME,
+            PROJECT_ENTRY,
+            PROJECT_ENTRY,
+            range));
+  }
+
+  /**
+   * Get the condition restricting events to the projects of the visibility classes. The projects
+   * whose class is not known yet are kept, as are the events not yet moved to the projects table.
+   *
+   * @param visibilityClasses the visibility classes the user can see
+   * @return the condition to use instead of {@link #VISIBLE_CONDITION}
+   */
+  static String visibleCondition(Collection<Long> visibilityClasses) {
+    StringBuilder condition = new StringBuilder(128);
+    condition.append(
+        format(
+            "(%s IS NULL OR %s IN (SELECT %s FROM %s WHERE %s IS NULL",
+            PROJECT_ID_ENTRY,
+            PROJECT_ID_ENTRY,
+            PRIMARY_ENTRY,
+            PROJECTS_TABLE_NAME,
+            VISIBILITY_ENTRY));
+    if (!visibilityClasses.isEmpty()) {
+      condition.append(format(" OR %s IN (", VISIBILITY_ENTRY));
+      condition.append(visibilityClasses.stream().map(String::valueOf).collect(joining(", ")));
+      condition.append(')');
+    }
+    return condition.append("))").toString();
+  }
+
+  /**
+   * Get the identifiers standing for the events found by a search of the index.
+   *
+   * @param search the search, in Lucene query syntax
+   * @param from the earliest creation time, in seconds since the epoch
+   * @param to the latest creation time, in seconds since the epoch
+   * @return the identifiers matching {@link #SEARCH_IDS}
+   */
+  static String searchIds(String search, long from, long to) {
+    return format(
+        "/* search %d %d %s */ -1",
+        from, to, Base64.getUrlEncoder().withoutPadding().encodeToString(search.getBytes(UTF_8)));
+  }
+
+  /**
+   * Get the search of identifiers matching {@link #SEARCH_IDS}.
+   *
+   * @param searchIds the match of the identifiers
+   * @return the search, in Lucene query syntax
+   */
+  static String getSearch(Matcher searchIds) {
+    return new String(Base64.getUrlDecoder().decode(searchIds.group(3)), UTF_8);
+  }
+
+  /**
+   * Get the statements making the identifiers of existing events 64-bit. On PostgreSQL, where
+   * changing the type rewrites the table while holding it locked, the identifiers are copied to a
+   * new column instead: the statements add it, copy the identifiers of new events to it and let
+   * the sequence go past 32 bits. The identifiers of existing events are then copied by {@link
+   * #copyIdsQuery()}, and the new column replaces the old one with {@link #indexNewIdsQueries()}
+   * and {@link #swapIdsQueries()}.
+   *
+   * @param databaseDialect the dialect of the database
+   * @return the statements, to run in order
+   */
+  static List<String> widenIdQueries(SQLDialect databaseDialect) {
+    switch (databaseDialect) {
+      case POSTGRESQL:
+        String table = TABLE_NAME.toLowerCase(Locale.ROOT);
+        return ImmutableList.of(
+            format("ALTER TABLE %s ADD COLUMN IF NOT EXISTS %s BIGINT", TABLE_NAME, NEW_ID_ENTRY),
+            format(
+                "CREATE OR REPLACE FUNCTION %s() RETURNS trigger AS $$ BEGIN NEW.%s := NEW.%s;"
+                    + " RETURN NEW; END $$ LANGUAGE plpgsql",
+                NEW_ID_TRIGGER, NEW_ID_ENTRY, PRIMARY_ENTRY),
+            format("DROP TRIGGER IF EXISTS %s ON %s", NEW_ID_TRIGGER, TABLE_NAME),
+            format(
+                "CREATE TRIGGER %s BEFORE INSERT ON %s FOR EACH ROW EXECUTE FUNCTION %s()",
+                NEW_ID_TRIGGER, TABLE_NAME, NEW_ID_TRIGGER),
+            format("ALTER SEQUENCE %s_%s_seq AS BIGINT", table, PRIMARY_ENTRY));
+      case MYSQL:
+        return ImmutableList.of(
+            format(
+                "ALTER TABLE %s MODIFY %s BIGINT NOT NULL AUTO_INCREMENT",
+                TABLE_NAME, PRIMARY_ENTRY));
+      case H2:
+      default:
+        // The identity keeps the maximum of the former type unless it is raised as well.
+        return ImmutableList.of(
+            format(
+                "ALTER TABLE %s ALTER COLUMN %s SET DATA TYPE BIGINT", TABLE_NAME, PRIMARY_ENTRY),
+            format(
+                "ALTER TABLE %s ALTER COLUMN %s SET MAXVALUE %d",
+                TABLE_NAME, PRIMARY_ENTRY, Long.MAX_VALUE));
+    }
+  }
+
+  /**
+   * Get the statement copying the identifiers of a range of existing events to the new column, on
+   * PostgreSQL. It takes the identifiers the range starts after and ends at, as parameters.
+   */
+  static String copyIdsQuery() {
+    return format(
+        "UPDATE %s SET %s = %s WHERE %s > ? AND %s <= ? AND %s IS NULL",
+        TABLE_NAME, NEW_ID_ENTRY, PRIMARY_ENTRY, PRIMARY_ENTRY, PRIMARY_ENTRY, NEW_ID_ENTRY);
+  }
+
+  /**
+   * Get the statements indexing the new column of the identifiers and checking it has no null
+   * value, on PostgreSQL once all the identifiers are copied. They do not lock the table and must
+   * not run in a transaction.
+   *
+   * @return the statements, to run in order
+   */
+  static List<String> indexNewIdsQueries() {
+    return ImmutableList.of(
+        format("DROP INDEX CONCURRENTLY IF EXISTS %s", NEW_ID_INDEX),
+        format(
+            "CREATE UNIQUE INDEX CONCURRENTLY %s ON %s (%s)",
+            NEW_ID_INDEX, TABLE_NAME, NEW_ID_ENTRY),
+        format("ALTER TABLE %s DROP CONSTRAINT IF EXISTS %s", TABLE_NAME, NEW_ID_CHECK),
+        format(
+            "ALTER TABLE %s ADD CONSTRAINT %s CHECK (%s IS NOT NULL) NOT VALID",
+            TABLE_NAME, NEW_ID_CHECK, NEW_ID_ENTRY),
+        format("ALTER TABLE %s VALIDATE CONSTRAINT %s", TABLE_NAME, NEW_ID_CHECK));
+  }
+
+  /**
+   * Get the statements making the indexed new column of the identifiers the primary key, on
+   * PostgreSQL. They only change the definition of the table and must run in a single transaction.
+   *
+   * @return the statements, to run in order
+   */
+  static List<String> swapIdsQueries() {
+    String table = TABLE_NAME.toLowerCase(Locale.ROOT);
+    return ImmutableList.of(
+        format("ALTER TABLE %s DROP CONSTRAINT %s_pkey", TABLE_NAME, table),
+        format(
+            "ALTER TABLE %s ADD CONSTRAINT %s_pkey PRIMARY KEY USING INDEX %s",
+            TABLE_NAME, table, NEW_ID_INDEX),
+        format("ALTER TABLE %s DROP CONSTRAINT %s", TABLE_NAME, NEW_ID_CHECK),
+        format("ALTER TABLE %s ALTER COLUMN %s DROP DEFAULT", TABLE_NAME, PRIMARY_ENTRY),
+        format(
+            "ALTER TABLE %s RENAME COLUMN %s TO %s_old", TABLE_NAME, PRIMARY_ENTRY, PRIMARY_ENTRY),
+        format("ALTER TABLE %s RENAME COLUMN %s TO %s", TABLE_NAME, NEW_ID_ENTRY, PRIMARY_ENTRY),
+        format(
+            "ALTER TABLE %s ALTER COLUMN %s SET DEFAULT nextval('%s_%s_seq')",
+            TABLE_NAME, PRIMARY_ENTRY, table, PRIMARY_ENTRY),
+        format(
+            "ALTER SEQUENCE %s_%s_seq OWNED BY %s.%s",
+            table, PRIMARY_ENTRY, TABLE_NAME, PRIMARY_ENTRY),
+        format("DROP TRIGGER %s ON %s", NEW_ID_TRIGGER, TABLE_NAME),
+        format("DROP FUNCTION %s()", NEW_ID_TRIGGER),
+        format("ALTER TABLE %s DROP COLUMN %s_old", TABLE_NAME, PRIMARY_ENTRY));
+  }
+
+  static String eventInfoTypeQuery() {
+    return format(
+        "SELECT data_type FROM information_schema.columns WHERE table_name = '%s'"
+            + " AND column_name = '%s'",
+        TABLE_NAME.toLowerCase(Locale.ROOT),
+        EVENT_ENTRY);
+  }
+
+  /**
+   * Get the statements starting the conversion of the events to JSONB. Changing the type of the
+   * events column would rewrite the table while holding it locked, so the events are converted to
+   * a new column instead: the statements add it and convert the new events to it. The existing
+   * events are then converted by {@link #convertEventsQuery()}, and the new column replaces the old
+   * one with {@link #swapEventsQueries()}.
+   *
+   * @return the statements, to run in order
+   */
+  static List<String> addJsonbEventsQueries() {
+    return ImmutableList.of(
+        format("ALTER TABLE %s ADD COLUMN IF NOT EXISTS %s JSONB", TABLE_NAME, NEW_EVENT_ENTRY),
+        format(
+            "CREATE OR REPLACE FUNCTION %s() RETURNS trigger AS $$ BEGIN"
+                + " NEW.%s := NEW.%s::jsonb; RETURN NEW; END $$ LANGUAGE plpgsql",
+            NEW_EVENT_TRIGGER, NEW_EVENT_ENTRY, EVENT_ENTRY),
+        format("DROP TRIGGER IF EXISTS %s ON %s", NEW_EVENT_TRIGGER, TABLE_NAME),
+        format(
+            "CREATE TRIGGER %s BEFORE INSERT ON %s FOR EACH ROW EXECUTE FUNCTION %s()",
+            NEW_EVENT_TRIGGER, TABLE_NAME, NEW_EVENT_TRIGGER));
+  }
+
+  /**
+   * Get the statement converting the existing events of a range to the new column. It takes the
+   * identifiers the range starts after and ends at, as parameters.
+   */
+  static String convertEventsQuery() {
+    return format(
+        "UPDATE %s SET %s = %s::jsonb WHERE %s > ? AND %s <= ? AND %s IS NULL",
+        TABLE_NAME, NEW_EVENT_ENTRY, EVENT_ENTRY, PRIMARY_ENTRY, PRIMARY_ENTRY, NEW_EVENT_ENTRY);
+  }
+
+  /**
+   * Get the statements making the new column of the converted events the events column, once all
+   * the events are converted. They only change the definition of the table and must run in a
+   * single transaction.
+   *
+   * @return the statements, to run in order
+   */
+  static List<String> swapEventsQueries() {
+    return ImmutableList.of(
+        format("DROP TRIGGER %s ON %s", NEW_EVENT_TRIGGER, TABLE_NAME),
+        format("DROP FUNCTION %s()", NEW_EVENT_TRIGGER),
+        format("ALTER TABLE %s DROP COLUMN %s", TABLE_NAME, EVENT_ENTRY),
+        format("ALTER TABLE %s RENAME COLUMN %s TO %s", TABLE_NAME, NEW_EVENT_ENTRY, EVENT_ENTRY));
+  }
+
+  /**
+   * Get the statements building the GIN index of the events stored as JSONB, from scratch if an
+   * earlier build failed. They do not lock the table and must not run in a transaction.
+   *
+   * @return the statements, to run in order
+   */
+  static List<String> createEventInfoIndexQueries() {
+    return ImmutableList.of(
+        format("DROP INDEX CONCURRENTLY IF EXISTS %s", EVENT_INFO_INDEX),
+        format(
+            "CREATE INDEX CONCURRENTLY %s ON %s USING GIN (%s jsonb_path_ops)",
+            EVENT_INFO_INDEX, TABLE_NAME, EVENT_ENTRY));
+  }
+
+  /**
+   * Get the statement building the GIN index of the events stored as JSONB, unless it exists. It
+   * does not lock the table and must not run in a transaction.
+   */
+  static String createEventInfoIndexQuery() {
+    return format(
+        "CREATE INDEX CONCURRENTLY IF NOT EXISTS %s ON %s USING GIN (%s jsonb_path_ops)",
+        EVENT_INFO_INDEX, TABLE_NAME, EVENT_ENTRY);
+  }
+
+  /**
+   * Get the condition keeping the events which contain the given JSON object, for events stored as
+   * JSONB.
+   *
+   * @param object the object the events must contain
+   * @return the condition
+   */
+  static String containsCondition(JsonObject object) {
+    // The cast keeps the condition valid while the events are converted to JSONB, and is dropped
+    // by PostgreSQL once they are, so that the GIN index serves it.
+    return format("CAST(%s AS jsonb) @> '%s'", EVENT_ENTRY, object.toString().replace("'", "''"));
+  }
+
+  static String createSchemaTableQuery(SQLDialect databaseDialect) {
+    if (databaseDialect == SQLDialect.SPANNER) {
+      return format(
+          "CREATE TABLE IF NOT EXISTS %s (%s INT64 NOT NULL, %s STRING(255), %s INT64,"
+              + " %s TIMESTAMP) PRIMARY KEY (%s)",
+          SCHEMA_TABLE_NAME,
+          VERSION_ENTRY,
+          DESCRIPTION_ENTRY,
+          BACKFILLED_ENTRY,
+          COMPLETED_ENTRY,
+          VERSION_ENTRY);
+    }
+    return format(
+        "CREATE TABLE IF NOT EXISTS %s(%s INT PRIMARY KEY, %s VARCHAR(255), %s BIGINT,"
+            + " %s TIMESTAMP NULL)",
+        SCHEMA_TABLE_NAME, VERSION_ENTRY, DESCRIPTION_ENTRY, BACKFILLED_ENTRY, COMPLETED_ENTRY);
+  }
+
+  static String createCountsTableQuery() {
+    return format(
+        "CREATE TABLE IF NOT EXISTS %s(%s TIMESTAMP NOT NULL, %s VARCHAR(255) NOT NULL,"
+            + " %s VARCHAR(255) NOT NULL, %s BIGINT NOT NULL, PRIMARY KEY (%s, %s, %s))",
+        COUNTS_TABLE_NAME,
+        BUCKET_ENTRY,
+        PROJECT_ENTRY,
+        TYPE_ENTRY,
+        COUNT_ENTRY,
+        BUCKET_ENTRY,
+        PROJECT_ENTRY,
+        TYPE_ENTRY);
+  }
+
+  /**
+   * Get the statement adding to the count of events of a bucket, creating the bucket if needed.
+   * Parameters, in order: bucket, project, type, count.
+   *
+   * @param databaseDialect the dialect of the database
+   * @return the statement, or null if event counts are not supported by the dialect
+   */
+  static String upsertCountQuery(SQLDialect databaseDialect) {
+    switch (databaseDialect) {
+      case POSTGRESQL:
+        return format(
+            POSTGRESQL_COUNT_UPSERT_FORMAT,
+            COUNTS_TABLE_NAME,
+            BUCKET_ENTRY,
+            PROJECT_ENTRY,
+            TYPE_ENTRY,
+            COUNT_ENTRY,
+            BUCKET_ENTRY,
+            PROJECT_ENTRY,
+            TYPE_ENTRY,
+            COUNT_ENTRY,
+            COUNTS_TABLE_NAME,
+            COUNT_ENTRY,
+            COUNT_ENTRY);
+      case MYSQL:
+        return format(
+            MYSQL_COUNT_UPSERT_FORMAT,
+            COUNTS_TABLE_NAME,
+            BUCKET_ENTRY,
+            PROJECT_ENTRY,
+            TYPE_ENTRY,
+            COUNT_ENTRY,
+            COUNT_ENTRY,
+            COUNT_ENTRY,
+            COUNT_ENTRY);
+      case H2:
+        return format(
+            H2_COUNT_UPSERT_FORMAT,
+            COUNTS_TABLE_NAME,
+            BUCKET_ENTRY,
+            PROJECT_ENTRY,
+            TYPE_ENTRY,
+            COUNT_ENTRY,
+            BUCKET_ENTRY,
+            BUCKET_ENTRY,
+            PROJECT_ENTRY,
+            PROJECT_ENTRY,
+            TYPE_ENTRY,
+            TYPE_ENTRY,
+            COUNT_ENTRY,
+            COUNT_ENTRY,
+            COUNT_ENTRY,
+            BUCKET_ENTRY,
+            PROJECT_ENTRY,
+            TYPE_ENTRY,
+            COUNT_ENTRY,
+            BUCKET_ENTRY,
+            PROJECT_ENTRY,
+            TYPE_ENTRY,
+            COUNT_ENTRY);
+      case SPANNER:
+      default:
+        return null;
+    }
+  }
 }
@@ -0,0 +1,113 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A versioned change of the database schema. The schema change itself must be quick, as it runs
+ * when the plugin starts; rewriting the existing events is left to the backfill, run in small
+ * batches in the background once the plugin is started.
+ */
+abstract class SchemaMigration {
+  private final int version;
+  private final String description;
+
+  SchemaMigration(int version, String description) {
+    this.version = version;
+    this.description = description;
+  }
+
+  int getVersion() {
+    return version;
+  }
+
+  String getDescription() {
+    return description;
+  }
+
+  /**
+   * Whether the migration is enabled by the configuration. Migrations that are not enabled are
+   * neither applied nor recorded, so that they are applied once enabled, and their pending backfill
+   * is paused.
+   */
+  boolean isEnabled() {
+    return true;
+  }
+
+  /**
+   * Whether the migration changes the schema used with the dialect. Migrations that do not apply
+   * are only recorded.
+   */
+  boolean appliesTo(SQLDialect dialect) {
+    return true;
+  }
+
+  /**
+   * Whether the schema can be changed when the plugin starts. Migrations that cannot are neither
+   * applied nor recorded, and are checked again the next time the plugin starts; the later
+   * migrations are still applied.
+   *
+   * @param stat the statement to run the checks with
+   * @param dialect the dialect of the database
+   * @return whether to apply the migration
+   * @throws SQLException If there was a problem with the database
+   */
+  boolean canMigrate(Statement stat, SQLDialect dialect) throws SQLException {
+    return true;
+  }
+
+  /**
+   * Change the schema. Must be safe to run again if the plugin stopped before the migration was
+   * recorded.
+   *
+   * @param stat the statement to run the changes with
+   * @param dialect the dialect of the database
+   * @return whether the existing events must be backfilled
+   * @throws SQLException If there was a problem with the database
+   */
+  abstract boolean migrate(Statement stat, SQLDialect dialect) throws SQLException;
+
+  /**
+   * Whether the backfill rewrites the existing events. Migrations that do not are completed in a
+   * single step, in the background.
+   */
+  boolean rewritesEvents() {
+    return true;
+  }
+
+  /**
+   * Rewrite the existing events of a range of identifiers to the new schema. Must be safe to run
+   * again on the same range, as a batch that failed is retried.
+   *
+   * @param conn the connection to use, in a transaction committed after the batch
+   * @param after the identifier the range starts after
+   * @param upTo the last identifier of the range
+   * @throws SQLException If there was a problem with the database
+   */
+  void backfill(Connection conn, long after, long upTo) throws SQLException {}
+
+  /**
+   * Finish the schema change once all the existing events are backfilled. Must be safe to run
+   * again, as it is retried if it fails.
+   *
+   * @param conn the connection to use, not in a transaction
+   * @param dialect the dialect of the database
+   * @throws SQLException If there was a problem with the database
+   */
+  void complete(Connection conn, SQLDialect dialect) throws SQLException {}
+}
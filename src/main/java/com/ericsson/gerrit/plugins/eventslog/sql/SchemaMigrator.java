@@ -0,0 +1,648 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.BACKFILLED_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.COMPLETED_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.DESCRIPTION_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.EVENT_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.EVENT_KEY_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.NEW_EVENT_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.NEW_ID_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PRIMARY_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PROJECT_ID_ENTRY;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.SCHEMA_TABLE_NAME;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TABLE_NAME;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.VERSION_ENTRY;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Brings the database schema to the latest version. Each migration is recorded in the schema table
+ * once its schema change is done, and the backfills of the existing events are then run in batches,
+ * in the background, pausing between batches so that the database keeps serving the plugin. The
+ * progress of a backfill is recorded after each batch, so that it resumes where it stopped when the
+ * plugin is restarted.
+ */
+class SchemaMigrator {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  /**
+   * Get the migrations, in the order of their versions.
+   *
+   * @param jsonbEvents whether the events are stored as JSONB
+   * @return the migrations
+   */
+  static ImmutableList<SchemaMigration> migrations(boolean jsonbEvents) {
+    return ImmutableList.of(
+        new ProjectIdsMigration(),
+        new LongIdsMigration(),
+        new EventKeysMigration(),
+        new JsonbEventsMigration(jsonbEvents));
+  }
+
+  private final HikariDataSource ds;
+  private final HikariDataSource backfillDs;
+  private final SQLDialect dialect;
+  private final List<SchemaMigration> migrations;
+  private final int batchSize;
+  private final long batchDelay;
+  private final Deque<Backfill> backfills = new ArrayDeque<>();
+  private ScheduledExecutorService executor;
+
+  /**
+   * Creates a migrator.
+   *
+   * @param ds the pool used to change the schema
+   * @param backfillDs the pool used to backfill the existing events
+   * @param dialect the dialect of the database
+   * @param migrations the migrations, in the order of their versions
+   * @param batchSize the number of event identifiers covered by each batch of a backfill
+   * @param batchDelay the time to wait between two batches, in milliseconds
+   */
+  SchemaMigrator(
+      HikariDataSource ds,
+      HikariDataSource backfillDs,
+      SQLDialect dialect,
+      List<SchemaMigration> migrations,
+      int batchSize,
+      long batchDelay) {
+    this.ds = ds;
+    this.backfillDs = backfillDs;
+    this.dialect = dialect;
+    this.migrations = migrations;
+    this.batchSize = batchSize;
+    this.batchDelay = batchDelay;
+  }
+
+  /**
+   * Apply the schema changes of the migrations not yet recorded. Their backfills, and the ones not
+   * completed before the plugin was stopped, are left to {@link #startBackfills()}.
+   *
+   * @return the schema version of the database
+   * @throws SQLException If there was a problem with the database
+   */
+  synchronized int migrate() throws SQLException {
+    backfills.clear();
+    try (Connection conn = ds.getConnection();
+        Statement stat = conn.createStatement()) {
+      stat.execute(SQLTable.createSchemaTableQuery(dialect));
+      // The progress of each recorded migration, or null once its backfill is completed.
+      Map<Integer, Long> recorded = new HashMap<>();
+      int version = 0;
+      try (ResultSet rs =
+          stat.executeQuery(
+              format(
+                  "SELECT %s, %s, %s FROM %s",
+                  VERSION_ENTRY, BACKFILLED_ENTRY, COMPLETED_ENTRY, SCHEMA_TABLE_NAME))) {
+        while (rs.next()) {
+          long backfilledTo = rs.getLong(2);
+          recorded.put(rs.getInt(1), rs.getTimestamp(3) == null ? backfilledTo : null);
+          version = Math.max(version, rs.getInt(1));
+        }
+      }
+      for (SchemaMigration migration : migrations) {
+        if (!migration.isEnabled()) {
+          continue;
+        }
+        int migrationVersion = migration.getVersion();
+        if (recorded.containsKey(migrationVersion)) {
+          Long backfilledTo = recorded.get(migrationVersion);
+          if (backfilledTo != null) {
+            backfills.add(new Backfill(migration, backfilledTo));
+          }
+          continue;
+        }
+        boolean backfill = false;
+        if (migration.appliesTo(dialect)) {
+          if (!migration.canMigrate(stat, dialect)) {
+            continue;
+          }
+          log.atInfo().log(
+              "Migrating %s to schema version %d: %s",
+              TABLE_NAME, migrationVersion, migration.getDescription());
+          backfill = migration.migrate(stat, dialect);
+        }
+        record(conn, migration, !backfill);
+        if (backfill) {
+          backfills.add(new Backfill(migration, 0));
+        }
+        version = Math.max(version, migrationVersion);
+      }
+      int latest = migrations.isEmpty() ? 0 : migrations.get(migrations.size() - 1).getVersion();
+      if (version > latest) {
+        log.atWarning().log(
+            "Schema version %d of %s is newer than the version %d known to this plugin",
+            version, TABLE_NAME, latest);
+      }
+      return version;
+    }
+  }
+
+  private static void record(Connection conn, SchemaMigration migration, boolean completed)
+      throws SQLException {
+    try (PreparedStatement ps =
+        conn.prepareStatement(
+            format(
+                "INSERT INTO %s (%s, %s, %s, %s) VALUES (?, ?, ?, ?)",
+                SCHEMA_TABLE_NAME,
+                VERSION_ENTRY,
+                DESCRIPTION_ENTRY,
+                BACKFILLED_ENTRY,
+                COMPLETED_ENTRY))) {
+      ps.setInt(1, migration.getVersion());
+      ps.setString(2, migration.getDescription());
+      ps.setLong(3, 0);
+      if (completed) {
+        ps.setTimestamp(4, Timestamp.from(Instant.now()));
+      } else {
+        ps.setNull(4, Types.TIMESTAMP);
+      }
+      ps.executeUpdate();
+    }
+  }
+
+  /** Start running the pending backfills in the background, if any. */
+  synchronized void startBackfills() {
+    if (backfills.isEmpty() || executor != null) {
+      return;
+    }
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat(backfillDs.getPoolName() + "-migration")
+                .setDaemon(true)
+                .build());
+    scheduleBatch();
+  }
+
+  private synchronized void scheduleBatch() {
+    // Once stopped, the backfill resumes when the plugin is started again.
+    if (executor != null) {
+      executor.schedule(this::runBatch, batchDelay, MILLISECONDS);
+    }
+  }
+
+  private void runBatch() {
+    try {
+      if (!backfillBatch()) {
+        stop();
+        return;
+      }
+    } catch (SQLException e) {
+      log.atWarning().withCause(e).log("Cannot backfill %s, retrying", TABLE_NAME);
+    }
+    scheduleBatch();
+  }
+
+  /** Run the pending backfills to the end, in the calling thread. */
+  void completeBackfills() throws SQLException {
+    while (backfillBatch()) {
+      // Keep going.
+    }
+  }
+
+  /**
+   * Run the next batch of the pending backfills and record its progress.
+   *
+   * @return whether batches remain to be run
+   * @throws SQLException If there was a problem with the database
+   */
+  synchronized boolean backfillBatch() throws SQLException {
+    Backfill backfill = backfills.peek();
+    if (backfill == null) {
+      return false;
+    }
+    try (Connection conn = backfillDs.getConnection()) {
+      if (backfill.end < 0) {
+        // Events stored from now on already use the new schema, only the existing ones are
+        // backfilled.
+        try (Statement stat = conn.createStatement();
+            ResultSet rs =
+                stat.executeQuery(
+                    format(
+                        "SELECT MIN(%s), MAX(%s) FROM %s",
+                        PRIMARY_ENTRY, PRIMARY_ENTRY, TABLE_NAME))) {
+          rs.next();
+          backfill.next = Math.max(backfill.next, rs.getLong(1) - 1);
+          backfill.start = backfill.next;
+          backfill.end = Math.max(rs.getLong(2), backfill.next);
+        }
+        if (backfill.migration.rewritesEvents()) {
+          log.atInfo().log(
+              "Backfilling schema version %d of %s, events %d to %d",
+              backfill.migration.getVersion(), TABLE_NAME, backfill.next + 1, backfill.end);
+        }
+      }
+      long upTo =
+          backfill.migration.rewritesEvents()
+              ? Math.min(backfill.next + batchSize, backfill.end)
+              : backfill.end;
+      boolean done = upTo == backfill.end;
+      conn.setAutoCommit(false);
+      try {
+        if (upTo > backfill.next) {
+          backfill.migration.backfill(conn, backfill.next, upTo);
+        }
+        recordProgress(conn, backfill.migration, upTo, false);
+        conn.commit();
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
+      }
+      backfill.next = upTo;
+      if (done) {
+        backfill.migration.complete(conn, dialect);
+        recordProgress(conn, backfill.migration, upTo, true);
+        backfills.remove();
+        log.atInfo().log(
+            "Completed the backfill of schema version %d of %s",
+            backfill.migration.getVersion(), TABLE_NAME);
+      } else {
+        backfill.reportProgress();
+      }
+    }
+    return !backfills.isEmpty();
+  }
+
+  private static void recordProgress(
+      Connection conn, SchemaMigration migration, long backfilledTo, boolean completed)
+      throws SQLException {
+    try (PreparedStatement ps =
+        conn.prepareStatement(
+            format(
+                "UPDATE %s SET %s = ?, %s = ? WHERE %s = ?",
+                SCHEMA_TABLE_NAME, BACKFILLED_ENTRY, COMPLETED_ENTRY, VERSION_ENTRY))) {
+      ps.setLong(1, backfilledTo);
+      if (completed) {
+        ps.setTimestamp(2, Timestamp.from(Instant.now()));
+      } else {
+        ps.setNull(2, Types.TIMESTAMP);
+      }
+      ps.setInt(3, migration.getVersion());
+      ps.executeUpdate();
+    }
+  }
+
+  /** Stop running the backfills; the batch being run, if any, is completed first. */
+  synchronized void stop() {
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  /** The progress of the backfill of a migration. */
+  private static class Backfill {
+    private final SchemaMigration migration;
+    private long start;
+    private long next;
+    private long end = -1;
+    private int reported;
+
+    Backfill(SchemaMigration migration, long backfilledTo) {
+      this.migration = migration;
+      this.next = backfilledTo;
+    }
+
+    /** Log the progress every tenth of the events. */
+    void reportProgress() {
+      int percent = (int) ((next - start) * 100 / (end - start));
+      if (percent / 10 > reported / 10) {
+        reported = percent;
+        log.atInfo().log(
+            "Backfilled %d%% of schema version %d of %s",
+            percent, migration.getVersion(), TABLE_NAME);
+      }
+    }
+  }
+
+  /** Make the events refer to the projects table rather than hold the project names. */
+  private static class ProjectIdsMigration extends SchemaMigration {
+    ProjectIdsMigration() {
+      super(1, "Refer to projects by identifier");
+    }
+
+    @Override
+    boolean appliesTo(SQLDialect dialect) {
+      // Spanner has no sequential identifiers to number projects with.
+      return dialect != SQLDialect.SPANNER;
+    }
+
+    @Override
+    boolean migrate(Statement stat, SQLDialect dialect) throws SQLException {
+      try {
+        stat.executeQuery(format("SELECT %s FROM %s WHERE 1 = 0", PROJECT_ID_ENTRY, TABLE_NAME))
+            .close();
+      } catch (SQLException e) {
+        log.atInfo().log("Adding column %s to %s", PROJECT_ID_ENTRY, TABLE_NAME);
+        stat.execute(SQLTable.addProjectIdQuery());
+      }
+      // The column is indexed once backfilled, rather than while the plugin starts.
+      return true;
+    }
+
+    @Override
+    void backfill(Connection conn, long after, long upTo) throws SQLException {
+      for (String query : SQLTable.migrateProjectNamesQueries()) {
+        try (PreparedStatement ps = conn.prepareStatement(query)) {
+          ps.setLong(1, after);
+          ps.setLong(2, upTo);
+          ps.executeUpdate();
+        }
+      }
+    }
+
+    @Override
+    void complete(Connection conn, SQLDialect dialect) throws SQLException {
+      try (Statement stat = conn.createStatement()) {
+        for (String query : SQLTable.createProjectIdIndexQueries(dialect)) {
+          stat.execute(query);
+        }
+      }
+    }
+  }
+
+  /** Make the identifiers of the events 64-bit, so that they do not run out. */
+  private static class LongIdsMigration extends SchemaMigration {
+    /**
+     * The most events of a table whose identifiers are widened on MySQL, which copies the table
+     * while it blocks the storing of events.
+     */
+    private static final long MAX_MYSQL_EVENTS = 1_000_000;
+
+    LongIdsMigration() {
+      super(2, "Use 64-bit event identifiers");
+    }
+
+    @Override
+    boolean appliesTo(SQLDialect dialect) {
+      // Spanner identifiers are UUIDs.
+      return dialect != SQLDialect.SPANNER;
+    }
+
+    @Override
+    boolean canMigrate(Statement stat, SQLDialect dialect) throws SQLException {
+      if (dialect != SQLDialect.MYSQL || isWide(stat)) {
+        return true;
+      }
+      // MySQL cannot change the type of a column in place, without copying the table. The
+      // identifiers tell how many events there are at most, without counting them.
+      long events;
+      try (ResultSet rs =
+          stat.executeQuery(
+              format(
+                  "SELECT MAX(%s) - MIN(%s) + 1 FROM %s",
+                  PRIMARY_ENTRY, PRIMARY_ENTRY, TABLE_NAME))) {
+        events = rs.next() ? rs.getLong(1) : 0;
+      }
+      if (events <= MAX_MYSQL_EVENTS) {
+        return true;
+      }
+      log.atWarning().log(
+          "Not widening the identifiers of the %d events of %s, which would block the storing of"
+              + " events while the table is copied: run \"%s\" with an online schema change tool"
+              + " such as pt-online-schema-change or gh-ost, then restart the plugin",
+          events, TABLE_NAME, SQLTable.widenIdQueries(dialect).get(0));
+      return false;
+    }
+
+    private static boolean isWide(Statement stat) throws SQLException {
+      try (ResultSet rs =
+          stat.executeQuery(format("SELECT %s FROM %s WHERE 1 = 0", PRIMARY_ENTRY, TABLE_NAME))) {
+        return rs.getMetaData().getColumnType(1) == Types.BIGINT;
+      }
+    }
+
+    @Override
+    boolean migrate(Statement stat, SQLDialect dialect) throws SQLException {
+      if (isWide(stat)) {
+        return false;
+      }
+      for (String query : SQLTable.widenIdQueries(dialect)) {
+        stat.execute(query);
+      }
+      // Only PostgreSQL copies the identifiers to a new column.
+      return dialect == SQLDialect.POSTGRESQL;
+    }
+
+    @Override
+    void backfill(Connection conn, long after, long upTo) throws SQLException {
+      try (PreparedStatement ps = conn.prepareStatement(SQLTable.copyIdsQuery())) {
+        ps.setLong(1, after);
+        ps.setLong(2, upTo);
+        ps.executeUpdate();
+      }
+    }
+
+    @Override
+    void complete(Connection conn, SQLDialect dialect) throws SQLException {
+      try (Statement stat = conn.createStatement()) {
+        try {
+          stat.executeQuery(format("SELECT %s FROM %s WHERE 1 = 0", NEW_ID_ENTRY, TABLE_NAME))
+              .close();
+        } catch (SQLException e) {
+          // Already swapped.
+          return;
+        }
+        for (String query : SQLTable.indexNewIdsQueries()) {
+          stat.execute(query);
+        }
+        conn.setAutoCommit(false);
+        try {
+          for (String query : SQLTable.swapIdsQueries()) {
+            stat.execute(query);
+          }
+          conn.commit();
+        } catch (SQLException e) {
+          conn.rollback();
+          throw e;
+        } finally {
+          conn.setAutoCommit(true);
+        }
+      }
+      log.atInfo().log("Swapped the 64-bit identifiers of %s in", TABLE_NAME);
+    }
+  }
+
+  /**
+   * Key the events so that storing one again does not duplicate it. The existing events are left
+   * without a key, and the unique index of the keys is built in the background.
+   */
+  private static class EventKeysMigration extends SchemaMigration {
+    EventKeysMigration() {
+      super(3, "Key the events");
+    }
+
+    @Override
+    boolean appliesTo(SQLDialect dialect) {
+      // Spanner events are identified by their key.
+      return dialect != SQLDialect.SPANNER;
+    }
+
+    @Override
+    boolean migrate(Statement stat, SQLDialect dialect) throws SQLException {
+      try {
+        stat.executeQuery(format("SELECT %s FROM %s WHERE 1 = 0", EVENT_KEY_ENTRY, TABLE_NAME))
+            .close();
+      } catch (SQLException e) {
+        log.atInfo().log("Adding column %s to %s", EVENT_KEY_ENTRY, TABLE_NAME);
+        stat.execute(SQLTable.addEventKeyQuery());
+      }
+      // The index is built in the background, rather than while the plugin starts.
+      return true;
+    }
+
+    @Override
+    boolean rewritesEvents() {
+      return false;
+    }
+
+    @Override
+    void complete(Connection conn, SQLDialect dialect) throws SQLException {
+      // Events stored twice before the index was built would make it fail.
+      List<Long> duplicates = new ArrayList<>();
+      try (Statement stat = conn.createStatement();
+          ResultSet rs = stat.executeQuery(SQLTable.duplicateKeysQuery())) {
+        while (rs.next()) {
+          duplicates.add(rs.getLong(1));
+        }
+      }
+      if (!duplicates.isEmpty()) {
+        try (PreparedStatement ps = conn.prepareStatement(SQLTable.deleteEventQuery())) {
+          for (long id : duplicates) {
+            ps.setLong(1, id);
+            ps.addBatch();
+          }
+          ps.executeBatch();
+        }
+        log.atInfo().log("Removed %d events of %s stored twice", duplicates.size(), TABLE_NAME);
+      }
+      try (Statement stat = conn.createStatement()) {
+        for (String query : SQLTable.createEventKeyIndexQueries(dialect)) {
+          stat.execute(query);
+        }
+      }
+    }
+  }
+
+  /**
+   * Store the events as JSONB rather than as text, on PostgreSQL when enabled. The events are
+   * converted to a new column in the background, which then replaces the events column, so that the
+   * table is only locked for the swap. The events are indexed afterwards, without locking the table
+   * either.
+   */
+  private static class JsonbEventsMigration extends SchemaMigration {
+    private final boolean enabled;
+
+    JsonbEventsMigration(boolean enabled) {
+      super(4, "Store the events as JSONB");
+      this.enabled = enabled;
+    }
+
+    @Override
+    boolean isEnabled() {
+      return enabled;
+    }
+
+    @Override
+    boolean appliesTo(SQLDialect dialect) {
+      return dialect == SQLDialect.POSTGRESQL;
+    }
+
+    @Override
+    boolean migrate(Statement stat, SQLDialect dialect) throws SQLException {
+      String type;
+      try (ResultSet rs = stat.executeQuery(SQLTable.eventInfoTypeQuery())) {
+        type = rs.next() ? rs.getString(1) : null;
+      }
+      if ("jsonb".equalsIgnoreCase(type)) {
+        // Converted by an earlier version of the plugin.
+        stat.execute(SQLTable.createEventInfoIndexQuery());
+        return false;
+      }
+      log.atInfo().log(
+          "Converting %s of %s to JSONB in %s", EVENT_ENTRY, TABLE_NAME, NEW_EVENT_ENTRY);
+      for (String query : SQLTable.addJsonbEventsQueries()) {
+        stat.execute(query);
+      }
+      return true;
+    }
+
+    @Override
+    void backfill(Connection conn, long after, long upTo) throws SQLException {
+      try (PreparedStatement ps = conn.prepareStatement(SQLTable.convertEventsQuery())) {
+        ps.setLong(1, after);
+        ps.setLong(2, upTo);
+        ps.executeUpdate();
+      }
+    }
+
+    @Override
+    void complete(Connection conn, SQLDialect dialect) throws SQLException {
+      try (Statement stat = conn.createStatement()) {
+        boolean swapped;
+        try {
+          stat.executeQuery(format("SELECT %s FROM %s WHERE 1 = 0", NEW_EVENT_ENTRY, TABLE_NAME))
+              .close();
+          swapped = false;
+        } catch (SQLException e) {
+          swapped = true;
+        }
+        if (!swapped) {
+          conn.setAutoCommit(false);
+          try {
+            for (String query : SQLTable.swapEventsQueries()) {
+              stat.execute(query);
+            }
+            conn.commit();
+          } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+          } finally {
+            conn.setAutoCommit(true);
+          }
+          log.atInfo().log("Swapped the JSONB events of %s in", TABLE_NAME);
+        }
+        for (String query : SQLTable.createEventInfoIndexQueries()) {
+          stat.execute(query);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.entities.AccessSection;
+import com.google.gerrit.entities.GroupReference;
+import com.google.gerrit.entities.Permission;
+import com.google.gerrit.entities.PermissionRule;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.gerrit.server.project.SectionMatcher;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Groups projects by their effective read access. Projects in the same visibility class have the
+ * same state and the same read and owner permissions, inherited ones included, so a user can see
+ * either all or none of them.
+ */
+@Singleton
+class VisibilityClassifier {
+  private static final String[] READ_PERMISSIONS = {Permission.READ, Permission.OWNER};
+
+  private final ProjectCache projectCache;
+
+  @Inject
+  VisibilityClassifier(ProjectCache projectCache) {
+    this.projectCache = projectCache;
+  }
+
+  /**
+   * Get the visibility class of the project. Projects which no longer exist share a class.
+   *
+   * @param projectName the name of the project
+   * @return the visibility class
+   */
+  long classify(String projectName) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    Optional<ProjectState> state = projectCache.get(Project.nameKey(projectName));
+    hasher.putBoolean(state.isPresent());
+    if (state.isPresent()) {
+      hasher.putBoolean(state.get().statePermitsRead());
+      for (SectionMatcher matcher : state.get().getAllSections()) {
+        putSection(hasher, matcher.getSection());
+      }
+    }
+    return hasher.hash().asLong();
+  }
+
+  private static void putSection(Hasher hasher, AccessSection section) {
+    for (String name : READ_PERMISSIONS) {
+      Permission permission = section.getPermission(name);
+      if (permission == null) {
+        continue;
+      }
+      hasher.putString(section.getName(), StandardCharsets.UTF_8);
+      hasher.putString(name, StandardCharsets.UTF_8);
+      hasher.putBoolean(permission.getExclusiveGroup());
+      List<PermissionRule> rules = new ArrayList<>(permission.getRules());
+      Collections.sort(rules);
+      for (PermissionRule rule : rules) {
+        GroupReference group = rule.getGroup();
+        hasher.putString(rule.getAction().name(), StandardCharsets.UTF_8);
+        hasher.putBoolean(rule.getForce());
+        hasher.putString(
+            group.getUUID() == null ? group.getName() : group.getUUID().get(),
+            StandardCharsets.UTF_8);
+      }
+    }
+  }
+}
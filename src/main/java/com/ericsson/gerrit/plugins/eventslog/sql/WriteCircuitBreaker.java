@@ -0,0 +1,146 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides whether to write the events to the database or to the local one, from the outcome of the
+ * latest writes to the database.
+ *
+ * <p>The database is online until a write fails. It is then degraded until a write succeeds, or
+ * offline once the maximum number of writes failed in a row. When offline, the events are written
+ * locally, and a single write is let through as a probe each time the retry time has passed. If the
+ * probe succeeds, the database is restoring until the events written locally are moved to it;
+ * otherwise it stays offline for another retry time.
+ */
+class WriteCircuitBreaker {
+  private static final FluentLogger log = FluentLogger.forEnclosingClass();
+
+  enum State {
+    ONLINE,
+    DEGRADED,
+    OFFLINE,
+    RESTORING
+  }
+
+  private final int maxFailures;
+  private final long retryTime;
+  private final LongSupplier clock;
+  private State state = State.ONLINE;
+  private int failures;
+  private long openedAt;
+
+  /**
+   * Create a breaker, online.
+   *
+   * @param maxFailures the number of writes failing in a row after which the database is offline,
+   *     at least 1
+   * @param retryTime the time to wait before probing the database once it is offline, in
+   *     milliseconds
+   */
+  WriteCircuitBreaker(int maxFailures, long retryTime) {
+    this(maxFailures, retryTime, System::currentTimeMillis);
+  }
+
+  @VisibleForTesting
+  WriteCircuitBreaker(int maxFailures, long retryTime, LongSupplier clock) {
+    this.maxFailures = Math.max(maxFailures, 1);
+    this.retryTime = retryTime;
+    this.clock = clock;
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Whether the events can be written to the database. Once offline, only the one write probing the
+   * database each retry time is, even if the outcome of the previous probe is still unknown.
+   *
+   * @return true to write the events to the database, false to write them locally
+   */
+  synchronized boolean allowWrite() {
+    if (state != State.OFFLINE) {
+      return true;
+    }
+    long now = clock.getAsLong();
+    if (now - openedAt < retryTime) {
+      return false;
+    }
+    log.atFine().log("Probing the database");
+    openedAt = now;
+    return true;
+  }
+
+  /**
+   * Record that a write to the database succeeded.
+   *
+   * @return true if the database was offline and the events written locally are to be restored
+   */
+  synchronized boolean recordSuccess() {
+    failures = 0;
+    switch (state) {
+      case OFFLINE:
+        state = State.RESTORING;
+        return true;
+      case DEGRADED:
+        state = State.ONLINE;
+        return false;
+      case ONLINE:
+      case RESTORING:
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Record that a write to the database failed. A failure while restoring takes the database
+   * offline right away, so that the events left locally are restored once it is back.
+   *
+   * @return true if the database just went offline
+   */
+  synchronized boolean recordFailure() {
+    failures++;
+    if (failures >= maxFailures || state == State.OFFLINE || state == State.RESTORING) {
+      return trip();
+    }
+    state = State.DEGRADED;
+    return false;
+  }
+
+  /**
+   * Take the database offline, such as when it cannot be set up.
+   *
+   * @return true if the database just went offline
+   */
+  synchronized boolean trip() {
+    openedAt = clock.getAsLong();
+    if (state == State.OFFLINE) {
+      return false;
+    }
+    state = State.OFFLINE;
+    return true;
+  }
+
+  /** Record that the events written locally were restored to the database. */
+  synchronized void restored() {
+    if (state == State.RESTORING) {
+      state = State.ONLINE;
+    }
+  }
+}
@@ -0,0 +1,174 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.permissions.GlobalPermission;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.inject.Provider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EventsExportServletTest {
+  private static final String EXPORT_QUERY = "export query";
+
+  @Mock private EventStore storeMock;
+  @Mock private QueryMaker queryMakerMock;
+  @Mock private PermissionBackend permissionBackendMock;
+  @Mock private PermissionBackend.WithUser withUserMock;
+  @Mock private Provider<CurrentUser> userProviderMock;
+  @Mock private CurrentUser userMock;
+  @Mock private HttpServletRequest reqMock;
+  @Mock private HttpServletResponse rspMock;
+
+  private EventsExportServlet exportServlet;
+
+  @Before
+  public void setUp() {
+    exportServlet =
+        new EventsExportServlet(storeMock, queryMakerMock, permissionBackendMock, userProviderMock);
+    when(userProviderMock.get()).thenReturn(userMock);
+    when(userMock.isIdentifiedUser()).thenReturn(true);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+  }
+
+  @Test
+  public void testForbiddenCode() throws Exception {
+    doThrow(new AuthException("")).when(withUserMock).check(GlobalPermission.ADMINISTRATE_SERVER);
+    exportServlet.doGet(reqMock, rspMock);
+    verify(rspMock).sendError(HttpServletResponse.SC_FORBIDDEN);
+    verifyNoInteractions(storeMock);
+  }
+
+  @Test
+  public void testServiceUnavailableCode() throws Exception {
+    when(queryMakerMock.formExportQueryFromRequestParameters(null)).thenReturn(EXPORT_QUERY);
+    doThrow(new ServiceUnavailableException())
+        .when(storeMock)
+        .exportChangeEvents(eq(EXPORT_QUERY), any());
+    exportServlet.doGet(reqMock, rspMock);
+    verify(rspMock).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+  }
+
+  @Test
+  public void testInternalServerErrorCode() throws Exception {
+    when(queryMakerMock.formExportQueryFromRequestParameters(null)).thenReturn(EXPORT_QUERY);
+    doThrow(new EventsLogException("database error"))
+        .when(storeMock)
+        .exportChangeEvents(eq(EXPORT_QUERY), any());
+    exportServlet.doGet(reqMock, rspMock);
+    verify(rspMock).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    verify(rspMock, never()).getOutputStream();
+  }
+
+  @Test
+  public void truncatedExportHasNoTrailer() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    when(rspMock.getOutputStream()).thenReturn(new TestOutputStream(bytes));
+    when(queryMakerMock.formExportQueryFromRequestParameters(null)).thenReturn(EXPORT_QUERY);
+    doAnswer(
+            invocation -> {
+              EventStore.EventSink sink = invocation.getArgument(1);
+              sink.write(1, "p", "{\"type\":\"a\"}");
+              throw new EventsLogException("database error");
+            })
+        .when(storeMock)
+        .exportChangeEvents(eq(EXPORT_QUERY), any());
+    exportServlet.doGet(reqMock, rspMock);
+
+    verify(rspMock, never()).sendError(anyInt());
+    ByteArrayOutputStream read = new ByteArrayOutputStream();
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      assertThrows(EOFException.class, () -> in.transferTo(read));
+    }
+    assertThat(read.toString(UTF_8))
+        .isEqualTo("{\"id\":1,\"project\":\"p\",\"event\":{\"type\":\"a\"}}\n");
+  }
+
+  @Test
+  public void exportCompressedEvents() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    when(rspMock.getOutputStream()).thenReturn(new TestOutputStream(bytes));
+    when(queryMakerMock.formExportQueryFromRequestParameters(null)).thenReturn(EXPORT_QUERY);
+    doAnswer(
+            invocation -> {
+              EventStore.EventSink sink = invocation.getArgument(1);
+              sink.write(1, "p", "{\"type\":\"a\"}");
+              sink.write(2, "q", new StringReader("{\"type\":\"b\"}"));
+              return null;
+            })
+        .when(storeMock)
+        .exportChangeEvents(eq(EXPORT_QUERY), any());
+    exportServlet.doGet(reqMock, rspMock);
+
+    verify(rspMock).setContentType("application/gzip");
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      assertThat(new String(in.readAllBytes(), UTF_8))
+          .isEqualTo(
+              "{\"id\":1,\"project\":\"p\",\"event\":{\"type\":\"a\"}}\n"
+                  + "{\"id\":2,\"project\":\"q\",\"event\":{\"type\":\"b\"}}\n");
+    }
+  }
+
+  private static class TestOutputStream extends ServletOutputStream {
+    private final OutputStream out;
+
+    TestOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {}
+  }
+}
@@ -14,29 +14,57 @@
 
 package com.ericsson.gerrit.plugins.eventslog;
 
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_CHECK_REPLICA_LAG;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_CONN_TIME;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_COPY_LOCAL;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_COUNTS_MAX_AGE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_LOCAL_PATH;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_LOCAL_STORE_TYPE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_MAX_AGE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_MAX_CONCURRENT_QUERIES;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_MAX_CONNECTIONS;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_MAX_MAINTENANCE_CONNECTIONS;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_MAX_QUERY_CONNECTIONS;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_MAX_TRIES;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_MIGRATION_BATCH_DELAY;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_MIGRATION_BATCH_SIZE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_PASSWORD;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_PERMISSION_CHECK_THREADS;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_QUERY_CONN_TIMEOUT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_QUERY_PARALLELISM;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_QUERY_QUEUE_TIMEOUT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_READ_URL;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_RESTORE_DELAY;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_RETURN_LIMIT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_SEGMENT_PATH;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_SEGMENT_SIZE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_SHUTDOWN_TIMEOUT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_STORE_TYPE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_URL;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_URL_OPTIONS;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_USERNAME;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_USER_QUERY_BURST;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_USER_QUERY_RATE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_WAIT_TIME;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.CONFIG_WRITE_CONN_TIMEOUT;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_CONN_TIME;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_COUNTS_MAX_AGE;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_MAINTENANCE_CONN_TIMEOUT;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_MAX_AGE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_MAX_CONNECTIONS;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_MAX_MAINTENANCE_CONNECTIONS;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_MAX_QUERY_CONNECTIONS;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_MAX_TRIES;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_QUERY_CONN_TIMEOUT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_QUERY_QUEUE_TIMEOUT;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_RETURN_LIMIT;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_USER_QUERY_RATE;
 import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_WAIT_TIME;
+import static com.ericsson.gerrit.plugins.eventslog.EventsLogConfig.DEFAULT_WRITE_CONN_TIMEOUT;
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableList;
-import com.google.gerrit.server.config.PluginConfig;
 import com.google.gerrit.server.config.PluginConfigFactory;
 import com.google.gerrit.server.config.SitePaths;
 import java.io.IOException;
@@ -57,6 +85,8 @@ public class EventsLogConfigTest {
   private static final String PLUGIN_NAME = "eventsLog";
   private static final int CUSTOM_MAX_CONNECTIONS = 32;
   private static final List<String> urlOptions = ImmutableList.of("DB_CLOSE_DELAY=10");
+  private static final List<String> readStoreUrls =
+      ImmutableList.of("jdbc:h2:~/gerrit/replica1", "jdbc:h2:~/gerrit/replica2");
 
   private SitePaths site;
 
@@ -76,7 +106,9 @@ public class EventsLogConfigTest {
     when(cfgFactoryMock.getGlobalPluginConfig(PLUGIN_NAME)).thenReturn(pluginConfig);
     EventsLogConfig eventsLogConfig = new EventsLogConfig(cfgFactoryMock, site, PLUGIN_NAME);
     assertThat(eventsLogConfig.getCopyLocal()).isFalse();
+    assertThat(eventsLogConfig.getLocalStoreType()).isEqualTo(EventsLogConfig.LocalStoreType.H2);
     assertThat(eventsLogConfig.getMaxAge()).isEqualTo(DEFAULT_MAX_AGE);
+    assertThat(eventsLogConfig.getCountsMaxAge()).isEqualTo(DEFAULT_COUNTS_MAX_AGE);
     assertThat(eventsLogConfig.getMaxTries()).isEqualTo(DEFAULT_MAX_TRIES);
     assertThat(eventsLogConfig.getReturnLimit()).isEqualTo(DEFAULT_RETURN_LIMIT);
     assertThat(eventsLogConfig.getConnectTime()).isEqualTo(DEFAULT_CONN_TIME);
@@ -86,9 +118,32 @@ public class EventsLogConfigTest {
     assertThat(eventsLogConfig.getStoreUrl())
         .isEqualTo("jdbc:h2:" + site.data_dir.toString() + "/db");
     assertThat(eventsLogConfig.getUrlOptions()).isEmpty();
+    assertThat(eventsLogConfig.getReadStoreUrls()).isEmpty();
+    assertThat(eventsLogConfig.getCheckReplicaLag()).isTrue();
     assertThat(eventsLogConfig.getStoreUsername()).isNull();
     assertThat(eventsLogConfig.getStorePassword()).isNull();
     assertThat(eventsLogConfig.getMaxConnections()).isEqualTo(DEFAULT_MAX_CONNECTIONS);
+    assertThat(eventsLogConfig.getMaxQueryConnections()).isEqualTo(DEFAULT_MAX_QUERY_CONNECTIONS);
+    assertThat(eventsLogConfig.getMaxMaintenanceConnections())
+        .isEqualTo(DEFAULT_MAX_MAINTENANCE_CONNECTIONS);
+    assertThat(eventsLogConfig.getWriteConnectionTimeout()).isEqualTo(DEFAULT_WRITE_CONN_TIMEOUT);
+    assertThat(eventsLogConfig.getQueryConnectionTimeout()).isEqualTo(DEFAULT_QUERY_CONN_TIMEOUT);
+    assertThat(eventsLogConfig.getMaintenanceConnectionTimeout())
+        .isEqualTo(DEFAULT_MAINTENANCE_CONN_TIMEOUT);
+    assertThat(eventsLogConfig.getMaxConcurrentQueries()).isEqualTo(DEFAULT_MAX_QUERY_CONNECTIONS);
+    assertThat(eventsLogConfig.getQueryQueueTimeout()).isEqualTo(DEFAULT_QUERY_QUEUE_TIMEOUT);
+    assertThat(eventsLogConfig.getUserQueryRate()).isEqualTo(DEFAULT_USER_QUERY_RATE);
+    assertThat(eventsLogConfig.getQueryParallelism()).isEqualTo(1);
+    assertThat(eventsLogConfig.getPermissionCheckThreads()).isEqualTo(4);
+    assertThat(eventsLogConfig.getStoreType()).isEqualTo(EventsLogConfig.StoreType.SQL);
+    assertThat(eventsLogConfig.getSegmentPath()).isEqualTo(site.data_dir.resolve("events-log"));
+    assertThat(eventsLogConfig.getSegmentSize()).isEqualTo(64);
+    assertThat(eventsLogConfig.getIndexEvents()).isFalse();
+    assertThat(eventsLogConfig.getJsonbEvents()).isFalse();
+    assertThat(eventsLogConfig.getMigrationBatchSize()).isEqualTo(10000);
+    assertThat(eventsLogConfig.getMigrationBatchDelay()).isEqualTo(100);
+    assertThat(eventsLogConfig.getRestoreDelay()).isEqualTo(100);
+    assertThat(eventsLogConfig.getShutdownTimeout()).isEqualTo(10000);
   }
 
   @Test
@@ -96,7 +151,10 @@ public class EventsLogConfigTest {
     when(cfgFactoryMock.getGlobalPluginConfig(PLUGIN_NAME)).thenReturn(customConfig());
     EventsLogConfig eventsLogConfig = new EventsLogConfig(cfgFactoryMock, site, PLUGIN_NAME);
     assertThat(eventsLogConfig.getCopyLocal()).isTrue();
+    assertThat(eventsLogConfig.getLocalStoreType())
+        .isEqualTo(EventsLogConfig.LocalStoreType.JOURNAL);
     assertThat(eventsLogConfig.getMaxAge()).isEqualTo(20);
+    assertThat(eventsLogConfig.getCountsMaxAge()).isEqualTo(90);
     assertThat(eventsLogConfig.getMaxTries()).isEqualTo(5);
     assertThat(eventsLogConfig.getReturnLimit()).isEqualTo(10000);
     assertThat(eventsLogConfig.getConnectTime()).isEqualTo(5000);
@@ -104,15 +162,48 @@ public class EventsLogConfigTest {
     assertThat(eventsLogConfig.getLocalStorePath().toString() + "/").isEqualTo(LOCAL_STORE_PATH);
     assertThat(eventsLogConfig.getStoreUrl()).isEqualTo("jdbc:h2:~/gerrit/db");
     assertThat(eventsLogConfig.getUrlOptions()).asList().isEqualTo(urlOptions);
+    assertThat(eventsLogConfig.getReadStoreUrls()).asList().isEqualTo(readStoreUrls);
+    assertThat(eventsLogConfig.getCheckReplicaLag()).isFalse();
     assertThat(eventsLogConfig.getStoreUsername()).isEqualTo("testUsername");
     assertThat(eventsLogConfig.getStorePassword()).isEqualTo("testPassword");
     assertThat(eventsLogConfig.getMaxConnections()).isEqualTo(CUSTOM_MAX_CONNECTIONS);
+    assertThat(eventsLogConfig.getMaxQueryConnections()).isEqualTo(6);
+    assertThat(eventsLogConfig.getMaxMaintenanceConnections()).isEqualTo(2);
+    assertThat(eventsLogConfig.getWriteConnectionTimeout()).isEqualTo(20000);
+    assertThat(eventsLogConfig.getQueryConnectionTimeout()).isEqualTo(250);
+    assertThat(eventsLogConfig.getMaxConcurrentQueries()).isEqualTo(4);
+    assertThat(eventsLogConfig.getQueryQueueTimeout()).isEqualTo(100);
+    assertThat(eventsLogConfig.getUserQueryRate()).isEqualTo(60);
+    assertThat(eventsLogConfig.getUserQueryBurst()).isEqualTo(10);
+    assertThat(eventsLogConfig.getPermissionCheckThreads()).isEqualTo(1);
+    assertThat(eventsLogConfig.getStoreType()).isEqualTo(EventsLogConfig.StoreType.SEGMENT);
+    assertThat(eventsLogConfig.getSegmentPath().toString()).isEqualTo("/var/events-log");
+    assertThat(eventsLogConfig.getSegmentSize()).isEqualTo(EventsLogConfig.MAX_SEGMENT_SIZE);
+    assertThat(eventsLogConfig.getMigrationBatchSize()).isEqualTo(500);
+    assertThat(eventsLogConfig.getMigrationBatchDelay()).isEqualTo(0);
+    assertThat(eventsLogConfig.getRestoreDelay()).isEqualTo(10);
+    assertThat(eventsLogConfig.getShutdownTimeout()).isEqualTo(5000);
+  }
+
+  @Test
+  public void shouldCapConcurrentQueriesToQueryConnections() {
+    Config config = new Config();
+    config.setInt(PLUGIN_NAME, null, CONFIG_MAX_QUERY_CONNECTIONS, 3);
+    config.setInt(PLUGIN_NAME, null, CONFIG_MAX_CONCURRENT_QUERIES, 10);
+    config.setInt(PLUGIN_NAME, null, CONFIG_QUERY_PARALLELISM, 8);
+    when(cfgFactoryMock.getGlobalPluginConfig(PLUGIN_NAME)).thenReturn(config);
+    EventsLogConfig eventsLogConfig = new EventsLogConfig(cfgFactoryMock, site, PLUGIN_NAME);
+    assertThat(eventsLogConfig.getMaxConcurrentQueries()).isEqualTo(3);
+    assertThat(eventsLogConfig.getQueryParallelism()).isEqualTo(3);
   }
 
   private Config customConfig() {
     Config config = new Config();
     config.setBoolean(PLUGIN_NAME, null, CONFIG_COPY_LOCAL, true);
+    config.setEnum(
+        PLUGIN_NAME, null, CONFIG_LOCAL_STORE_TYPE, EventsLogConfig.LocalStoreType.JOURNAL);
     config.setInt(PLUGIN_NAME, null, CONFIG_MAX_AGE, 20);
+    config.setInt(PLUGIN_NAME, null, CONFIG_COUNTS_MAX_AGE, 90);
     config.setInt(PLUGIN_NAME, null, CONFIG_MAX_TRIES, 5);
     config.setInt(PLUGIN_NAME, null, CONFIG_RETURN_LIMIT, 10000);
     config.setInt(PLUGIN_NAME, null, CONFIG_CONN_TIME, 5000);
@@ -120,9 +211,27 @@ public class EventsLogConfigTest {
     config.setString(PLUGIN_NAME, null, CONFIG_URL, "jdbc:h2:~/gerrit/db");
     config.setString(PLUGIN_NAME, null, CONFIG_LOCAL_PATH, LOCAL_STORE_PATH);
     config.setStringList(PLUGIN_NAME, null, CONFIG_URL_OPTIONS, urlOptions);
+    config.setStringList(PLUGIN_NAME, null, CONFIG_READ_URL, readStoreUrls);
+    config.setBoolean(PLUGIN_NAME, null, CONFIG_CHECK_REPLICA_LAG, false);
     config.setString(PLUGIN_NAME, null, CONFIG_USERNAME, "testUsername");
     config.setString(PLUGIN_NAME, null, CONFIG_PASSWORD, "testPassword");
     config.setInt(PLUGIN_NAME, null, CONFIG_MAX_CONNECTIONS, CUSTOM_MAX_CONNECTIONS);
+    config.setInt(PLUGIN_NAME, null, CONFIG_MAX_QUERY_CONNECTIONS, 6);
+    config.setInt(PLUGIN_NAME, null, CONFIG_MAX_MAINTENANCE_CONNECTIONS, 2);
+    config.setInt(PLUGIN_NAME, null, CONFIG_WRITE_CONN_TIMEOUT, 20000);
+    config.setInt(PLUGIN_NAME, null, CONFIG_QUERY_CONN_TIMEOUT, 100);
+    config.setInt(PLUGIN_NAME, null, CONFIG_MAX_CONCURRENT_QUERIES, 4);
+    config.setInt(PLUGIN_NAME, null, CONFIG_QUERY_QUEUE_TIMEOUT, 100);
+    config.setInt(PLUGIN_NAME, null, CONFIG_USER_QUERY_RATE, 60);
+    config.setInt(PLUGIN_NAME, null, CONFIG_USER_QUERY_BURST, 10);
+    config.setInt(PLUGIN_NAME, null, CONFIG_PERMISSION_CHECK_THREADS, 0);
+    config.setEnum(PLUGIN_NAME, null, CONFIG_STORE_TYPE, EventsLogConfig.StoreType.SEGMENT);
+    config.setString(PLUGIN_NAME, null, CONFIG_SEGMENT_PATH, "/var/events-log");
+    config.setInt(PLUGIN_NAME, null, CONFIG_SEGMENT_SIZE, 4096);
+    config.setInt(PLUGIN_NAME, null, CONFIG_MIGRATION_BATCH_SIZE, 500);
+    config.setInt(PLUGIN_NAME, null, CONFIG_MIGRATION_BATCH_DELAY, -1);
+    config.setInt(PLUGIN_NAME, null, CONFIG_RESTORE_DELAY, 10);
+    config.setInt(PLUGIN_NAME, null, CONFIG_SHUTDOWN_TIMEOUT, 5000);
     return config;
   }
 }
@@ -14,19 +14,30 @@
 
 package com.ericsson.gerrit.plugins.eventslog;
 
+import static com.ericsson.gerrit.plugins.eventslog.EventsRestApiServlet.FRAMES_CONTENT_TYPE;
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.gerrit.server.CurrentUser;
 import com.google.inject.Provider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.Before;
@@ -39,10 +50,13 @@ import org.mockito.junit.MockitoJUnitRunner;
 
 @RunWith(MockitoJUnitRunner.class)
 public class EventsRestApiServletTest {
-  private static final String RANDOM_QUERY = "random query";
+  private static final List<String> RANDOM_QUERIES =
+      ImmutableList.of("random query", "next random query");
 
   @Mock private EventStore storeMock;
   @Mock private QueryMaker queryMakerMock;
+  @Mock private QueryLimiter queryLimiterMock;
+  @Mock private QueryLimiter.Permit permitMock;
   @Mock private Provider<CurrentUser> userProviderMock;
   @Mock private CurrentUser userMock;
   @Mock private HttpServletRequest reqMock;
@@ -53,7 +67,8 @@ public class EventsRestApiServletTest {
 
   @Before
   public void setUp() {
-    eventServlet = new EventsRestApiServlet(storeMock, queryMakerMock, userProviderMock);
+    eventServlet =
+        new EventsRestApiServlet(storeMock, queryMakerMock, queryLimiterMock, userProviderMock);
 
     when(userProviderMock.get()).thenReturn(userMock);
     when(userMock.isIdentifiedUser()).thenReturn(true);
@@ -61,18 +76,22 @@ public class EventsRestApiServletTest {
 
   @Test
   public void queryStringSplitting() throws Exception {
+    when(queryLimiterMock.acquire(userMock, RANDOM_QUERIES.size())).thenReturn(permitMock);
     when(reqMock.getQueryString()).thenReturn("a=1;b=2");
-    when(queryMakerMock.formQueryFromRequestParameters(captor.capture())).thenReturn(RANDOM_QUERY);
-    when(storeMock.queryChangeEvents(RANDOM_QUERY)).thenReturn(new ArrayList<>());
+    when(queryMakerMock.formQueriesFromRequestParameters(captor.capture()))
+        .thenReturn(RANDOM_QUERIES);
+    when(storeMock.queryChangeEvents(RANDOM_QUERIES)).thenReturn(new ArrayList<>());
     eventServlet.doGet(reqMock, rspMock);
     assertThat(ImmutableMap.of("a", "1", "b", "2")).isEqualTo(captor.getValue());
   }
 
   @Test
   public void badQueryString() throws Exception {
+    when(queryLimiterMock.acquire(userMock, RANDOM_QUERIES.size())).thenReturn(permitMock);
     when(reqMock.getQueryString()).thenReturn("a;b");
-    when(queryMakerMock.formQueryFromRequestParameters(captor.capture())).thenReturn(RANDOM_QUERY);
-    when(storeMock.queryChangeEvents(RANDOM_QUERY)).thenReturn(new ArrayList<>());
+    when(queryMakerMock.formQueriesFromRequestParameters(captor.capture()))
+        .thenReturn(RANDOM_QUERIES);
+    when(storeMock.queryChangeEvents(RANDOM_QUERIES)).thenReturn(new ArrayList<>());
     eventServlet.doGet(reqMock, rspMock);
     assertThat(captor.getValue()).isEmpty();
   }
@@ -88,7 +107,7 @@ public class EventsRestApiServletTest {
   public void testBadRequestCode() throws Exception {
     when(reqMock.getQueryString()).thenReturn("@@");
     Map<String, String> emptyParams = ImmutableMap.of();
-    when(queryMakerMock.formQueryFromRequestParameters(emptyParams))
+    when(queryMakerMock.formQueriesFromRequestParameters(emptyParams))
         .thenThrow(new MalformedQueryException());
     eventServlet.doGet(reqMock, rspMock);
     verify(rspMock).sendError(HttpServletResponse.SC_BAD_REQUEST);
@@ -96,14 +115,101 @@ public class EventsRestApiServletTest {
 
   @Test
   public void queryDatabaseAndWrite() throws Exception {
+    when(queryLimiterMock.acquire(userMock, RANDOM_QUERIES.size())).thenReturn(permitMock);
     when(reqMock.getQueryString()).thenReturn("@@");
     PrintWriter outMock = mock(PrintWriter.class);
     List<String> listMock = ImmutableList.of("event one", "event two");
     when(rspMock.getWriter()).thenReturn(outMock);
-    when(queryMakerMock.formQueryFromRequestParameters(captor.capture())).thenReturn(RANDOM_QUERY);
-    when(storeMock.queryChangeEvents(RANDOM_QUERY)).thenReturn(listMock);
+    when(queryMakerMock.formQueriesFromRequestParameters(captor.capture()))
+        .thenReturn(RANDOM_QUERIES);
+    when(storeMock.queryChangeEvents(RANDOM_QUERIES)).thenReturn(listMock);
     eventServlet.doGet(reqMock, rspMock);
-    verify(outMock).write(listMock.get(0) + "\n");
-    verify(outMock).write(listMock.get(1) + "\n");
+    verify(outMock).write(listMock.get(0));
+    verify(outMock).write(listMock.get(1));
+    verify(outMock, times(2)).write('\n');
+    verify(permitMock).close();
+  }
+
+  @Test
+  public void queryDatabaseAndWriteFields() throws Exception {
+    when(queryLimiterMock.acquire(userMock, RANDOM_QUERIES.size())).thenReturn(permitMock);
+    when(reqMock.getQueryString()).thenReturn("fields=type");
+    PrintWriter outMock = mock(PrintWriter.class);
+    when(rspMock.getWriter()).thenReturn(outMock);
+    when(queryMakerMock.formQueriesFromRequestParameters(captor.capture()))
+        .thenReturn(RANDOM_QUERIES);
+    when(storeMock.queryChangeEvents(RANDOM_QUERIES))
+        .thenReturn(ImmutableList.of("{\"type\":\"ref-updated\",\"refUpdate\":{}}"));
+    eventServlet.doGet(reqMock, rspMock);
+    verify(outMock).write("{\"type\":\"ref-updated\"}");
+    verify(outMock).write('\n');
+  }
+
+  @Test
+  public void testBadFieldsCode() throws Exception {
+    when(reqMock.getQueryString()).thenReturn("fields=a-b");
+    eventServlet.doGet(reqMock, rspMock);
+    verify(rspMock).sendError(HttpServletResponse.SC_BAD_REQUEST);
+    verifyNoInteractions(storeMock);
+  }
+
+  @Test
+  public void queryDatabaseAndWriteFrames() throws Exception {
+    when(queryLimiterMock.acquire(userMock, RANDOM_QUERIES.size())).thenReturn(permitMock);
+    when(reqMock.getQueryString()).thenReturn("@@");
+    when(reqMock.getHeader("Accept")).thenReturn("text/plain, " + FRAMES_CONTENT_TYPE + ";q=0.9");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    when(rspMock.getOutputStream()).thenReturn(new TestOutputStream(bytes));
+    when(queryMakerMock.formQueriesFromRequestParameters(captor.capture()))
+        .thenReturn(RANDOM_QUERIES);
+    when(storeMock.queryChangeEvents(RANDOM_QUERIES))
+        .thenReturn(ImmutableList.of("one", "\u00e9t\u00e9"));
+    eventServlet.doGet(reqMock, rspMock);
+    verify(rspMock).setContentType(FRAMES_CONTENT_TYPE);
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    assertThat(readFrame(in)).isEqualTo("one");
+    assertThat(readFrame(in)).isEqualTo("\u00e9t\u00e9");
+    assertThat(in.available()).isEqualTo(0);
+  }
+
+  @Test
+  public void testTooManyRequestsCode() throws Exception {
+    when(reqMock.getQueryString()).thenReturn("@@");
+    when(queryMakerMock.formQueriesFromRequestParameters(captor.capture()))
+        .thenReturn(RANDOM_QUERIES);
+    when(queryLimiterMock.acquire(userMock, RANDOM_QUERIES.size()))
+        .thenThrow(new TooManyRequestsException(7));
+    eventServlet.doGet(reqMock, rspMock);
+    verify(rspMock).setHeader("Retry-After", "7");
+    verify(rspMock).sendError(429);
+    verifyNoInteractions(storeMock);
+  }
+
+  private static String readFrame(DataInputStream in) throws IOException {
+    byte[] frame = new byte[in.readInt()];
+    in.readFully(frame);
+    return new String(frame, UTF_8);
+  }
+
+  private static class TestOutputStream extends ServletOutputStream {
+    private final OutputStream out;
+
+    TestOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {}
   }
 }
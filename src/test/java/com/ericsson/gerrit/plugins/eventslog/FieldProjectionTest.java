@@ -0,0 +1,70 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class FieldProjectionTest {
+  private static final String EVENT =
+      "{\"type\":\"patchset-created\",\"change\":{\"number\":7,\"owner\":{\"name\":\"joe\"}},"
+          + "\"patchSet\":{\"revision\":\"abc\",\"ref\":null},\"eventCreatedOn\":1413800000}";
+
+  @Test
+  public void noFields() throws Exception {
+    assertThat(FieldProjection.parse(null)).isNull();
+    assertThat(FieldProjection.parse(" , ")).isNull();
+  }
+
+  @Test(expected = MalformedQueryException.class)
+  public void badField() throws Exception {
+    FieldProjection.parse("type,change..number");
+  }
+
+  @Test(expected = MalformedQueryException.class)
+  public void fieldWithQuote() throws Exception {
+    FieldProjection.parse("change.number')");
+  }
+
+  @Test
+  public void projectNestedFields() throws Exception {
+    FieldProjection fields =
+        FieldProjection.parse("type,change.number,patchSet.revision,eventCreatedOn");
+    assertThat(fields.project(EVENT))
+        .isEqualTo(
+            "{\"type\":\"patchset-created\",\"change\":{\"number\":7},"
+                + "\"patchSet\":{\"revision\":\"abc\"},\"eventCreatedOn\":1413800000}");
+  }
+
+  @Test
+  public void projectWholeObject() throws Exception {
+    String change = "{\"change\":{\"number\":7,\"owner\":{\"name\":\"joe\"}}}";
+    assertThat(FieldProjection.parse("change.owner.name,change").project(EVENT)).isEqualTo(change);
+    assertThat(FieldProjection.parse("change,change.owner.name").project(EVENT)).isEqualTo(change);
+  }
+
+  @Test
+  public void dropNullAndMissingFields() throws Exception {
+    FieldProjection fields = FieldProjection.parse("patchSet.ref,comment.message,type");
+    assertThat(fields.project(EVENT)).isEqualTo("{\"type\":\"patchset-created\"}");
+  }
+
+  @Test
+  public void keepEventWhichIsNotAnObject() throws Exception {
+    FieldProjection fields = FieldProjection.parse("type");
+    assertThat(fields.project("event one")).isEqualTo("event one");
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Ticker;
+import com.google.gerrit.entities.Account;
+import com.google.gerrit.server.CurrentUser;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class QueryLimiterTest {
+  @Mock private EventsLogConfig cfgMock;
+  @Mock private CurrentUser userMock;
+  @Mock private CurrentUser otherUserMock;
+
+  private TestTicker ticker = new TestTicker();
+
+  @Before
+  public void setUp() {
+    when(cfgMock.getMaxConcurrentQueries()).thenReturn(1);
+    when(cfgMock.getQueryQueueTimeout()).thenReturn(0);
+  }
+
+  @Test
+  public void rejectWhenAllSlotsAreTaken() throws Exception {
+    QueryLimiter limiter = new QueryLimiter(cfgMock, ticker);
+    QueryLimiter.Permit permit = limiter.acquire(userMock);
+    assertThrows(TooManyRequestsException.class, () -> limiter.acquire(userMock));
+    permit.close();
+    limiter.acquire(userMock).close();
+  }
+
+  @Test
+  public void takeOneSlotPerQueryPart() throws Exception {
+    when(cfgMock.getMaxConcurrentQueries()).thenReturn(3);
+    QueryLimiter limiter = new QueryLimiter(cfgMock, ticker);
+    QueryLimiter.Permit permit = limiter.acquire(userMock, 2);
+    limiter.acquire(userMock).close();
+    assertThrows(TooManyRequestsException.class, () -> limiter.acquire(userMock, 2));
+    permit.close();
+    limiter.acquire(userMock, 5).close();
+  }
+
+  @Test
+  public void rejectWhenUserRateIsExceeded() throws Exception {
+    when(cfgMock.getUserQueryRate()).thenReturn(6);
+    when(cfgMock.getUserQueryBurst()).thenReturn(2);
+    when(userMock.getAccountId()).thenReturn(Account.id(1));
+    when(otherUserMock.getAccountId()).thenReturn(Account.id(2));
+    QueryLimiter limiter = new QueryLimiter(cfgMock, ticker);
+
+    limiter.acquire(userMock).close();
+    limiter.acquire(userMock).close();
+    TooManyRequestsException e =
+        assertThrows(TooManyRequestsException.class, () -> limiter.acquire(userMock));
+    assertThat(e.getRetryAfter()).isEqualTo(10);
+    limiter.acquire(otherUserMock).close();
+
+    ticker.advance(10, TimeUnit.SECONDS);
+    limiter.acquire(userMock).close();
+    assertThrows(TooManyRequestsException.class, () -> limiter.acquire(userMock));
+  }
+
+  private static class TestTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(long time, TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+  }
+}
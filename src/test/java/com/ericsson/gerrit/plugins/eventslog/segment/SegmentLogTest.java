@@ -0,0 +1,157 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.segment;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentLogTest {
+  private static final long MAX_SIZE = 16 * 1024;
+  private static final String EVENT = "{\"type\":\"test-event\",\"padding\":\"%0200d\"}";
+
+  @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private Path dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = testFolder.newFolder().toPath();
+  }
+
+  @Test
+  public void readTimeWindow() throws Exception {
+    try (SegmentLog segmentLog = SegmentLog.open(dir, MAX_SIZE)) {
+      append(segmentLog, 1, 500);
+
+      List<SegmentEntry> entries = read(segmentLog, new SegmentQuery(100, 199, 0, 0, false));
+      assertThat(entries).hasSize(100);
+      assertThat(entries.get(0).getTimestamp()).isEqualTo(100);
+      assertThat(entries.get(0).getProject()).isEqualTo("project");
+      assertThat(entries.get(0).getEvent()).isEqualTo(String.format(EVENT, 100));
+      assertThat(entries.get(99).getSeq()).isEqualTo(199);
+    }
+  }
+
+  @Test
+  public void readFirstAndLatestWithinLimit() throws Exception {
+    try (SegmentLog segmentLog = SegmentLog.open(dir, MAX_SIZE)) {
+      append(segmentLog, 1, 500);
+
+      assertThat(seqs(read(segmentLog, new SegmentQuery(0, 1000, 0, 3, false))))
+          .containsExactly(1L, 2L, 3L)
+          .inOrder();
+      assertThat(seqs(read(segmentLog, new SegmentQuery(0, 1000, 0, 3, true))))
+          .containsExactly(498L, 499L, 500L)
+          .inOrder();
+      assertThat(seqs(read(segmentLog, new SegmentQuery(0, 1000, 497, 0, false))))
+          .containsExactly(498L, 499L, 500L)
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void filterEvents() throws Exception {
+    try (SegmentLog segmentLog = SegmentLog.open(dir, MAX_SIZE)) {
+      append(segmentLog, 1, 10);
+
+      List<SegmentEntry> entries =
+          segmentLog.read(new SegmentQuery(0, 1000, 0, 2, true), entry -> entry.getSeq() % 2 == 1);
+      assertThat(seqs(entries)).containsExactly(7L, 9L).inOrder();
+    }
+  }
+
+  @Test
+  public void reopenAndRemoveOldSegments() throws Exception {
+    try (SegmentLog segmentLog = SegmentLog.open(dir, MAX_SIZE)) {
+      append(segmentLog, 1, 500);
+    }
+    try (SegmentLog segmentLog = SegmentLog.open(dir, MAX_SIZE)) {
+      assertThat(segmentLog.append(501, "project", String.format(EVENT, 501))).isEqualTo(501);
+      assertThat(read(segmentLog, new SegmentQuery(0, 1000, 0, 0, false))).hasSize(501);
+
+      assertThat(segmentLog.removeOlderThan(250)).isGreaterThan(0);
+      List<SegmentEntry> entries = read(segmentLog, new SegmentQuery(0, 1000, 0, 0, false));
+      assertThat(entries.get(0).getTimestamp()).isGreaterThan(1L);
+      assertThat(entries.get(0).getTimestamp()).isAtMost(250L);
+      assertThat(entries.get(entries.size() - 1).getSeq()).isEqualTo(501);
+    }
+  }
+
+  @Test
+  public void reopenWithLastSegmentSealed() throws Exception {
+    try (Segment segment = Segment.open(dir, 1, MAX_SIZE)) {
+      segment.append(1, "project".getBytes(UTF_8), String.format(EVENT, 1).getBytes(UTF_8));
+      segment.seal();
+    }
+
+    try (SegmentLog segmentLog = SegmentLog.open(dir, MAX_SIZE * 2)) {
+      assertThat(segmentLog.append(2, "project", String.format(EVENT, 2))).isEqualTo(2);
+      assertThat(seqs(read(segmentLog, new SegmentQuery(0, 1000, 0, 0, false))))
+          .containsExactly(1L, 2L)
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void dropIncompleteLastEvent() throws Exception {
+    try (SegmentLog segmentLog = SegmentLog.open(dir, MAX_SIZE)) {
+      append(segmentLog, 1, 3);
+    }
+    Path segment = dir.resolve(String.format("%020d", 1) + Segment.LOG_SUFFIX);
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 10);
+    }
+
+    try (SegmentLog segmentLog = SegmentLog.open(dir, MAX_SIZE)) {
+      assertThat(seqs(read(segmentLog, new SegmentQuery(0, 1000, 0, 0, false))))
+          .containsExactly(1L, 2L)
+          .inOrder();
+      assertThat(segmentLog.append(4, "project", String.format(EVENT, 4))).isEqualTo(3);
+    }
+  }
+
+  private static void append(SegmentLog segmentLog, int first, int last) throws IOException {
+    for (int i = first; i <= last; i++) {
+      segmentLog.append(i, "project", String.format(EVENT, i));
+    }
+  }
+
+  private static List<SegmentEntry> read(SegmentLog segmentLog, SegmentQuery query)
+      throws IOException {
+    List<SegmentEntry> entries = segmentLog.read(query, entry -> true);
+    if (!query.hasLimit()) {
+      List<SegmentEntry> exported = new ArrayList<>();
+      segmentLog.forEach(query, exported::add);
+      assertThat(seqs(exported)).isEqualTo(seqs(entries));
+    }
+    return entries;
+  }
+
+  private static List<Long> seqs(List<SegmentEntry> entries) {
+    return entries.stream().map(SegmentEntry::getSeq).collect(toList());
+  }
+}
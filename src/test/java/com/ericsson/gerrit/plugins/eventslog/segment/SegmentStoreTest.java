@@ -0,0 +1,148 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.segment;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.ServiceUnavailableException;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.restapi.AuthException;
+import com.google.gerrit.server.events.ProjectEvent;
+import com.google.gerrit.server.permissions.PermissionBackend;
+import com.google.gerrit.server.permissions.ProjectPermission;
+import com.google.gson.JsonParser;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SegmentStoreTest {
+  private static final int RETURN_LIMIT = 3;
+  private static final String ALL_EVENTS =
+      new SegmentQuery(Long.MIN_VALUE, Long.MAX_VALUE, 0, RETURN_LIMIT, false).toString();
+
+  @Mock private EventsLogConfig cfgMock;
+  @Mock private ScheduledExecutorService poolMock;
+  @Mock private ScheduledExecutorService cleanerPoolMock;
+  @Mock private PermissionBackend permissionBackendMock;
+  @Mock private PermissionBackend.WithUser withUserMock;
+  @Mock private PermissionBackend.ForProject forProjectMock;
+
+  @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private SegmentStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    when(cfgMock.getSegmentPath()).thenReturn(testFolder.newFolder().toPath());
+    when(cfgMock.getSegmentSize()).thenReturn(1);
+    when(cfgMock.getMaxAge()).thenReturn(5);
+    when(cfgMock.getReturnLimit()).thenReturn(RETURN_LIMIT);
+    store = new SegmentStore(cfgMock, poolMock, cleanerPoolMock, permissionBackendMock);
+  }
+
+  @After
+  public void tearDown() {
+    store.stop();
+  }
+
+  @Test
+  public void queryOnlyReturnsVisibleEvents() throws Exception {
+    PermissionBackend.ForProject notVisibleMock = mock(PermissionBackend.ForProject.class);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(Project.nameKey("visible"))).thenReturn(forProjectMock);
+    when(withUserMock.project(Project.nameKey("hidden"))).thenReturn(notVisibleMock);
+    doThrow(new AuthException("")).when(notVisibleMock).check(ProjectPermission.ACCESS);
+    store.start();
+    store.storeEvent(new MockEvent("visible", 1));
+    store.storeEvent(new MockEvent("hidden", 2));
+    store.storeEvent(new MockEvent("visible", 3));
+    store.storeEvent(new MockEvent("hidden", 4));
+
+    List<String> events = store.queryChangeEvents(ALL_EVENTS);
+    assertThat(projects(events)).containsExactly("visible", "visible");
+    // The permissions are only checked once per project.
+    verify(withUserMock).project(Project.nameKey("hidden"));
+  }
+
+  @Test
+  public void queriesStopOnceLimitIsReached() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(Project.nameKey("visible"))).thenReturn(forProjectMock);
+    store.start();
+    for (int i = 1; i <= 4; i++) {
+      store.storeEvent(new MockEvent("visible", i));
+    }
+
+    List<String> events =
+        store.queryChangeEvents(
+            ImmutableList.of(
+                new SegmentQuery(1, 2, 0, RETURN_LIMIT, false).toString(),
+                new SegmentQuery(3, 4, 0, RETURN_LIMIT, false).toString(),
+                ALL_EVENTS));
+    assertThat(events).hasSize(RETURN_LIMIT);
+    assertThat(createdOn(events)).containsExactly(1L, 2L, 3L).inOrder();
+    // The last query is not run once the limit is reached.
+    verify(permissionBackendMock, times(2)).currentUser();
+  }
+
+  @Test
+  public void queryWithoutLogIsUnavailable() {
+    assertThrows(ServiceUnavailableException.class, () -> store.queryChangeEvents(ALL_EVENTS));
+  }
+
+  private static List<String> projects(List<String> events) {
+    return events.stream()
+        .map(e -> JsonParser.parseString(e).getAsJsonObject().get("project").getAsString())
+        .collect(toList());
+  }
+
+  private static List<Long> createdOn(List<String> events) {
+    return events.stream()
+        .map(e -> JsonParser.parseString(e).getAsJsonObject().get("eventCreatedOn").getAsLong())
+        .collect(toList());
+  }
+
+  private static class MockEvent extends ProjectEvent {
+    private final String project;
+
+    MockEvent(String project, long createdOn) {
+      super("mock event");
+      this.project = project;
+      this.eventCreatedOn = createdOn;
+    }
+
+    @Override
+    public Project.NameKey getProjectNameKey() {
+      return Project.nameKey(project);
+    }
+  }
+}
@@ -0,0 +1,132 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.when;
+
+import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
+import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
+import com.google.common.collect.Sets;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EventIndexTest {
+  private static final String PATCHSET_CREATED =
+      "{\"type\":\"patchset-created\",\"change\":{\"project\":\"project\",\"branch\":\"master\","
+          + "\"id\":\"I0123\",\"number\":12,\"subject\":\"Fix the flaky build\"},"
+          + "\"patchSet\":{\"revision\":\"abc123\",\"uploader\":{\"username\":\"jdoe\"}}}";
+  private static final String COMMENT_ADDED =
+      "{\"type\":\"comment-added\",\"change\":{\"project\":\"other\",\"branch\":\"stable\","
+          + "\"id\":\"I4567\",\"number\":34},\"author\":{\"username\":\"asmith\"},"
+          + "\"comment\":\"Looks good, but the build is flaky\"}";
+
+  @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Mock private EventsLogConfig cfgMock;
+
+  private EventIndex index;
+
+  @Before
+  public void setUp() throws Exception {
+    when(cfgMock.getIndexEvents()).thenReturn(true);
+    when(cfgMock.getStoreUrl()).thenReturn("jdbc:h2:mem:test");
+    when(cfgMock.getIndexPath()).thenReturn(testFolder.getRoot().toPath());
+    index = new EventIndex(cfgMock);
+    index.start();
+    index.add(1, "project", Instant.ofEpochSecond(100), PATCHSET_CREATED);
+    index.add(2, "other", Instant.ofEpochSecond(200), COMMENT_ADDED);
+    index.refresh();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    index.stop();
+  }
+
+  @Test
+  public void searchFields() throws Exception {
+    assertThat(search("type:patchset-created")).containsExactly(1L);
+    assertThat(search("change:12")).containsExactly(1L);
+    assertThat(search("change:I4567")).containsExactly(2L);
+    assertThat(search("revision:abc123")).containsExactly(1L);
+    assertThat(search("uploader:jdoe")).containsExactly(1L);
+    assertThat(search("author:asmith")).containsExactly(2L);
+    assertThat(search("branch:stable")).containsExactly(2L);
+    assertThat(search("flaky")).containsExactly(2L, 1L).inOrder();
+  }
+
+  @Test
+  public void searchTimeWindow() throws Exception {
+    assertThat(index.search("flaky", 150, 300, 10, projects -> projects)).containsExactly(2L);
+    assertThat(index.search("flaky", 0, 300, 1, projects -> projects)).containsExactly(2L);
+  }
+
+  @Test
+  public void searchSkipsEventsNotVisible() throws Exception {
+    for (long id = 3; id <= 10; id++) {
+      index.add(id, "hidden", Instant.ofEpochSecond(300), COMMENT_ADDED);
+    }
+    index.refresh();
+    Set<String> checked = new HashSet<>();
+    Function<Set<String>, Set<String>> visibleProjects =
+        projects -> {
+          checked.addAll(projects);
+          return Sets.filter(projects, project -> !project.equals("hidden"));
+        };
+    // The hits of the hidden project fill several pages before the visible ones.
+    assertThat(index.search("flaky", Long.MIN_VALUE, Long.MAX_VALUE, 2, visibleProjects))
+        .containsExactly(2L, 1L)
+        .inOrder();
+    assertThat(checked).containsExactly("hidden", "other", "project");
+  }
+
+  @Test
+  public void indexEventAgain() throws Exception {
+    index.add(1, "project", Instant.ofEpochSecond(100), COMMENT_ADDED);
+    index.refresh();
+    assertThat(search("type:comment-added")).containsExactly(2L, 1L).inOrder();
+    assertThat(search("type:patchset-created")).isEmpty();
+  }
+
+  @Test
+  public void removeEvents() throws Exception {
+    index.removeProject("other");
+    assertThat(search("flaky")).containsExactly(1L);
+    index.removeOlderThan(Instant.ofEpochSecond(150));
+    assertThat(search("flaky")).isEmpty();
+  }
+
+  @Test(expected = MalformedQueryException.class)
+  public void badSearch() throws Exception {
+    search("message:(flaky");
+  }
+
+  private List<Long> search(String search) throws Exception {
+    return index.search(search, Long.MIN_VALUE, Long.MAX_VALUE, 10, projects -> projects);
+  }
+}
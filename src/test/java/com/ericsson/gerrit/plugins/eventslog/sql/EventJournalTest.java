@@ -0,0 +1,169 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.stream.Collectors.toList;
+
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.events.ProjectEvent;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventJournalTest {
+  private static final String PLUGIN_NAME = "events-log";
+
+  @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+
+  private Path file;
+  private EventJournal journal;
+
+  @Before
+  public void setUp() throws Exception {
+    file = testFolder.newFolder().toPath().resolve(SQLTable.TABLE_NAME + EventJournal.SUFFIX);
+    journal = new EventJournal(file, PLUGIN_NAME);
+  }
+
+  @After
+  public void tearDown() {
+    journal.close();
+  }
+
+  @Test
+  public void nothingCreatedUntilUsed() throws Exception {
+    assertThat(journal.dbExists()).isFalse();
+    journal.storeEvent(new MockEvent("project", 1));
+    assertThat(journal.dbExists()).isTrue();
+  }
+
+  @Test
+  public void readEventsInOrder() throws Exception {
+    journal.storeEvent(new MockEvent("project", 1));
+    journal.storeEvents(
+        List.of(
+            new KeyedEvent(new MockEvent("other", 2)),
+            new KeyedEvent(new MockEvent("project", 3))));
+
+    List<SQLEntry> entries = journal.getEntries(0, 10);
+    assertThat(ids(entries)).containsExactly(1L, 2L, 3L).inOrder();
+    assertThat(entries.get(1).getName()).isEqualTo("other");
+    assertThat(entries.get(1).getTimestamp().getEpochSecond()).isEqualTo(2);
+    assertThat(entries.get(1).getEvent())
+        .isEqualTo(new EventSerializer(SQLDialect.H2).serialize(new MockEvent("other", 2)));
+    assertThat(journal.countEvents()).isEqualTo(3);
+  }
+
+  @Test
+  public void keepKeysOfEvents() throws Exception {
+    String key = UUID.randomUUID().toString();
+    journal.storeEvents(List.of(new KeyedEvent(new MockEvent("project", 1), key)));
+    journal.storeEvent(new MockEvent("project", 1));
+
+    List<SQLEntry> entries = journal.getEntries(0, 10);
+    assertThat(entries.get(0).getKey()).isEqualTo(key);
+    assertThat(entries.get(1).getKey()).isNotEqualTo(key);
+    assertThat(entries.get(1).getEvent()).isEqualTo(entries.get(0).getEvent());
+  }
+
+  @Test
+  public void readEventsInChunks() throws Exception {
+    store(1, 5);
+
+    assertThat(ids(journal.getEntries(0, 2))).containsExactly(1L, 2L).inOrder();
+    assertThat(ids(journal.getEntries(2, 2))).containsExactly(3L, 4L).inOrder();
+    assertThat(ids(journal.getEntries(4, 2))).containsExactly(5L);
+    assertThat(journal.getEntries(5, 2)).isEmpty();
+    assertThat(ids(journal.getEntries(1, 2))).containsExactly(2L, 3L).inOrder();
+  }
+
+  @Test
+  public void emptyOnceAllEventsAreRemoved() throws Exception {
+    store(1, 4);
+
+    journal.removeEventsUpTo(2);
+    assertThat(journal.countEvents()).isEqualTo(2);
+    assertThat(ids(journal.getEntries(0, 10))).containsExactly(3L, 4L).inOrder();
+    assertThat(journal.size()).isGreaterThan(0L);
+
+    journal.removeEventsUpTo(4);
+    assertThat(journal.countEvents()).isEqualTo(0);
+    assertThat(journal.size()).isEqualTo(0);
+    assertThat(journal.getEntries(0, 10)).isEmpty();
+
+    journal.storeEvent(new MockEvent("project", 5));
+    assertThat(ids(journal.getEntries(0, 10))).containsExactly(5L);
+  }
+
+  @Test
+  public void keepEventsWhenReopened() throws Exception {
+    store(1, 3);
+    journal.close();
+
+    journal = new EventJournal(file, PLUGIN_NAME);
+    assertThat(journal.countEvents()).isEqualTo(3);
+    journal.storeEvent(new MockEvent("project", 4));
+    assertThat(ids(journal.getEntries(0, 10))).containsExactly(1L, 2L, 3L, 4L).inOrder();
+  }
+
+  @Test
+  public void dropIncompleteLastEvent() throws Exception {
+    store(1, 3);
+    journal.close();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 10);
+    }
+
+    journal = new EventJournal(file, PLUGIN_NAME);
+    assertThat(ids(journal.getEntries(0, 10))).containsExactly(1L, 2L).inOrder();
+    journal.storeEvent(new MockEvent("project", 4));
+    assertThat(ids(journal.getEntries(0, 10))).containsExactly(1L, 2L, 3L).inOrder();
+  }
+
+  private void store(int first, int last) throws Exception {
+    List<KeyedEvent> events = new ArrayList<>();
+    for (int i = first; i <= last; i++) {
+      events.add(new KeyedEvent(new MockEvent("project", i)));
+    }
+    journal.storeEvents(events);
+  }
+
+  private static List<Long> ids(List<SQLEntry> entries) {
+    return entries.stream().map(SQLEntry::getId).collect(toList());
+  }
+
+  private static class MockEvent extends ProjectEvent {
+    private final String project;
+
+    MockEvent(String project, long createdOn) {
+      super("mock event");
+      this.project = project;
+      this.eventCreatedOn = createdOn;
+    }
+
+    @Override
+    public Project.NameKey getProjectNameKey() {
+      return Project.nameKey(project);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.server.events.ProjectEvent;
+import com.google.gson.Gson;
+import org.junit.Test;
+
+public class EventSerializerTest {
+  private static final String TEXT = "line\nbreak, \\n and \\\\n, ending \\";
+
+  @Test
+  public void serializeAsGson() throws Exception {
+    TestEvent event = new TestEvent(TEXT);
+    EventSerializer serializer = new EventSerializer(SQLDialect.H2);
+
+    assertThat(serializer.serialize(event)).isEqualTo(new Gson().toJson(event));
+    assertThat(serializer.serialize(new TestEvent("other"))).contains("\"other\"");
+  }
+
+  @Test
+  public void escapeNewlinesForSpanner() throws Exception {
+    TestEvent event = new TestEvent(TEXT);
+    EventSerializer serializer = new EventSerializer(SQLDialect.SPANNER);
+
+    assertThat(serializer.serialize(event))
+        .isEqualTo(new Gson().toJson(event).replace("\\n", "\\\\n"));
+  }
+
+  static class TestEvent extends ProjectEvent {
+    String text;
+
+    TestEvent(String text) {
+      super("test event");
+      this.text = text;
+    }
+
+    @Override
+    public Project.NameKey getProjectNameKey() {
+      return Project.nameKey("project");
+    }
+  }
+}
@@ -20,7 +20,10 @@ import static org.mockito.Mockito.when;
 import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
 import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
 import com.ericsson.gerrit.plugins.eventslog.QueryMaker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import java.util.List;
+import java.util.regex.Matcher;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -39,6 +42,7 @@ public class QueryMakerTest {
   private String defaultQuery;
 
   @Mock private EventsLogConfig cfgMock;
+  @Mock private EventIndex indexMock;
 
   private String query;
 
@@ -46,7 +50,7 @@ public class QueryMakerTest {
   public void setUp() throws Exception {
     when(cfgMock.getReturnLimit()).thenReturn(10);
     when(cfgMock.getStoreUrl()).thenReturn(TEST_DATABASE);
-    queryMaker = new SQLQueryMaker(cfgMock);
+    queryMaker = new SQLQueryMaker(cfgMock, indexMock);
     defaultQuery = queryMaker.getDefaultQuery();
   }
 
@@ -99,4 +103,172 @@ public class QueryMakerTest {
             ImmutableMap.of(T1, "2013-10-10", T2, "2014-10-10"));
     assertThat(query).isNotEqualTo(defaultQuery);
   }
+
+  @Test(expected = MalformedQueryException.class)
+  public void countsNotSupported() throws Exception {
+    queryMaker.formCountsQueryFromRequestParameters(null);
+  }
+
+  @Test
+  public void countsDateOrdering() throws Exception {
+    when(cfgMock.getStoreUrl()).thenReturn("jdbc:h2:mem:test");
+    queryMaker = new SQLQueryMaker(cfgMock, indexMock);
+    query =
+        queryMaker.formCountsQueryFromRequestParameters(
+            ImmutableMap.of(T1, NEW_DATE, T2, OLD_DATE));
+    assertThat(query).contains(String.format("'%s' and '%s'", OLD_DATE, NEW_DATE));
+    assertThat(queryMaker.formCountsQueryFromRequestParameters(null)).contains("BETWEEN");
+    assertThat(query).doesNotContain("LIMIT");
+  }
+
+  @Test
+  public void fieldsOnly() throws Exception {
+    query = queryMaker.formQueryFromRequestParameters(ImmutableMap.of("fields", "type"));
+    assertThat(query).isEqualTo(defaultQuery);
+  }
+
+  @Test
+  public void fieldsPushedDown() throws Exception {
+    when(cfgMock.getStoreUrl()).thenReturn("jdbc:postgresql://localhost/db");
+    queryMaker = new SQLQueryMaker(cfgMock, indexMock);
+    query =
+        queryMaker.formQueryFromRequestParameters(
+            ImmutableMap.of(T1, OLD_DATE, "fields", "type,change.number"));
+    assertThat(query)
+        .contains(
+            "json_strip_nulls(json_build_object('type', CAST(event_info AS json) #> '{type}',"
+                + " 'change', json_build_object('number', CAST(event_info AS json) #>"
+                + " '{change,number}'))) AS event_info");
+  }
+
+  @Test
+  public void exportAll() throws Exception {
+    assertThat(queryMaker.formExportQueryFromRequestParameters(null))
+        .isEqualTo(
+            "SELECT id, project, date_created, event_info FROM ChangeEvents ORDER BY date_created");
+  }
+
+  @Test(expected = MalformedQueryException.class)
+  public void exportCannotResumeOnSpanner() throws Exception {
+    queryMaker.formExportQueryFromRequestParameters(ImmutableMap.of("after", "12"));
+  }
+
+  @Test
+  public void exportAfterId() throws Exception {
+    when(cfgMock.getStoreUrl()).thenReturn("jdbc:h2:mem:test");
+    queryMaker = new SQLQueryMaker(cfgMock, indexMock);
+    query =
+        queryMaker.formExportQueryFromRequestParameters(
+            ImmutableMap.of("after", "12", T1, OLD_DATE, T2, NEW_DATE));
+    assertThat(query)
+        .isEqualTo(
+            String.format(
+                "SELECT id, project_id, project, date_created, event_info FROM ChangeEvents"
+                    + " WHERE id > 12 AND date_created BETWEEN '%s' and '%s' ORDER BY id",
+                OLD_DATE, NEW_DATE));
+  }
+
+  @Test(expected = MalformedQueryException.class)
+  public void exportAfterBadId() throws Exception {
+    queryMaker.formExportQueryFromRequestParameters(ImmutableMap.of("after", "1 OR 1=1"));
+  }
+
+  @Test
+  public void splitWideWindow() throws Exception {
+    when(cfgMock.getStoreUrl()).thenReturn("jdbc:h2:mem:test");
+    when(cfgMock.getQueryParallelism()).thenReturn(3);
+    queryMaker = new SQLQueryMaker(cfgMock, indexMock);
+    assertThat(
+            queryMaker.formQueriesFromRequestParameters(
+                ImmutableMap.of(T1, "2014-10-10 00:00:00", T2, "2014-10-10 06:00:00")))
+        .containsExactly(
+            "SELECT * FROM ChangeEvents WHERE /* visible */ 1 = 1 AND date_created >= '2014-10-10"
+                + " 00:00:00' and date_created < '2014-10-10 02:00:00' ORDER BY date_created LIMIT"
+                + " 10",
+            "SELECT * FROM ChangeEvents WHERE /* visible */ 1 = 1 AND date_created >= '2014-10-10"
+                + " 02:00:00' and date_created < '2014-10-10 04:00:00' ORDER BY date_created LIMIT"
+                + " 10",
+            "SELECT * FROM ChangeEvents WHERE /* visible */ 1 = 1 AND date_created >= '2014-10-10"
+                + " 04:00:00' and date_created <= '2014-10-10 06:00:00' ORDER BY date_created LIMIT"
+                + " 10")
+        .inOrder();
+  }
+
+  @Test
+  public void doNotSplitNarrowWindow() throws Exception {
+    when(cfgMock.getQueryParallelism()).thenReturn(4);
+    queryMaker = new SQLQueryMaker(cfgMock, indexMock);
+    ImmutableMap<String, String> params =
+        ImmutableMap.of(T1, "2014-10-10 00:00:00", T2, "2014-10-10 01:30:00");
+    assertThat(queryMaker.formQueriesFromRequestParameters(params))
+        .containsExactly(queryMaker.formQueryFromRequestParameters(params));
+    assertThat(queryMaker.formQueriesFromRequestParameters(null))
+        .isEqualTo(ImmutableList.of(defaultQuery));
+  }
+
+  @Test
+  public void searchIndexedEvents() throws Exception {
+    when(indexMock.isOpen()).thenReturn(true);
+    query = queryMaker.formQueryFromRequestParameters(ImmutableMap.of("search", "uploader:jdoe"));
+    // The index is searched when the query runs.
+    assertThat(query)
+        .isEqualTo(
+            "SELECT * FROM ChangeEvents WHERE /* visible */ 1 = 1 AND id IN (/* search "
+                + Long.MIN_VALUE
+                + " "
+                + Long.MAX_VALUE
+                + " dXBsb2FkZXI6amRvZQ */ -1) ORDER BY id");
+    Matcher searchIds = SQLTable.SEARCH_IDS.matcher(query);
+    assertThat(searchIds.find()).isTrue();
+    assertThat(SQLTable.getSearch(searchIds)).isEqualTo("uploader:jdoe");
+  }
+
+  @Test(expected = MalformedQueryException.class)
+  public void searchWithoutIndex() throws Exception {
+    queryMaker.formQueryFromRequestParameters(ImmutableMap.of("search", "uploader:jdoe"));
+  }
+
+  @Test
+  public void searchTimeWindowInOneQuery() throws Exception {
+    when(cfgMock.getQueryParallelism()).thenReturn(4);
+    queryMaker = new SQLQueryMaker(cfgMock, indexMock);
+    when(indexMock.isOpen()).thenReturn(true);
+    List<String> queries =
+        queryMaker.formQueriesFromRequestParameters(
+            ImmutableMap.of("search", "message", T1, OLD_DATE, T2, NEW_DATE));
+    assertThat(queries).hasSize(1);
+    Matcher searchIds = SQLTable.SEARCH_IDS.matcher(queries.get(0));
+    assertThat(searchIds.find()).isTrue();
+    assertThat(Long.parseLong(searchIds.group(1))).isLessThan(Long.parseLong(searchIds.group(2)));
+  }
+
+  @Test
+  public void filterJsonbEvents() throws Exception {
+    when(cfgMock.getStoreUrl()).thenReturn("jdbc:postgresql://localhost/db");
+    when(cfgMock.getJsonbEvents()).thenReturn(true);
+    queryMaker = new SQLQueryMaker(cfgMock, indexMock);
+    query =
+        queryMaker.formQueryFromRequestParameters(
+            ImmutableMap.of("type", "patchset-created", "change", "12", "uploader", "o'neil"));
+    assertThat(query)
+        .isEqualTo(
+            "SELECT * FROM (SELECT * FROM ChangeEvents WHERE /* visible */ 1 = 1 AND"
+                + " CAST(event_info AS jsonb) @> '{\"type\":\"patchset-created\"}' AND"
+                + " CAST(event_info AS jsonb) @> '{\"change\":{\"number\":12}}' AND CAST(event_info"
+                + " AS jsonb) @> '{\"patchSet\":{\"uploader\":{\"username\":\"o''neil\"}}}' ORDER"
+                + " BY id DESC LIMIT 10) a ORDER BY id ASC");
+    query =
+        queryMaker.formQueryFromRequestParameters(
+            ImmutableMap.of(T1, OLD_DATE, "branch", "master", "change", "I0123"));
+    assertThat(query)
+        .contains(
+            "WHERE /* visible */ 1 = 1 AND CAST(event_info AS jsonb) @>"
+                + " '{\"change\":{\"id\":\"I0123\"}}' AND CAST(event_info AS jsonb) @>"
+                + " '{\"change\":{\"branch\":\"master\"}}' AND date_created BETWEEN");
+  }
+
+  @Test(expected = MalformedQueryException.class)
+  public void filterTextEvents() throws Exception {
+    queryMaker.formQueryFromRequestParameters(ImmutableMap.of("type", "patchset-created"));
+  }
 }
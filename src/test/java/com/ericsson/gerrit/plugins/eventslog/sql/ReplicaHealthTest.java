@@ -0,0 +1,56 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.ericsson.gerrit.plugins.eventslog.sql.ReplicaHealth.MAX_BACKOFF;
+import static com.ericsson.gerrit.plugins.eventslog.sql.ReplicaHealth.MIN_BACKOFF;
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class ReplicaHealthTest {
+  private final ReplicaHealth health = new ReplicaHealth();
+
+  @Test
+  public void tryReplicaUntilItFails() {
+    assertThat(health.shouldTry(0)).isTrue();
+    assertThat(health.down(0)).isEqualTo(MIN_BACKOFF);
+    assertThat(health.shouldTry(MIN_BACKOFF - 1)).isFalse();
+  }
+
+  @Test
+  public void probeOnceBackoffIsOver() {
+    health.down(0);
+    assertThat(health.shouldTry(MIN_BACKOFF)).isTrue();
+    assertThat(health.shouldTry(MIN_BACKOFF + 1)).isFalse();
+
+    health.up();
+    assertThat(health.shouldTry(MIN_BACKOFF + 1)).isTrue();
+  }
+
+  @Test
+  public void doubleBackoffAfterEachFailedProbe() {
+    long now = 0;
+    long backoff = health.down(now);
+    for (int i = 0; i < 10; i++) {
+      now += backoff;
+      assertThat(health.shouldTry(now)).isTrue();
+      long next = health.down(now);
+      assertThat(next).isEqualTo(Math.min(backoff * 2, MAX_BACKOFF));
+      backoff = next;
+    }
+    assertThat(backoff).isEqualTo(MAX_BACKOFF);
+  }
+}
@@ -41,9 +41,9 @@ public class SQLEntryTest {
     entry2 = new SQLEntry("name2", past, "event2", Integer.MIN_VALUE);
     entry3 = new SQLEntry("name3", timestamp, "event3", 0);
     entry4 = new SQLEntry("name4", future, "event4", Integer.MAX_VALUE);
-    entry5 = new SQLEntry("name5", timestamp, "event1", "b54e6b86-7686-4c3e-a4e4-8edd60ae328e");
-    entry6 = new SQLEntry("name6", timestamp, "event2", "0ebc1d7f-5888-45d8-8cd1-244eda611a38");
-    entry7 = new SQLEntry("name7", timestamp, "event2", "0ebc1d7f-5888-45d8-8cd1-244eda611a38");
+    entry5 = new SQLEntry("name5", timestamp, "event1", Integer.MAX_VALUE + 1L);
+    entry6 = new SQLEntry("name6", timestamp, "event2", Long.MAX_VALUE);
+    entry7 = new SQLEntry("name7", timestamp, "event2", Long.MAX_VALUE);
   }
 
   @Test
@@ -14,37 +14,58 @@
 
 package com.ericsson.gerrit.plugins.eventslog.sql;
 
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.COUNTS_TABLE_NAME;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.PROJECTS_TABLE_NAME;
+import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.SCHEMA_TABLE_NAME;
 import static com.ericsson.gerrit.plugins.eventslog.sql.SQLTable.TABLE_NAME;
 import static com.google.common.truth.Truth.assertThat;
+import static java.time.temporal.ChronoUnit.HOURS;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.ericsson.gerrit.plugins.eventslog.EventsLogConfig;
-import com.ericsson.gerrit.plugins.eventslog.EventsLogException;
 import com.ericsson.gerrit.plugins.eventslog.MalformedQueryException;
 import com.ericsson.gerrit.plugins.eventslog.ServiceUnavailableException;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.exceptions.StorageException;
+import com.google.gerrit.extensions.restapi.AuthException;
 import com.google.gerrit.server.events.ProjectEvent;
 import com.google.gerrit.server.permissions.PermissionBackend;
 import com.google.gerrit.server.permissions.PermissionBackendException;
 import com.google.gerrit.server.permissions.ProjectPermission;
 import com.google.gson.Gson;
+import com.google.gson.JsonParser;
 import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 import java.net.ConnectException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -64,10 +85,10 @@ public class SQLStoreTest {
   private static final FluentLogger log = FluentLogger.forEnclosingClass();
   private static final String TEST_URL = "jdbc:h2:mem:" + TABLE_NAME;
   private static final String TEST_LOCAL_URL = "jdbc:h2:mem:test";
+  private static final String TEST_REPLICA_URL = "jdbc:h2:mem:replica";
   private static final String TEST_OPTIONS = "DB_CLOSE_DELAY=-1;DATABASE_TO_UPPER=false";
-  private static final String TERM_CONN_MSG = "terminating connection";
-  private static final String MSG = "message";
   private static final String GENERIC_QUERY = "SELECT * FROM " + TABLE_NAME;
+  private static final String COUNTS_QUERY = "SELECT * FROM " + COUNTS_TABLE_NAME;
   private static final String PLUGIN_NAME = "events-log";
 
   @Mock private EventsLogConfig cfgMock;
@@ -75,6 +96,7 @@ public class SQLStoreTest {
   @Mock private PermissionBackend.ForProject forProjectMock;
   @Mock private PermissionBackend.WithUser withUserMock;
   @Mock private EventsLogCleaner logCleanerMock;
+  @Mock private VisibilityClassifier classifierMock;
 
   private SQLClient eventsDb;
   private SQLClient localEventsDb;
@@ -98,12 +120,16 @@ public class SQLStoreTest {
     stat = conn.createStatement();
     poolMock = new PoolMock();
     when(cfgMock.getMaxAge()).thenReturn(5);
+    when(cfgMock.getPermissionCheckThreads()).thenReturn(2);
     when(cfgMock.getLocalStorePath()).thenReturn(testFolder.getRoot().toPath());
   }
 
   @After
   public void tearDown() throws Exception {
     stat.execute("DROP TABLE IF EXISTS " + TABLE_NAME);
+    stat.execute("DROP TABLE IF EXISTS " + COUNTS_TABLE_NAME);
+    stat.execute("DROP TABLE IF EXISTS " + PROJECTS_TABLE_NAME);
+    stat.execute("DROP TABLE IF EXISTS " + SCHEMA_TABLE_NAME);
     if (store != null) {
       store.stop();
     }
@@ -122,11 +148,19 @@ public class SQLStoreTest {
   }
 
   @Test
-  public void storeThenCheckInstantStored() throws Exception {
-    eventsDb = mock(SQLClient.class);
-    config.setJdbcUrl(TEST_LOCAL_URL);
+  public void storeThenQueryWithSeparatePools() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    HikariConfig queryConfig = new HikariConfig();
+    config.copyStateTo(queryConfig);
+    queryConfig.setPoolName("query");
+    HikariConfig maintenanceConfig = new HikariConfig();
+    config.copyStateTo(maintenanceConfig);
+    maintenanceConfig.setPoolName("maintenance");
+    eventsDb = new SQLClient(config, queryConfig, maintenanceConfig);
     localEventsDb = new SQLClient(config);
-    localEventsDb.createDBIfNotCreated();
+    localEventsDb.setCounts(false);
     store =
         new SQLStore(
             cfgMock,
@@ -134,125 +168,623 @@ public class SQLStoreTest {
             localEventsDb,
             poolMock,
             permissionBackendMock,
+            classifierMock,
             logCleanerMock,
             PLUGIN_NAME);
     store.start();
+    store.awaitRestore();
+
     storeThenFlush(store, mockEvent);
-    ArgumentCaptor<ProjectEvent> captor = ArgumentCaptor.forClass(ProjectEvent.class);
-    verify(eventsDb).storeEvent(captor.capture());
-    assertThat(captor.getValue().eventCreatedOn).isEqualTo(mockEvent.eventCreatedOn);
+    assertThat(store.queryChangeEvents(GENERIC_QUERY)).hasSize(1);
+    eventsDb.removeProjectEvents(mockEvent.project);
+    assertThat(store.queryChangeEvents(GENERIC_QUERY)).isEmpty();
+    assertThat(eventsDb.getPools().keySet()).containsExactly("write", "query", "maintenance");
   }
 
   @Test
-  public void storeThenQueryNotVisible() throws Exception {
+  public void queryPrimaryWhenReplicaIsBehind() throws Exception {
+    assertThat(storeThenQueryReplica(true)).hasSize(1);
+  }
+
+  @Test
+  public void queryReplicaWhenLagIsNotChecked() throws Exception {
+    assertThat(storeThenQueryReplica(false)).isEmpty();
+  }
+
+  private List<String> storeThenQueryReplica(boolean checkReplicaLag) throws Exception {
     when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
     when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
-    doThrow(new PermissionBackendException(""))
-        .when(forProjectMock)
-        .check(ProjectPermission.ACCESS);
-    setUpClient();
-    storeThenFlush(store, mockEvent);
-    List<String> events = store.queryChangeEvents(GENERIC_QUERY);
-    assertThat(events).isEmpty();
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    try (Connection replica = DriverManager.getConnection(TEST_REPLICA_URL + ";" + TEST_OPTIONS);
+        Statement replicaStat = replica.createStatement()) {
+      replicaStat.execute(SQLTable.createTableQuery(SQLDialect.H2));
+      replicaStat.execute(SQLTable.createProjectsTableQuery(SQLDialect.H2));
+      replicaStat.execute(SQLTable.addProjectIdQuery());
+      HikariConfig replicaConfig = new HikariConfig();
+      config.copyStateTo(replicaConfig);
+      replicaConfig.setJdbcUrl(TEST_REPLICA_URL);
+      replicaConfig.setPoolName("replica");
+      eventsDb =
+          new SQLClient(config, null, null, ImmutableList.of(replicaConfig), checkReplicaLag);
+      localEventsDb = new SQLClient(config);
+      localEventsDb.setCounts(false);
+      store =
+          new SQLStore(
+              cfgMock,
+              eventsDb,
+              localEventsDb,
+              poolMock,
+              permissionBackendMock,
+              classifierMock,
+              logCleanerMock,
+              PLUGIN_NAME);
+      store.start();
+      store.awaitRestore();
+      storeThenFlush(store, mockEvent);
+      try {
+        return store.queryChangeEvents(GENERIC_QUERY);
+      } finally {
+        replicaStat.execute("DROP TABLE IF EXISTS " + TABLE_NAME);
+        replicaStat.execute("DROP TABLE IF EXISTS " + PROJECTS_TABLE_NAME);
+        replicaStat.execute("DROP TABLE IF EXISTS " + SCHEMA_TABLE_NAME);
+      }
+    }
   }
 
-  @Test(expected = MalformedQueryException.class)
-  public void throwBadRequestTriggerOnBadQuery() throws Exception {
+  @Test
+  public void storeThenQueryCountsVisible() throws Exception {
+    PermissionBackend.ForProject notVisibleMock = mock(PermissionBackend.ForProject.class);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(Project.nameKey("mock project"))).thenReturn(forProjectMock);
+    when(withUserMock.project(Project.nameKey("hidden"))).thenReturn(notVisibleMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    doThrow(new AuthException("")).when(notVisibleMock).check(ProjectPermission.ACCESS);
     setUpClient();
-    String badQuery = "bad query";
-    store.queryChangeEvents(badQuery);
+    store.storeEvent(mockEvent);
+    store.storeEvent(later(mockEvent));
+    store.storeEvent(new MockEvent("hidden"));
+    store.flush();
+
+    Instant bucket = Instant.ofEpochSecond(mockEvent.eventCreatedOn).truncatedTo(HOURS);
+    assertThat(store.queryEventCounts(COUNTS_QUERY))
+        .containsExactly(
+            new Gson().toJson(new SQLEventCount(bucket, "mock project", mockEvent.getType(), 2)));
   }
 
   @Test
-  public void notReturnEventWithNoVisibilityInfo() throws Exception {
+  public void restoredEventsAreCounted() throws Exception {
     when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
     when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
-    doThrow(new PermissionBackendException(""))
-        .when(forProjectMock)
-        .check(ProjectPermission.ACCESS);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
     setUpClient();
-    storeThenFlush(store, mockEvent);
-    List<String> events = store.queryChangeEvents(GENERIC_QUERY);
-    assertThat(events).isEmpty();
+    Instant timestamp = Instant.ofEpochSecond(mockEvent.eventCreatedOn);
+    eventsDb.storeEvent(mockEvent.project, timestamp, new Gson().toJson(mockEvent));
+
+    assertThat(store.queryEventCounts(COUNTS_QUERY))
+        .containsExactly(
+            new Gson()
+                .toJson(
+                    new SQLEventCount(
+                        timestamp.truncatedTo(HOURS), mockEvent.project, mockEvent.getType(), 1)));
   }
 
   @Test
-  public void retryOnConnectException() throws Exception {
-    setUpClientMock();
-    when(cfgMock.getMaxTries()).thenReturn(3);
-    when(cfgMock.getWaitTime()).thenReturn(0);
-    doAnswer(
-            invocation -> {
-              throw new EventsLogException("Error", new ConnectException());
-            })
-        .doAnswer(
-            invocation -> {
-              throw new EventsLogException("Error", new ConnectException());
-            })
-        .doNothing()
-        .when(eventsDb)
-        .flush();
+  public void storeEventsOnlyOnce() throws Exception {
+    eventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    KeyedEvent event = new KeyedEvent(mockEvent);
+    eventsDb.storeEvents(ImmutableList.of(event, event, new KeyedEvent(later(mockEvent))));
+    // Stored again with the same key, such as when retrying after a lost connection.
+    eventsDb.storeEvents(ImmutableList.of(event));
+    Instant timestamp = Instant.ofEpochSecond(mockEvent.eventCreatedOn);
+    String json = new Gson().toJson(mockEvent);
+    eventsDb.storeEntries(
+        ImmutableList.of(
+            new SQLEntry(mockEvent.project, timestamp, json, 0, event.getKey()),
+            new SQLEntry("other project", timestamp, json, 0)));
+
+    assertThat(eventsDb.getAll()).hasSize(3);
+    Instant bucket = timestamp.truncatedTo(HOURS);
+    assertThat(eventsDb.getEventCounts(COUNTS_QUERY).values().stream().map(new Gson()::toJson))
+        .containsExactly(
+            new Gson().toJson(new SQLEventCount(bucket, mockEvent.project, mockEvent.type, 2)),
+            new Gson().toJson(new SQLEventCount(bucket, "other project", mockEvent.type, 1)));
+    eventsDb.close();
+  }
 
-    store =
-        new SQLStore(
-            cfgMock,
-            eventsDb,
-            localEventsDb,
-            poolMock,
-            permissionBackendMock,
-            logCleanerMock,
-            PLUGIN_NAME);
+  @Test
+  public void readKeysOfStoredEvents() throws Exception {
+    eventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    KeyedEvent event = new KeyedEvent(mockEvent);
+    eventsDb.storeEvents(ImmutableList.of(event));
 
-    store.start();
-    storeThenFlush(store, new MockEvent("retryConnect"));
-    verify(eventsDb, times(3)).flush();
+    assertThat(eventsDb.getEntries(0, 10).get(0).getKey()).isEqualTo(event.getKey());
+    eventsDb.close();
   }
 
   @Test
-  public void retryOnMessage() throws Exception {
-    setUpClientMock();
-    mockEvent = new MockEvent("test");
-    when(cfgMock.getMaxTries()).thenReturn(3);
-    when(cfgMock.getWaitTime()).thenReturn(0);
-    doAnswer(
-            invocation -> {
-              throw new EventsLogException(TERM_CONN_MSG, new SQLException(TERM_CONN_MSG));
-            })
-        .doAnswer(
-            invocation -> {
-              throw new EventsLogException(TERM_CONN_MSG, new SQLException(TERM_CONN_MSG));
-            })
-        .doNothing()
-        .when(eventsDb)
-        .flush();
+  public void storeDistinctEventsWithSameContent() throws Exception {
+    eventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    eventsDb.storeEvent(mockEvent);
+    eventsDb.storeEvent(mockEvent);
+    eventsDb.flush();
 
-    store =
-        new SQLStore(
-            cfgMock,
-            eventsDb,
-            localEventsDb,
-            poolMock,
-            permissionBackendMock,
-            logCleanerMock,
-            PLUGIN_NAME);
+    assertThat(eventsDb.getAll()).hasSize(2);
+    eventsDb.close();
+  }
 
-    store.start();
+  @Test
+  public void storeEventsWithoutCounts() throws Exception {
+    eventsDb = new SQLClient(config);
+    eventsDb.setCounts(false);
+    eventsDb.createDBIfNotCreated();
+    eventsDb.storeEvent(mockEvent);
+    eventsDb.flush();
+
+    assertThat(eventsDb.getAll()).hasSize(1);
+    assertThrows(SQLException.class, () -> stat.executeQuery(COUNTS_QUERY));
+    eventsDb.close();
+  }
+
+  @Test
+  public void removeEventsOfProjectWithQuote() throws Exception {
+    eventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    MockEvent quoted = new MockEvent("it's");
+    eventsDb.storeEvent(quoted);
+    eventsDb.storeEvent(mockEvent);
+    eventsDb.flush();
+
+    eventsDb.removeProjectEvents(quoted.project);
+    assertThat(eventsDb.getAll()).hasSize(1);
+    assertThat(eventsDb.getEventCounts(COUNTS_QUERY)).hasSize(1);
+    eventsDb.close();
+  }
+
+  @Test
+  public void countEventsStoredByTwoWritersOnce() throws Exception {
+    eventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    SQLClient otherDb = new SQLClient(config);
+    Instant timestamp = Instant.ofEpochSecond(mockEvent.eventCreatedOn);
+    String json = new Gson().toJson(mockEvent);
+    List<SQLEntry> entries = ImmutableList.of(new SQLEntry(mockEvent.project, timestamp, json, 0));
+    otherDb.storeEntries(entries);
+    eventsDb.storeEntries(entries);
+    otherDb.close();
+
+    assertThat(eventsDb.getAll()).hasSize(1);
+    assertThat(eventsDb.getEventCounts(COUNTS_QUERY).values().stream().map(new Gson()::toJson))
+        .containsExactly(
+            new Gson()
+                .toJson(
+                    new SQLEventCount(
+                        timestamp.truncatedTo(HOURS), mockEvent.project, mockEvent.type, 1)));
+    eventsDb.close();
+  }
+
+  @Test
+  public void keepFlushingWhenListenerFails() throws Exception {
+    eventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    SQLClient.WriteListener listener = mock(SQLClient.WriteListener.class);
+    doThrow(new RejectedExecutionException()).when(listener).written();
+    eventsDb.setWriteListener(listener);
+    eventsDb.storeEvent(mockEvent);
+    eventsDb.flush();
+    eventsDb.storeEvent(later(mockEvent));
+    eventsDb.flush();
+
+    verify(listener, times(2)).written();
+    assertThat(eventsDb.getAll()).hasSize(2);
+    eventsDb.close();
+  }
+
+  @Test
+  public void storeAllQueuedEventsOnClose() throws Exception {
+    eventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    int queued = SQLClient.DRAIN_BATCH_SIZE + SQLClient.MAX_BATCH_SIZE;
+    for (int i = 0; i < queued; i++) {
+      eventsDb.storeEvent(new MockEvent("project-" + i));
+    }
+    eventsDb.close();
+
+    try (ResultSet rs = stat.executeQuery("SELECT COUNT(*) FROM " + TABLE_NAME)) {
+      rs.next();
+      assertThat(rs.getInt(1)).isEqualTo(queued);
+    }
+  }
+
+  @Test
+  public void handOverEventsLeftOnShutdownTimeout() throws Exception {
+    eventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    SQLClient.WriteListener listener = mock(SQLClient.WriteListener.class);
+    eventsDb.setWriteListener(listener);
+    eventsDb.setShutdownTimeout(0);
+    MockEvent other = new MockEvent("other project");
+    eventsDb.storeEvent(mockEvent);
+    eventsDb.storeEvent(other);
+    eventsDb.close();
+
+    ArgumentCaptor<List<KeyedEvent>> batch = ArgumentCaptor.captor();
+    verify(listener).writeFailed(batch.capture(), any(SQLTimeoutException.class));
+    assertThat(batch.getValue().stream().map(KeyedEvent::getEvent))
+        .containsExactly(mockEvent, other)
+        .inOrder();
+  }
+
+  @Test
+  public void removeOldEventCounts() throws Exception {
+    setUpClient();
     storeThenFlush(store, mockEvent);
-    verify(eventsDb, times(3)).flush();
+    eventsDb.removeOldEventCounts(0);
+
+    assertThat(eventsDb.getEventCounts(COUNTS_QUERY).isEmpty()).isTrue();
   }
 
   @Test
-  public void noRetryOnMessage() throws Exception {
-    when(cfgMock.getMaxTries()).thenReturn(3);
-    setUpClientMock();
-    doAnswer(
-            invocation -> {
-              throw new SQLException(MSG);
-            })
-        .doNothing()
-        .when(eventsDb)
-        .flush();
+  public void insertBatchInOneStatement() throws Exception {
+    eventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    eventsDb.storeEvent(new MockEvent("first"));
+    eventsDb.storeEvent(new MockEvent("second"));
+    eventsDb.storeEvent(later(new MockEvent("first")));
+    eventsDb.flush();
+
+    List<String> projects = new ArrayList<>();
+    try (ResultSet rs =
+        stat.executeQuery("SELECT project_id FROM " + TABLE_NAME + " ORDER BY id")) {
+      while (rs.next()) {
+        projects.add(rs.getString(1));
+      }
+    }
+    assertThat(projects).containsExactly("1", "2", "1").inOrder();
+    eventsDb.close();
+  }
+
+  @Test
+  public void migrateProjectNames() throws Exception {
+    stat.execute(SQLTable.createTableQuery(SQLDialect.H2));
+    stat.execute(
+        String.format(
+            "INSERT INTO %s (project, date_created, event_info) VALUES ('%s', NOW(), '%s')",
+            TABLE_NAME, mockEvent.project, new Gson().toJson(mockEvent)));
+    eventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    eventsDb.storeEvent(mockEvent.project, Instant.now(), new Gson().toJson(mockEvent));
+
+    assertThat(eventsDb.getEvents(GENERIC_QUERY).get(mockEvent.project)).hasSize(2);
+    eventsDb.completeBackfills();
+    assertThat(eventsDb.getEvents(GENERIC_QUERY).get(mockEvent.project)).hasSize(2);
+    try (ResultSet rs =
+        stat.executeQuery(
+            "SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE project IS NULL AND project_id = 1")) {
+      rs.next();
+      assertThat(rs.getInt(1)).isEqualTo(2);
+    }
+
+    eventsDb.removeProjectEvents(mockEvent.project);
+    assertThat(eventsDb.getAll()).isEmpty();
+    eventsDb.close();
+  }
+
+  @Test
+  public void backfillSchemaMigrationInBatches() throws Exception {
+    stat.execute(SQLTable.createTableQuery(SQLDialect.H2));
+    for (int i = 0; i < 3; i++) {
+      stat.execute(
+          String.format(
+              "INSERT INTO %s (project, date_created, event_info) VALUES ('%s', NOW(), '%s')",
+              TABLE_NAME, mockEvent.project, new Gson().toJson(mockEvent)));
+    }
+    eventsDb = new SQLClient(config);
+    eventsDb.setMigrationThrottle(2, TimeUnit.HOURS.toMillis(1));
+    eventsDb.createDBIfNotCreated();
+    assertThat(schemaProgress(1)).isEqualTo("1 0 false");
+
+    try (HikariDataSource ds = new HikariDataSource(config)) {
+      SchemaMigrator migrator =
+          new SchemaMigrator(ds, ds, SQLDialect.H2, SchemaMigrator.migrations(false), 2, 0);
+      assertThat(migrator.migrate()).isEqualTo(3);
+      assertThat(migrator.backfillBatch()).isTrue();
+      assertThat(schemaProgress(1)).isEqualTo("1 2 false");
+      assertThat(migrator.backfillBatch()).isTrue();
+      assertThat(schemaProgress(1)).isEqualTo("1 3 true");
+      // The event keys are indexed in a single step.
+      assertThat(schemaProgress(3)).isEqualTo("3 0 false");
+      assertThat(migrator.backfillBatch()).isFalse();
+      assertThat(schemaProgress(3)).isEqualTo("3 3 true");
+      assertThat(migrator.migrate()).isEqualTo(3);
+      assertThat(migrator.backfillBatch()).isFalse();
+      // The migrations which are not enabled are recorded once they are.
+      migrator = new SchemaMigrator(ds, ds, SQLDialect.H2, SchemaMigrator.migrations(true), 2, 0);
+      assertThat(migrator.migrate()).isEqualTo(4);
+    }
+    try (ResultSet rs =
+        stat.executeQuery("SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE project IS NULL")) {
+      rs.next();
+      assertThat(rs.getInt(1)).isEqualTo(3);
+    }
+    eventsDb.close();
+  }
+
+  @Test
+  public void removeEventsStoredTwiceBeforeIndexingKeys() throws Exception {
+    stat.execute(SQLTable.createTableQuery(SQLDialect.H2));
+    for (String key : new String[] {"'key'", "'key'", "NULL", "NULL"}) {
+      stat.execute(
+          String.format(
+              "INSERT INTO %s (project, event_info, event_key) VALUES ('%s', '%s', %s)",
+              TABLE_NAME, mockEvent.project, new Gson().toJson(mockEvent), key));
+    }
+    eventsDb = new SQLClient(config);
+    eventsDb.setMigrationThrottle(2, TimeUnit.HOURS.toMillis(1));
+    eventsDb.createDBIfNotCreated();
+    eventsDb.completeBackfills();
+
+    try (ResultSet rs =
+        stat.executeQuery("SELECT id FROM " + TABLE_NAME + " WHERE event_key = 'key'")) {
+      assertThat(rs.next()).isTrue();
+      assertThat(rs.getLong(1)).isEqualTo(1);
+      assertThat(rs.next()).isFalse();
+    }
+    assertThat(eventsDb.getAll()).hasSize(3);
+    assertThrows(
+        SQLException.class,
+        () ->
+            stat.execute(
+                "INSERT INTO " + TABLE_NAME + " (event_info, event_key) VALUES ('{}', 'key')"));
+    eventsDb.close();
+  }
+
+  @Test
+  public void widenIdsOfExistingTable() throws Exception {
+    stat.execute(
+        "CREATE TABLE "
+            + TABLE_NAME
+            + "(id INT AUTO_INCREMENT PRIMARY KEY, project VARCHAR(255),"
+            + " date_created TIMESTAMP DEFAULT NOW(), event_info TEXT)");
+    stat.execute(
+        String.format(
+            "INSERT INTO %s (project, event_info) VALUES ('%s', '%s')",
+            TABLE_NAME, mockEvent.project, new Gson().toJson(mockEvent)));
+    eventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    assertThat(schemaProgress(2)).startsWith("2 0 true");
+
+    long id = Integer.MAX_VALUE + 10L;
+    stat.execute("ALTER TABLE " + TABLE_NAME + " ALTER COLUMN id RESTART WITH " + id);
+    eventsDb.storeEvent(mockEvent.project, Instant.now(), new Gson().toJson(mockEvent));
+    try (ResultSet rs = stat.executeQuery("SELECT MAX(id) FROM " + TABLE_NAME)) {
+      rs.next();
+      assertThat(rs.getLong(1)).isEqualTo(id);
+    }
+    assertThat(eventsDb.getAll()).hasSize(2);
+    eventsDb.close();
+  }
+
+  @Test
+  public void leaveIdsOfLargeMySqlTable() throws Exception {
+    stat.execute(
+        "CREATE TABLE "
+            + TABLE_NAME
+            + "(id INT AUTO_INCREMENT PRIMARY KEY, project VARCHAR(255),"
+            + " date_created TIMESTAMP DEFAULT NOW(), event_info TEXT)");
+    stat.execute("INSERT INTO " + TABLE_NAME + " (id, project) VALUES (1, 'a'), (2000000, 'b')");
+    // Only the migration of the identifiers, the statements of the others are specific to MySQL.
+    List<SchemaMigration> migrations = SchemaMigrator.migrations(false).subList(1, 2);
+    try (HikariDataSource ds = new HikariDataSource(config)) {
+      SchemaMigrator migrator = new SchemaMigrator(ds, ds, SQLDialect.MYSQL, migrations, 2, 0);
+      assertThat(migrator.migrate()).isEqualTo(0);
+    }
+    try (ResultSet rs =
+        stat.executeQuery("SELECT COUNT(*) FROM " + SCHEMA_TABLE_NAME + " WHERE version = 2")) {
+      rs.next();
+      assertThat(rs.getInt(1)).isEqualTo(0);
+    }
+    try (ResultSet rs = stat.executeQuery("SELECT id FROM " + TABLE_NAME + " WHERE 1 = 0")) {
+      assertThat(rs.getMetaData().getColumnType(1)).isEqualTo(Types.INTEGER);
+    }
+  }
 
+  private String schemaProgress(int version) throws SQLException {
+    try (ResultSet rs =
+        stat.executeQuery(
+            "SELECT version, backfilled_to, completed FROM "
+                + SCHEMA_TABLE_NAME
+                + " WHERE version = "
+                + version)) {
+      assertThat(rs.next()).isTrue();
+      return rs.getInt(1) + " " + rs.getLong(2) + " " + (rs.getTimestamp(3) != null);
+    }
+  }
+
+  @Test
+  public void indexStoredEvents() throws Exception {
+    when(cfgMock.getIndexEvents()).thenReturn(true);
+    when(cfgMock.getStoreUrl()).thenReturn(TEST_URL);
+    when(cfgMock.getIndexPath()).thenReturn(testFolder.newFolder().toPath());
+    EventIndex index = new EventIndex(cfgMock);
+    index.start();
+    eventsDb = new SQLClient(config);
+    eventsDb.setIndex(index);
+    eventsDb.createDBIfNotCreated();
+    KeyedEvent event = new KeyedEvent(mockEvent);
+    eventsDb.storeEvents(ImmutableList.of(event));
+    eventsDb.storeEvent(mockEvent.project, Instant.now(), new Gson().toJson(later(mockEvent)));
+    // Storing an event again does not index it twice.
+    eventsDb.storeEvents(ImmutableList.of(event));
+
+    String search = "type:\"" + mockEvent.type + "\"";
+    assertThat(index.search(search, Long.MIN_VALUE, Long.MAX_VALUE, 10, projects -> projects))
+        .containsExactly(2L, 1L)
+        .inOrder();
+
+    eventsDb.removeProjectEvents(mockEvent.project);
+    assertThat(index.search(search, Long.MIN_VALUE, Long.MAX_VALUE, 10, projects -> projects))
+        .isEmpty();
+    eventsDb.close();
+    index.stop();
+  }
+
+  @Test
+  public void searchOnlyFindsVisibleEvents() throws Exception {
+    PermissionBackend.ForProject notVisibleMock = mock(PermissionBackend.ForProject.class);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(Project.nameKey("mock project"))).thenReturn(forProjectMock);
+    when(withUserMock.project(Project.nameKey("hidden"))).thenReturn(notVisibleMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    doThrow(new AuthException("")).when(notVisibleMock).check(ProjectPermission.ACCESS);
+    when(cfgMock.getReturnLimit()).thenReturn(1);
+    when(classifierMock.classify("mock project")).thenReturn(1L);
+    when(classifierMock.classify("hidden")).thenReturn(2L);
+    when(withUserMock.filter(eq(ProjectPermission.ACCESS), any()))
+        .thenReturn(ImmutableSet.of(Project.nameKey("mock project")));
+    when(cfgMock.getIndexEvents()).thenReturn(true);
+    when(cfgMock.getStoreUrl()).thenReturn(TEST_URL);
+    when(cfgMock.getIndexPath()).thenReturn(testFolder.newFolder().toPath());
+    EventIndex index = new EventIndex(cfgMock);
+    index.start();
+    setUpClient();
+    eventsDb.setIndex(index);
+    store.storeEvent(mockEvent);
+    store.storeEvent(new MockEvent("hidden"));
+    store.flush();
+    store.awaitClassification();
+
+    // The latest event found is not visible, the limit applies to the visible ones.
+    String query =
+        String.format(
+            "SELECT * FROM %s WHERE /* visible */ 1 = 1 AND id IN (%s) ORDER BY id",
+            TABLE_NAME, SQLTable.searchIds("type:\"mock event\"", Long.MIN_VALUE, Long.MAX_VALUE));
+    List<String> events = store.queryChangeEvents(query);
+    assertThat(events).hasSize(1);
+    assertThat(project(events.get(0))).isEqualTo("mock project");
+    index.stop();
+  }
+
+  @Test
+  public void queryOnlyReadsVisibleClasses() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    when(classifierMock.classify("mock project")).thenReturn(1L);
+    when(classifierMock.classify("hidden")).thenReturn(2L);
+    when(withUserMock.filter(eq(ProjectPermission.ACCESS), any()))
+        .thenReturn(ImmutableSet.of(Project.nameKey("mock project")));
+    setUpClient();
+    store.storeEvent(mockEvent);
+    store.storeEvent(new MockEvent("hidden"));
+    store.flush();
+    // The projects are classified in the background as they are added.
+    store.awaitClassification();
+    verify(classifierMock).classify("hidden");
+
+    assertThat(store.queryChangeEvents(GENERIC_QUERY)).hasSize(2);
+    // Events of the hidden class are left out by the query itself, not by the permission checks.
+    List<String> events =
+        store.queryChangeEvents(
+            "SELECT * FROM " + TABLE_NAME + " WHERE " + SQLTable.VISIBLE_CONDITION);
+    assertThat(events).hasSize(1);
+    assertThat(events.get(0)).contains("mock project");
+  }
+
+  @Test
+  public void exportEventsOfProjectsAddedByAnotherClient() throws Exception {
+    eventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    SQLClient other = new SQLClient(config);
+    other.createDBIfNotCreated();
+    other.storeEvent("new project", Instant.now(), "{\"type\":\"mock event\"}");
+    other.close();
+
+    List<String> exported = new ArrayList<>();
+    eventsDb.exportEvents(
+        "SELECT id, project_id, project, date_created, event_info FROM " + TABLE_NAME,
+        (id, project, event) -> exported.add(project + " " + event));
+    assertThat(exported).containsExactly("new project {\"type\":\"mock event\"}");
+    eventsDb.close();
+  }
+
+  @Test
+  public void exportVisibleEventsAfterId() throws Exception {
+    PermissionBackend.ForProject notVisibleMock = mock(PermissionBackend.ForProject.class);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(Project.nameKey("mock project"))).thenReturn(forProjectMock);
+    when(withUserMock.project(Project.nameKey("hidden"))).thenReturn(notVisibleMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    doThrow(new AuthException("")).when(notVisibleMock).check(ProjectPermission.ACCESS);
+    setUpClient();
+    MockEvent hidden = new MockEvent("hidden");
+    store.storeEvent(mockEvent);
+    store.storeEvent(hidden);
+    store.storeEvent(later(hidden));
+    store.storeEvent(later(mockEvent));
+    store.flush();
+
+    List<String> exported = new ArrayList<>();
+    store.exportChangeEvents(
+        GENERIC_QUERY + " WHERE id > 1 ORDER BY id",
+        (id, project, event) -> exported.add(id + " " + project + " " + event));
+
+    // The permission of each project is only checked once.
+    verify(withUserMock).project(Project.nameKey("hidden"));
+    assertThat(exported).containsExactly("4 mock project " + new Gson().toJson(later(mockEvent)));
+  }
+
+  @Test
+  public void queryPartsInOrderUpToLimit() throws Exception {
+    when(cfgMock.getReturnLimit()).thenReturn(3);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    setUpClient();
+    Instant start = Instant.parse("2014-10-10T00:00:00Z");
+    for (int i = 0; i < 5; i++) {
+      eventsDb.storeEvent("p" + i % 2, start.plusSeconds(i * 3600), "event " + i);
+    }
+
+    List<String> events =
+        store.queryChangeEvents(
+            ImmutableList.of(
+                GENERIC_QUERY + " WHERE id <= 2 ORDER BY date_created",
+                GENERIC_QUERY + " WHERE id > 2 ORDER BY date_created"));
+    assertThat(events).containsExactly("event 0", "event 1", "event 2").inOrder();
+  }
+
+  @Test
+  public void skipQueryPartsOnceLimitIsReached() throws Exception {
+    eventsDb = new SQLClient(config);
+    eventsDb.createDBIfNotCreated();
+    Instant start = Instant.parse("2014-10-10T00:00:00Z");
+    for (int i = 0; i < 5; i++) {
+      eventsDb.storeEvent("p", start.plusSeconds(i * 3600), "event " + i);
+    }
+
+    List<ListMultimap<String, SQLEntry>> parts =
+        eventsDb.getEvents(
+            ImmutableList.of(
+                GENERIC_QUERY + " WHERE id <= 1",
+                GENERIC_QUERY + " WHERE id > 1 AND id <= 3",
+                GENERIC_QUERY + " WHERE id > 3"),
+            3);
+    assertThat(parts.stream().map(ListMultimap::size).collect(toList()))
+        .containsExactly(1, 2)
+        .inOrder();
+    eventsDb.close();
+  }
+
+  @Test
+  public void storeThenCheckInstantStored() throws Exception {
+    eventsDb = mock(SQLClient.class);
+    config.setJdbcUrl(TEST_LOCAL_URL);
+    localEventsDb = new SQLClient(config);
+    localEventsDb.setCounts(false);
+    localEventsDb.createDBIfNotCreated();
     store =
         new SQLStore(
             cfgMock,
@@ -260,27 +792,112 @@ public class SQLStoreTest {
             localEventsDb,
             poolMock,
             permissionBackendMock,
+            classifierMock,
             logCleanerMock,
             PLUGIN_NAME);
-
     store.start();
     storeThenFlush(store, mockEvent);
-    verify(eventsDb, times(1)).flush();
+    ArgumentCaptor<ProjectEvent> captor = ArgumentCaptor.forClass(ProjectEvent.class);
+    verify(eventsDb).storeEvent(captor.capture());
+    assertThat(captor.getValue().eventCreatedOn).isEqualTo(mockEvent.eventCreatedOn);
   }
 
   @Test
-  public void noRetryOnZeroMaxTries() throws Exception {
-    when(cfgMock.getMaxTries()).thenReturn(0);
-    setUpClientMock();
+  public void storeThenQueryNotVisible() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doThrow(new PermissionBackendException(""))
+        .when(forProjectMock)
+        .check(ProjectPermission.ACCESS);
+    setUpClient();
+    storeThenFlush(store, mockEvent);
+    List<String> events = store.queryChangeEvents(GENERIC_QUERY);
+    assertThat(events).isEmpty();
+  }
 
+  @Test
+  public void checkProjectsConcurrently() throws Exception {
+    PermissionBackend.ForProject notVisibleMock = mock(PermissionBackend.ForProject.class);
+    PermissionBackend.ForProject failingMock = mock(PermissionBackend.ForProject.class);
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    when(withUserMock.project(Project.nameKey("hidden"))).thenReturn(notVisibleMock);
+    when(withUserMock.project(Project.nameKey("failing"))).thenReturn(failingMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    doThrow(new AuthException("")).when(notVisibleMock).check(ProjectPermission.ACCESS);
+    doThrow(new StorageException("")).when(failingMock).check(ProjectPermission.ACCESS);
+    setUpClient();
+    for (String project : ImmutableList.of("a", "b", "hidden", "c", "failing", "d")) {
+      store.storeEvent(new MockEvent(project));
+    }
+    store.flush();
+
+    assertThat(store.queryChangeEvents(GENERIC_QUERY).stream().map(this::project).collect(toList()))
+        .containsExactly("a", "b", "c", "d");
+  }
+
+  @Test
+  public void stopCheckingProjectsWhenInterrupted() throws Exception {
+    PermissionBackend.ForProject slowMock = mock(PermissionBackend.ForProject.class);
+    CountDownLatch stopped = new CountDownLatch(1);
+    Thread queryThread = Thread.currentThread();
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    when(withUserMock.project(Project.nameKey("slow"))).thenReturn(slowMock);
     doAnswer(
             invocation -> {
-              throw new SQLException(TERM_CONN_MSG);
+              queryThread.interrupt();
+              // Cancelling the checks interrupts this thread.
+              assertThat(stopped.await(10, TimeUnit.SECONDS)).isFalse();
+              return null;
             })
-        .doNothing()
-        .when(eventsDb)
-        .flush();
+        .when(slowMock)
+        .check(ProjectPermission.ACCESS);
+    setUpClient();
+    store.storeEvent(new MockEvent("slow"));
+    store.storeEvent(mockEvent);
+    store.flush();
+
+    assertThat(store.queryChangeEvents(GENERIC_QUERY).stream().map(this::project).collect(toList()))
+        .doesNotContain("slow");
+    assertThat(Thread.interrupted()).isTrue();
+  }
 
+  private String project(String event) {
+    return JsonParser.parseString(event).getAsJsonObject().get("project").getAsString();
+  }
+
+  @Test(expected = MalformedQueryException.class)
+  public void throwBadRequestTriggerOnBadQuery() throws Exception {
+    setUpClient();
+    String badQuery = "bad query";
+    store.queryChangeEvents(badQuery);
+  }
+
+  @Test
+  public void notReturnEventWithNoVisibilityInfo() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doThrow(new PermissionBackendException(""))
+        .when(forProjectMock)
+        .check(ProjectPermission.ACCESS);
+    setUpClient();
+    storeThenFlush(store, mockEvent);
+    List<String> events = store.queryChangeEvents(GENERIC_QUERY);
+    assertThat(events).isEmpty();
+  }
+
+  @Test
+  public void storeFailedBatchLocallyUntilDatabaseIsBack() throws Exception {
+    when(permissionBackendMock.currentUser()).thenReturn(withUserMock);
+    when(withUserMock.project(any(Project.NameKey.class))).thenReturn(forProjectMock);
+    doNothing().when(forProjectMock).check(ProjectPermission.ACCESS);
+    when(cfgMock.getMaxTries()).thenReturn(2);
+    config.setJdbcUrl(TEST_URL);
+    eventsDb = new SQLClient(config);
+    config.setJdbcUrl(TEST_LOCAL_URL);
+    localEventsDb = new SQLClient(config);
+    localEventsDb.setCounts(false);
     store =
         new SQLStore(
             cfgMock,
@@ -288,12 +905,29 @@ public class SQLStoreTest {
             localEventsDb,
             poolMock,
             permissionBackendMock,
+            classifierMock,
             logCleanerMock,
             PLUGIN_NAME);
-
     store.start();
+    store.awaitRestore();
+
+    stat.execute("ALTER TABLE " + TABLE_NAME + " RENAME TO unavailable");
     storeThenFlush(store, mockEvent);
-    verify(eventsDb, times(1)).flush();
+    assertThat(localEventsDb.getAll()).hasSize(1);
+
+    MockEvent later = later(mockEvent);
+    storeThenFlush(store, later);
+    assertThat(localEventsDb.getAll()).hasSize(2);
+    assertThrows(ServiceUnavailableException.class, () -> store.queryChangeEvents(GENERIC_QUERY));
+
+    stat.execute("ALTER TABLE unavailable RENAME TO " + TABLE_NAME);
+    store.new CheckConnectionTask(PLUGIN_NAME).run();
+    store.awaitRestore();
+    Gson gson = new Gson();
+    assertThat(store.queryChangeEvents(GENERIC_QUERY))
+        .containsExactly(gson.toJson(mockEvent), gson.toJson(later))
+        .inOrder();
+    assertThat(localEventsDb.getAll()).isEmpty();
   }
 
   @Test(expected = ServiceUnavailableException.class)
@@ -309,6 +943,7 @@ public class SQLStoreTest {
             localEventsDb,
             poolMock,
             permissionBackendMock,
+            classifierMock,
             logCleanerMock,
             PLUGIN_NAME);
 
@@ -330,6 +965,7 @@ public class SQLStoreTest {
     eventsDb = new SQLClient(config);
     config.setJdbcUrl(TEST_LOCAL_URL);
     localEventsDb = new SQLClient(config);
+    localEventsDb.setCounts(false);
     store =
         new SQLStore(
             cfgMock,
@@ -337,11 +973,13 @@ public class SQLStoreTest {
             localEventsDb,
             poolMock,
             permissionBackendMock,
+            classifierMock,
             logCleanerMock,
             PLUGIN_NAME);
 
     localEventsDb.createDBIfNotCreated();
     store.start();
+    store.awaitRestore();
     storeThenFlush(store, mockEvent);
     storeThenFlush(store, mockEvent2);
 
@@ -355,6 +993,36 @@ public class SQLStoreTest {
     assertThat(events).containsExactly(json, json2).inOrder();
   }
 
+  @Test
+  public void restoreEventsFromLocalDbInChunks() throws Exception {
+    config.setJdbcUrl(TEST_URL);
+    eventsDb = new SQLClient(config);
+    config.setJdbcUrl(TEST_LOCAL_URL);
+    localEventsDb = new SQLClient(config);
+    localEventsDb.setCounts(false);
+    localEventsDb.createDBIfNotCreated();
+    List<SQLEntry> entries = new ArrayList<>();
+    for (int i = 0; i < SQLStore.RESTORE_CHUNK_SIZE + 1; i++) {
+      entries.add(new SQLEntry(mockEvent.project, Instant.now(), "event " + i, 0));
+    }
+    localEventsDb.storeEntries(entries);
+    store =
+        new SQLStore(
+            cfgMock,
+            eventsDb,
+            localEventsDb,
+            poolMock,
+            permissionBackendMock,
+            classifierMock,
+            logCleanerMock,
+            PLUGIN_NAME);
+
+    store.start();
+    store.awaitRestore();
+    assertThat(eventsDb.getAll()).hasSize(SQLStore.RESTORE_CHUNK_SIZE + 1);
+    assertThat(localEventsDb.getAll()).isEmpty();
+  }
+
   @Test
   public void offlineUponStart() throws Exception {
     setUpClientMock();
@@ -368,6 +1036,7 @@ public class SQLStoreTest {
             localEventsDb,
             poolMock,
             permissionBackendMock,
+            classifierMock,
             logCleanerMock,
             PLUGIN_NAME);
 
@@ -378,8 +1047,8 @@ public class SQLStoreTest {
   @Test
   public void storeLocalOffline() throws Exception {
     setUpClientMock();
+    when(cfgMock.getWaitTime()).thenReturn(1000);
     doThrow(new SQLException(new ConnectException())).when(eventsDb).createDBIfNotCreated();
-    doThrow(new SQLException()).when(eventsDb).queryOne();
 
     store =
         new SQLStore(
@@ -388,6 +1057,7 @@ public class SQLStoreTest {
             localEventsDb,
             poolMock,
             permissionBackendMock,
+            classifierMock,
             logCleanerMock,
             PLUGIN_NAME);
 
@@ -397,11 +1067,11 @@ public class SQLStoreTest {
   }
 
   @Test
-  public void storeLocalOfflineAfterNoRetry() throws Exception {
+  public void storeLocalAfterFailedWriteWithNoRetry() throws Exception {
     setUpClientMock();
+    when(localEventsDb.dbExists()).thenReturn(true);
     when(cfgMock.getMaxTries()).thenReturn(0);
-    doThrow(new SQLException(new ConnectException())).when(eventsDb).createDBIfNotCreated();
-    doThrow(new SQLException()).when(eventsDb).queryOne();
+    when(cfgMock.getWaitTime()).thenReturn(1000);
 
     store =
         new SQLStore(
@@ -410,18 +1080,28 @@ public class SQLStoreTest {
             localEventsDb,
             poolMock,
             permissionBackendMock,
+            classifierMock,
             logCleanerMock,
             PLUGIN_NAME);
+    ArgumentCaptor<SQLClient.WriteListener> listener =
+        ArgumentCaptor.forClass(SQLClient.WriteListener.class);
+    verify(eventsDb).setWriteListener(listener.capture());
 
     store.start();
+    store.awaitRestore();
+    List<KeyedEvent> batch = ImmutableList.of(new KeyedEvent(mockEvent));
+    listener.getValue().writeFailed(batch, new SQLException(new ConnectException()));
+    verify(localEventsDb).storeEvents(batch);
     storeThenFlush(store, mockEvent);
     verify(localEventsDb).storeEvent(mockEvent);
+    verify(eventsDb, never()).storeEvent(mockEvent);
   }
 
-  private void setUpClient() {
+  private void setUpClient() throws Exception {
 
     eventsDb = new SQLClient(config);
     localEventsDb = new SQLClient(config);
+    localEventsDb.setCounts(false);
     store =
         new SQLStore(
             cfgMock,
@@ -429,10 +1109,13 @@ public class SQLStoreTest {
             localEventsDb,
             poolMock,
             permissionBackendMock,
+            classifierMock,
             logCleanerMock,
             PLUGIN_NAME);
 
     store.start();
+    // The local database is the same as the main one, do not let the restore move the events.
+    store.awaitRestore();
   }
 
   /**
@@ -450,7 +1133,9 @@ public class SQLStoreTest {
         new SQLEntry(
             "proj", Instant.now(), "{\"type\":\"mock event\"}", 123L // dummy primary key
             );
-    when(localEventsDb.getAll()).thenReturn(ImmutableList.of(entry));
+    when(localEventsDb.getEntries(anyLong(), anyInt()))
+        .thenReturn(ImmutableList.of(entry))
+        .thenReturn(ImmutableList.of());
 
     store =
         new SQLStore(
@@ -459,13 +1144,15 @@ public class SQLStoreTest {
             localEventsDb,
             poolMock,
             permissionBackendMock,
+            classifierMock,
             logCleanerMock,
             PLUGIN_NAME);
 
     store.start();
     poolMock.scheduleWithFixedDelay(
         store.new CheckConnectionTask(PLUGIN_NAME), 0, 0, TimeUnit.MILLISECONDS);
-    verify(localEventsDb, times(2)).removeOldEvents(0);
+    store.awaitRestore();
+    verify(localEventsDb).removeEventsUpTo(123L);
   }
 
   @Test
@@ -482,6 +1169,7 @@ public class SQLStoreTest {
     eventsDb = mock(SQLClient.class);
     config.setJdbcUrl(TEST_LOCAL_URL);
     localEventsDb = new SQLClient(config);
+    localEventsDb.setCounts(false);
     localEventsDb.createDBIfNotCreated();
     doThrow(new SQLException(new ConnectException()))
         .doNothing()
@@ -499,11 +1187,13 @@ public class SQLStoreTest {
             localEventsDb,
             poolMock,
             permissionBackendMock,
+            classifierMock,
             logCleanerMock,
             PLUGIN_NAME);
 
     store.start();
     storeThenFlush(store, mockEvent);
+    store.awaitRestore();
     verify(eventsDb).queryOne();
     ArgumentCaptor<ProjectEvent> captor = ArgumentCaptor.forClass(ProjectEvent.class);
     verify(eventsDb).storeEvent(captor.capture());
@@ -515,7 +1205,13 @@ public class SQLStoreTest {
   private void setUpClientMock() throws SQLException {
     eventsDb = mock(SQLClient.class);
     localEventsDb = mock(SQLClient.class);
-    when(localEventsDb.dbExists()).thenReturn(true);
+  }
+
+  /** Get a copy of the event, created a second later. */
+  private MockEvent later(MockEvent event) {
+    MockEvent later = new MockEvent(event.project);
+    later.eventCreatedOn = event.eventCreatedOn + 1;
+    return later;
   }
 
   private void storeThenFlush(SQLStore store, MockEvent event) throws Exception {
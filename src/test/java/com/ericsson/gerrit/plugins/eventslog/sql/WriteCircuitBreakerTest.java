@@ -0,0 +1,106 @@
+// Copyright (C) 2026 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.ericsson.gerrit.plugins.eventslog.sql;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.ericsson.gerrit.plugins.eventslog.sql.WriteCircuitBreaker.State;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteCircuitBreakerTest {
+  private static final long RETRY_TIME = 1000;
+
+  private long now;
+  private WriteCircuitBreaker breaker;
+
+  @Before
+  public void setUp() {
+    breaker = new WriteCircuitBreaker(2, RETRY_TIME, () -> now);
+  }
+
+  @Test
+  public void degradedUntilWriteSucceeds() {
+    assertThat(breaker.recordFailure()).isFalse();
+    assertThat(breaker.getState()).isEqualTo(State.DEGRADED);
+    assertThat(breaker.allowWrite()).isTrue();
+
+    assertThat(breaker.recordSuccess()).isFalse();
+    assertThat(breaker.getState()).isEqualTo(State.ONLINE);
+    assertThat(breaker.recordFailure()).isFalse();
+    assertThat(breaker.getState()).isEqualTo(State.DEGRADED);
+  }
+
+  @Test
+  public void offlineAfterMaxFailuresInARow() {
+    breaker.recordFailure();
+    assertThat(breaker.recordFailure()).isTrue();
+    assertThat(breaker.getState()).isEqualTo(State.OFFLINE);
+    assertThat(breaker.allowWrite()).isFalse();
+    assertThat(breaker.recordFailure()).isFalse();
+  }
+
+  @Test
+  public void probeOnceRetryTimeHasPassed() {
+    assertThat(breaker.trip()).isTrue();
+    now += RETRY_TIME - 1;
+    assertThat(breaker.allowWrite()).isFalse();
+
+    now++;
+    assertThat(breaker.allowWrite()).isTrue();
+    assertThat(breaker.allowWrite()).isFalse();
+    breaker.recordFailure();
+    assertThat(breaker.getState()).isEqualTo(State.OFFLINE);
+    assertThat(breaker.allowWrite()).isFalse();
+
+    now += RETRY_TIME;
+    assertThat(breaker.allowWrite()).isTrue();
+    assertThat(breaker.recordSuccess()).isTrue();
+    assertThat(breaker.getState()).isEqualTo(State.RESTORING);
+    breaker.restored();
+    assertThat(breaker.getState()).isEqualTo(State.ONLINE);
+  }
+
+  @Test
+  public void probeAgainWhenOutcomeIsUnknown() {
+    breaker.trip();
+    now += RETRY_TIME;
+    assertThat(breaker.allowWrite()).isTrue();
+    now += RETRY_TIME - 1;
+    assertThat(breaker.allowWrite()).isFalse();
+
+    now++;
+    assertThat(breaker.allowWrite()).isTrue();
+  }
+
+  @Test
+  public void offlineOnFailureWhileRestoring() {
+    breaker.trip();
+    now += RETRY_TIME;
+    breaker.allowWrite();
+    breaker.recordSuccess();
+
+    assertThat(breaker.allowWrite()).isTrue();
+    assertThat(breaker.recordFailure()).isTrue();
+    assertThat(breaker.getState()).isEqualTo(State.OFFLINE);
+  }
+
+  @Test
+  public void offlineAfterFirstFailureWithNoRetry() {
+    breaker = new WriteCircuitBreaker(0, RETRY_TIME, () -> now);
+    assertThat(breaker.recordFailure()).isTrue();
+    assertThat(breaker.getState()).isEqualTo(State.OFFLINE);
+  }
+}